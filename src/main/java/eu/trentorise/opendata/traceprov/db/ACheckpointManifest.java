@@ -0,0 +1,83 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import java.util.List;
+import java.util.Map;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import eu.trentorise.opendata.commons.BuilderStylePublic;
+
+/**
+ * Describes the files of the latest checkpoint of a TraceDb. The manifest is
+ * written last and atomically, so files it doesn't list are leftovers of an
+ * interrupted checkpoint.
+ *
+ * @author David Leoni
+ */
+@Value.Immutable
+@BuilderStylePublic
+@JsonSerialize(as = CheckpointManifest.class)
+@JsonDeserialize(as = CheckpointManifest.class)
+abstract class ACheckpointManifest {
+
+    public abstract int getFormatVersion();
+
+    /**
+     * The sequence number of the last log record included in the checkpoint.
+     */
+    public abstract long getSeq();
+
+    /**
+     * Nodes with id lower than this are stored in the segments.
+     */
+    public abstract long getIdCounter();
+
+    /**
+     * Names of the {@link NodeSegment} files, in id order.
+     */
+    public abstract List<String> getSegments();
+
+    /**
+     * Name of the file holding the same as cliques.
+     */
+    public abstract String getSameAsFile();
+
+    public abstract Map<String, String> getPrefixes();
+
+    /**
+     * Name of the file holding the type indexes, or the empty string if the
+     * db has none.
+     */
+    @Value.Default
+    public String getTypeIndexFile() {
+        return "";
+    }
+
+    /**
+     * Name of the file holding the unique indexes, or the empty string if the
+     * db has none.
+     */
+    @Value.Default
+    public String getUniqueIndexFile() {
+        return "";
+    }
+
+    /**
+     * Name of the file holding the posting lists of node metadata, or the
+     * empty string if it was written before they were introduced.
+     */
+    @Value.Default
+    public String getPostingsFile() {
+        return "";
+    }
+
+    /**
+     * Names of the {@link NodeSegment} files holding the versions of updated
+     * nodes, oldest first. Each one holds the versions changed since the
+     * previous checkpoint.
+     */
+    public abstract List<String> getVersionFiles();
+}
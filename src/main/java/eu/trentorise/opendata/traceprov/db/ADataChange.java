@@ -0,0 +1,51 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import javax.annotation.Nullable;
+
+import org.immutables.value.Value;
+
+import eu.trentorise.opendata.commons.BuilderStylePublic;
+import eu.trentorise.opendata.traceprov.tracel.java.PropertyPath;
+
+/**
+ * A difference between two
+ * {@link eu.trentorise.opendata.traceprov.data.TraceData TraceData} trees, as
+ * found by {@link TraceDb#diff(long, long)}.
+ *
+ * @author David Leoni
+ */
+@Value.Immutable
+@BuilderStylePublic
+abstract class ADataChange {
+
+    public abstract ChangeKind getKind();
+
+    /**
+     * The path of the changed value, starting from the root of the trees
+     */
+    public abstract PropertyPath getPath();
+
+    /**
+     * The value in the old tree, or null if the change is
+     * {@link ChangeKind#ADDED}
+     */
+    @Nullable
+    public abstract Object getOldValue();
+
+    /**
+     * The value in the new tree, or null if the change is
+     * {@link ChangeKind#REMOVED}
+     */
+    @Nullable
+    public abstract Object getNewValue();
+
+    public static DataChange of(ChangeKind kind, PropertyPath path, @Nullable Object oldValue,
+            @Nullable Object newValue) {
+        return DataChange.builder()
+                         .setKind(kind)
+                         .setPath(path)
+                         .setOldValue(oldValue)
+                         .setNewValue(newValue)
+                         .build();
+    }
+}
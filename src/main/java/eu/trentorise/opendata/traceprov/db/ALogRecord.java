@@ -0,0 +1,89 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import eu.trentorise.opendata.commons.BuilderStylePublic;
+
+/**
+ * A single change appended to the TraceDb log. Replaying all the records of a
+ * log in sequence order rebuilds the database state.
+ *
+ * @author David Leoni
+ */
+@Value.Immutable
+@BuilderStylePublic
+@JsonSerialize(as = LogRecord.class)
+@JsonDeserialize(as = LogRecord.class)
+abstract class ALogRecord {
+
+    /**
+     * Progressive number of the record in the log, starting from 1.
+     */
+    public abstract long getSeq();
+
+    public abstract LogOp getOp();
+
+    /**
+     * For {@link LogOp#CREATE}, the created node as encoded by
+     * {@link NodeCodec}, otherwise null.
+     */
+    @Nullable
+    public abstract JsonNode getNode();
+
+    /**
+     * For {@link LogOp#CREATE_BATCH}, {@link LogOp#UPDATE} and
+     * {@link LogOp#HARD_UPDATE}, the created or updated nodes as encoded by
+     * {@link NodeCodec}. As the whole batch is in a single record, after a
+     * crash either all the batch is replayed or none of it.
+     */
+    public abstract List<JsonNode> getNodes();
+
+    /**
+     * For {@link LogOp#SAME_AS} and {@link LogOp#MAIN_NODE}, the main node id.
+     * Defaults to -1.
+     */
+    @Value.Default
+    public long getMainId() {
+        return -1;
+    }
+
+    /**
+     * For {@link LogOp#SAME_AS}, the ids to put in the same clique of main id.
+     */
+    public abstract List<Long> getIds();
+
+    /**
+     * For {@link LogOp#PREFIX}, the prefix. Defaults to the empty string.
+     */
+    @Value.Default
+    public String getPrefix() {
+        return "";
+    }
+
+    /**
+     * For {@link LogOp#PREFIX}, the prefix expansion. Defaults to the empty
+     * string.
+     */
+    @Value.Default
+    public String getUrl() {
+        return "";
+    }
+
+    /**
+     * For {@link LogOp#INDEX_TYPE}, the id of the indexed type. Defaults to
+     * the empty string.
+     */
+    @Value.Default
+    public String getTypeId() {
+        return "";
+    }
+
+}
@@ -0,0 +1,110 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import eu.trentorise.opendata.commons.BuilderStylePublic;
+
+/**
+ * Tuning options of a TraceDb. In-memory dbs ignore the ones about storage.
+ *
+ * @author David Leoni
+ */
+@Value.Immutable
+@BuilderStylePublic
+@JsonSerialize(as = TraceDbConfig.class)
+@JsonDeserialize(as = TraceDbConfig.class)
+abstract class ATraceDbConfig {
+
+    /**
+     * After a flush, a checkpoint is started in background if the log holds at
+     * least this number of records. A value {@code <= 0} disables the
+     * trigger. By default 100000.
+     */
+    @Value.Default
+    public long getCheckpointLogRecords() {
+        return 100000;
+    }
+
+    /**
+     * After a flush, a checkpoint is started in background if the log is at
+     * least this number of bytes long. A value {@code <= 0} disables the
+     * trigger. By default 64 megabytes.
+     */
+    @Value.Default
+    public long getCheckpointLogBytes() {
+        return 64L * 1024 * 1024;
+    }
+
+    /**
+     * Checkpoints store nodes in segment files of at most this number of
+     * bytes, unless a single node is bigger. Must be less than 2 gigabytes. By
+     * default 64 megabytes.
+     */
+    @Value.Default
+    public long getCheckpointSegmentBytes() {
+        return 64L * 1024 * 1024;
+    }
+
+    /**
+     * If true, when connecting to a db only the indexes of checkpointed nodes
+     * are loaded, and each node is read from disk the first time it is
+     * requested. Allows opening dbs bigger than the heap. By default false.
+     */
+    @Value.Default
+    public boolean isLazyLoading() {
+        return false;
+    }
+
+    /**
+     * Maximum number of nodes read from disk to keep in memory when
+     * {@link #isLazyLoading() lazy loading} is enabled. By default 10000.
+     */
+    @Value.Default
+    public long getNodeCacheSize() {
+        return 10000;
+    }
+
+    /**
+     * Maximum estimated heap bytes of the nodes read from disk to keep in
+     * memory when {@link #isLazyLoading() lazy loading} is enabled. By
+     * default 64 megabytes.
+     */
+    @Value.Default
+    public long getNodeCacheBytes() {
+        return 64L * 1024 * 1024;
+    }
+
+    /**
+     * Maximum number of normalized urls to cache (see
+     * {@link TraceDb#normalizeUrl(String)}). A value of 0 disables the cache.
+     * By default 10000.
+     */
+    @Value.Default
+    public long getUrlCacheSize() {
+        return 10000;
+    }
+
+    /**
+     * If true, raw values are stored content-addressed: equal values and
+     * equal parts of values are kept once on the heap, whatever the nodes
+     * they belong to, and equal serialized raw values are written once in
+     * each segment file. Saves memory and disk on catalogs with much
+     * repetition, at the cost of hashing values when nodes are stored. By
+     * default false.
+     */
+    @Value.Default
+    public boolean isDedupRawValues() {
+        return false;
+    }
+
+    /**
+     * Returns the default configuration.
+     */
+    public static TraceDbConfig of() {
+        return TraceDbConfig.builder()
+                            .build();
+    }
+}
@@ -0,0 +1,76 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread safe array of primitive longs indexed by non-negative long,
+ * allocated in fixed size pages as higher indexes are set. Unset elements are
+ * zero. Like {@link PagedArray}, reads never lock and elements are volatile.
+ *
+ * @author David Leoni
+ * @see PagedLongArray
+ */
+final class AtomicPagedLongArray {
+
+    private static final int PAGE_BITS = PagedArray.PAGE_BITS;
+    private static final int PAGE_SIZE = PagedArray.PAGE_SIZE;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Replaced by a bigger copy when full, pages are only added holding the
+     * lock of the array.
+     */
+    private volatile AtomicReferenceArray<AtomicLongArray> pages;
+
+    AtomicPagedLongArray() {
+        this.pages = new AtomicReferenceArray<>(16);
+    }
+
+    /**
+     * Returns the element at provided index, or zero if not set.
+     */
+    long get(long index) {
+        if (index < 0) {
+            return 0;
+        }
+        AtomicLongArray page = page(index);
+        return page == null ? 0 : page.get((int) (index & PAGE_MASK));
+    }
+
+    void set(long index, long value) {
+        checkArgument(index >= 0, "Invalid index: %s", index);
+        AtomicLongArray page = page(index);
+        if (page == null) {
+            page = allocatePage((int) (index >>> PAGE_BITS));
+        }
+        page.set((int) (index & PAGE_MASK), value);
+    }
+
+    private AtomicLongArray page(long index) {
+        long pageIndex = index >>> PAGE_BITS;
+        AtomicReferenceArray<AtomicLongArray> curPages = pages;
+        return pageIndex < curPages.length() ? curPages.get((int) pageIndex) : null;
+    }
+
+    private synchronized AtomicLongArray allocatePage(int pageIndex) {
+        AtomicReferenceArray<AtomicLongArray> curPages = pages;
+        if (pageIndex >= curPages.length()) {
+            AtomicReferenceArray<AtomicLongArray> newPages = new AtomicReferenceArray<>(
+                    Math.max(curPages.length() * 2, pageIndex + 1));
+            for (int i = 0; i < curPages.length(); i++) {
+                newPages.set(i, curPages.get(i));
+            }
+            pages = newPages;
+            curPages = newPages;
+        }
+        AtomicLongArray ret = curPages.get(pageIndex);
+        if (ret == null) {
+            ret = new AtomicLongArray(PAGE_SIZE);
+            curPages.set(pageIndex, ret);
+        }
+        return ret;
+    }
+}
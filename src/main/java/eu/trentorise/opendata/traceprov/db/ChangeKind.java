@@ -0,0 +1,18 @@
+package eu.trentorise.opendata.traceprov.db;
+
+/**
+ * The kind of a {@link DataChange} between two versions of a data tree.
+ *
+ * @author David Leoni
+ */
+public enum ChangeKind {
+
+    /** A field or array element is only in the new tree */
+    ADDED,
+
+    /** A field or array element is only in the old tree */
+    REMOVED,
+
+    /** A value at the same path differs between the trees */
+    CHANGED
+}
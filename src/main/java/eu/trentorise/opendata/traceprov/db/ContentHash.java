@@ -0,0 +1,262 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * Computes content fingerprints of nodes, that is 64 bit hashes of their
+ * {@link eu.trentorise.opendata.traceprov.types.TraceType TraceType}, kind
+ * and raw value.
+ *
+ * <p>
+ * Hashes are canonical, so they don't change when a node is stored and read
+ * back from disk: map entries are combined regardless of their order, map
+ * keys are hashed as strings, integral numbers as longs whatever their Java
+ * class, floats by their decimal representation as they are read back as
+ * doubles, sets as the lists they are read back as, and objects other than
+ * maps, collections and scalars are hashed through their Jackson json tree.
+ * Metadata other than the type is not part of the fingerprint, so two
+ * versions of a node with the same content have the same fingerprint.
+ * </p>
+ *
+ * <p>
+ * Hashes are Merkle hashes: the hash of a map or a list is computed from the
+ * hashes of its children. Callers can provide a cache of the hashes of
+ * values other than scalars, that is maps, collections and other objects
+ * like {@link eu.trentorise.opendata.traceprov.data.DataObject DataObject}
+ * beans, which must be keyed by identity (i.e. a Guava cache with weak keys)
+ * and only used for values never modified, like the raw values of stored
+ * nodes. As successive versions of a node share the unchanged parts
+ * of their values (see {@link VersionStore#share(Object, Object)}), hashing
+ * a new version then only walks the subtrees which changed.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class ContentHash {
+
+    /**
+     * Fingerprint of nodes whose hash was not computed yet. It is never
+     * returned by {@link #of(TraceData, ObjectMapper)}.
+     */
+    static final long UNKNOWN = 0;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INTEGRAL = 2;
+    private static final byte FLOATING = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte STRING = 5;
+    private static final byte MAP = 6;
+    private static final byte LIST = 7;
+    private static final byte NODE = 9;
+
+    private ContentHash() {
+    }
+
+    /**
+     * Returns the fingerprint of provided node.
+     */
+    static long of(TraceData node, ObjectMapper om) {
+        return of(node, om, null);
+    }
+
+    /**
+     * Returns the fingerprint of provided node, reusing and filling provided
+     * cache of subtree hashes.
+     */
+    static long of(TraceData node, ObjectMapper om, @Nullable Cache<Object, Long> cache) {
+        checkNotNull(node);
+        long ret = HASH.newHasher()
+                       .putByte(NODE)
+                       .putString(node.getMetadata()
+                                      .getType()
+                                      .getId(),
+                               Charsets.UTF_8)
+                       .putString(node.getClass()
+                                      .getSimpleName(),
+                               Charsets.UTF_8)
+                       .putLong(hash(node.getRawValue(), om, cache))
+                       .hash()
+                       .asLong();
+        return ret == UNKNOWN ? 1 : ret;
+    }
+
+    /**
+     * Returns the canonical hash of provided raw value, reusing and filling
+     * provided cache of subtree hashes.
+     */
+    static long hash(@Nullable Object value, ObjectMapper om, @Nullable Cache<Object, Long> cache) {
+        if (cache != null && !isScalar(value)) {
+            Long ret = cache.getIfPresent(value);
+            if (ret == null) {
+                ret = computeHash(value, om, cache);
+                cache.put(value, ret);
+            }
+            return ret;
+        }
+        return computeHash(value, om, cache);
+    }
+
+    /**
+     * Scalars and nodes, whose hashes are not worth caching
+     */
+    private static boolean isScalar(@Nullable Object value) {
+        return value == null || value instanceof Boolean || value instanceof Number || value instanceof CharSequence
+                || value instanceof TraceData;
+    }
+
+    private static long computeHash(@Nullable Object value, ObjectMapper om, @Nullable Cache<Object, Long> cache) {
+        Hasher hasher = HASH.newHasher();
+        if (value == null) {
+            hasher.putByte(NULL);
+        } else if (value instanceof TraceData) {
+            TraceData node = (TraceData) value;
+            return hash(node.getRawValue(), om, cache);
+        } else if (value instanceof Boolean) {
+            hasher.putByte(BOOLEAN)
+                  .putBoolean((Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            hasher.putByte(INTEGRAL)
+                  .putLong(((Number) value).longValue());
+        } else if (value instanceof BigInteger) {
+            BigInteger big = (BigInteger) value;
+            if (big.bitLength() < 64) {
+                hasher.putByte(INTEGRAL)
+                      .putLong(big.longValue());
+            } else {
+                hasher.putByte(DECIMAL)
+                      .putString(big.toString(), Charsets.UTF_8);
+            }
+        } else if (value instanceof BigDecimal) {
+            hasher.putByte(DECIMAL)
+                  .putString(((BigDecimal) value).stripTrailingZeros()
+                                                 .toString(),
+                          Charsets.UTF_8);
+        } else if (value instanceof Float) {
+            putFloat(hasher, (Float) value);
+        } else if (value instanceof Double) {
+            putDouble(hasher, (Double) value);
+        } else if (value instanceof CharSequence) {
+            hasher.putByte(STRING)
+                  .putString((CharSequence) value, Charsets.UTF_8);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long sum = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sum += entryHash(String.valueOf(entry.getKey()), hash(entry.getValue(), om, cache));
+            }
+            hasher.putByte(MAP)
+                  .putInt(map.size())
+                  .putLong(sum);
+        } else if (value instanceof Iterable) {
+            // sets too, as they are stored as json arrays in iteration order
+            hasher.putByte(LIST);
+            int size = 0;
+            for (Object element : (Iterable<?>) value) {
+                hasher.putLong(hash(element, om, cache));
+                size++;
+            }
+            hasher.putInt(size);
+        } else {
+            return hash(om.valueToTree(value));
+        }
+        return hasher.hash()
+                     .asLong();
+    }
+
+    /**
+     * Hashes a json tree the same way as the corresponding Java maps, lists
+     * and scalars.
+     */
+    private static long hash(@Nullable JsonNode json) {
+        Hasher hasher = HASH.newHasher();
+        if (json == null || json.isNull() || json.isMissingNode()) {
+            hasher.putByte(NULL);
+        } else if (json.isBoolean()) {
+            hasher.putByte(BOOLEAN)
+                  .putBoolean(json.booleanValue());
+        } else if (json.isIntegralNumber()) {
+            if (json.canConvertToLong()) {
+                hasher.putByte(INTEGRAL)
+                      .putLong(json.longValue());
+            } else {
+                hasher.putByte(DECIMAL)
+                      .putString(json.bigIntegerValue()
+                                     .toString(),
+                              Charsets.UTF_8);
+            }
+        } else if (json.isBigDecimal()) {
+            hasher.putByte(DECIMAL)
+                  .putString(json.decimalValue()
+                                 .stripTrailingZeros()
+                                 .toString(),
+                          Charsets.UTF_8);
+        } else if (json.isFloat()) {
+            putFloat(hasher, json.floatValue());
+        } else if (json.isNumber()) {
+            putDouble(hasher, json.doubleValue());
+        } else if (json.isObject()) {
+            long sum = 0;
+            for (Iterator<Map.Entry<String, JsonNode>> iter = json.fields(); iter.hasNext();) {
+                Map.Entry<String, JsonNode> entry = iter.next();
+                sum += entryHash(entry.getKey(), hash(entry.getValue()));
+            }
+            hasher.putByte(MAP)
+                  .putInt(json.size())
+                  .putLong(sum);
+        } else if (json.isArray()) {
+            hasher.putByte(LIST);
+            for (JsonNode element : json) {
+                hasher.putLong(hash(element));
+            }
+            hasher.putInt(json.size());
+        } else {
+            hasher.putByte(STRING)
+                  .putString(json.asText(), Charsets.UTF_8);
+        }
+        return hasher.hash()
+                     .asLong();
+    }
+
+    /**
+     * Floats are written to json in their shortest decimal form and read back
+     * as the double with that form, not as the float widened to double.
+     */
+    private static void putFloat(Hasher hasher, float f) {
+        putDouble(hasher, Double.parseDouble(Float.toString(f)));
+    }
+
+    private static void putDouble(Hasher hasher, double d) {
+        // 0.0 and -0.0 are equal
+        hasher.putByte(FLOATING)
+              .putDouble(d == 0 ? 0.0 : d);
+    }
+
+    private static long entryHash(String key, long valueHash) {
+        return HASH.newHasher()
+                   .putString(key, Charsets.UTF_8)
+                   .putLong(valueHash)
+                   .hash()
+                   .asLong();
+    }
+}
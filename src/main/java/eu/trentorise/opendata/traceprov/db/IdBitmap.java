@@ -0,0 +1,592 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+/**
+ * A compressed set of node ids, in the style of Roaring bitmaps. Ids are split
+ * in chunks of 2^16 by their high bits, and each non empty chunk is held in a
+ * container which is either a sorted array of the low 16 bits, when the chunk
+ * is sparse, or a bitmap of 2^16 bits, when it is dense. As TraceDb ids are
+ * dense, large posting lists cost little more than one bit per node, and
+ * intersections, unions and differences run a container at a time.
+ *
+ * <p>
+ * Bitmaps are not thread safe: concurrent access must be synchronized on the
+ * bitmap.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class IdBitmap implements Iterable<Long> {
+
+    /**
+     * Max cardinality of array containers, beyond which a bitmap container
+     * takes less space.
+     */
+    static final int ARRAY_MAX = 4096;
+
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    private static final byte ARRAY_KIND = 0;
+    private static final byte BITMAP_KIND = 1;
+
+    /**
+     * Low 16 bits of the ids of a chunk. Exactly one of {@code array} and
+     * {@code bits} is non null.
+     */
+    private static final class Container {
+        private char[] array;
+        private long[] bits;
+        private int cardinality;
+
+        private Container(char[] array, long[] bits, int cardinality) {
+            this.array = array;
+            this.bits = bits;
+            this.cardinality = cardinality;
+        }
+
+        static Container ofArray(char[] array, int cardinality) {
+            return new Container(array, null, cardinality);
+        }
+
+        /**
+         * Returns a container of provided bits, as an array container if it is
+         * sparse enough, or null if there are no bits set.
+         */
+        static Container ofBits(long[] bits) {
+            int cardinality = 0;
+            for (long word : bits) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            if (cardinality > ARRAY_MAX) {
+                return new Container(null, bits, cardinality);
+            }
+            return ofArray(lows(bits, cardinality), cardinality);
+        }
+
+        /**
+         * Returns the sorted positions of the bits set in provided words
+         */
+        private static char[] lows(long[] bits, int cardinality) {
+            char[] ret = new char[cardinality];
+            int i = 0;
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    ret[i++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return ret;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        /**
+         * @return false if low was already present
+         */
+        boolean add(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0) {
+                    return false;
+                }
+                bits[low >>> 6] |= mask;
+                cardinality += 1;
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, cardinality, low);
+            if (pos >= 0) {
+                return false;
+            }
+            if (cardinality == ARRAY_MAX) {
+                bits = toBits();
+                array = null;
+                return add(low);
+            }
+            pos = -pos - 1;
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, Math.max(4, array.length * 2)));
+            }
+            System.arraycopy(array, pos, array, pos + 1, cardinality - pos);
+            array[pos] = low;
+            cardinality += 1;
+            return true;
+        }
+
+        /**
+         * Bitmap containers shrinking to half the max cardinality of arrays
+         * are turned back into arrays, so alternating adds and removes
+         * around the threshold don't convert the container each time.
+         *
+         * @return false if low was not present
+         */
+        boolean remove(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) {
+                    return false;
+                }
+                bits[low >>> 6] &= ~mask;
+                cardinality -= 1;
+                if (cardinality <= ARRAY_MAX / 2) {
+                    array = lows(bits, cardinality);
+                    bits = null;
+                }
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, cardinality, low);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(array, pos + 1, array, pos, cardinality - pos - 1);
+            cardinality -= 1;
+            return true;
+        }
+
+        long[] toBits() {
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] ret = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                ret[array[i] >>> 6] |= 1L << array[i];
+            }
+            return ret;
+        }
+
+        Container copy() {
+            return new Container(array == null ? null : Arrays.copyOf(array, cardinality),
+                    bits == null ? null : bits.clone(), cardinality);
+        }
+
+        /**
+         * Returns the intersection of provided containers, or null if empty.
+         */
+        static Container and(Container a, Container b) {
+            if (a.bits != null && b.bits != null) {
+                long[] ret = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    ret[i] = a.bits[i] & b.bits[i];
+                }
+                return ofBits(ret);
+            }
+            if (a.array == null) {
+                return and(b, a);
+            }
+            char[] ret = new char[a.cardinality];
+            int n = 0;
+            for (int i = 0; i < a.cardinality; i++) {
+                if (b.contains(a.array[i])) {
+                    ret[n++] = a.array[i];
+                }
+            }
+            return n == 0 ? null : ofArray(ret, n);
+        }
+
+        static Container or(Container a, Container b) {
+            if (a.array != null && b.array != null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+                char[] ret = new char[a.cardinality + b.cardinality];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < a.cardinality && j < b.cardinality) {
+                    char x = a.array[i];
+                    char y = b.array[j];
+                    if (x < y) {
+                        ret[n++] = x;
+                        i++;
+                    } else if (y < x) {
+                        ret[n++] = y;
+                        j++;
+                    } else {
+                        ret[n++] = x;
+                        i++;
+                        j++;
+                    }
+                }
+                while (i < a.cardinality) {
+                    ret[n++] = a.array[i++];
+                }
+                while (j < b.cardinality) {
+                    ret[n++] = b.array[j++];
+                }
+                return ofArray(ret, n);
+            }
+            long[] ret = a.toBits();
+            if (b.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    ret[i] |= b.bits[i];
+                }
+            } else {
+                for (int i = 0; i < b.cardinality; i++) {
+                    ret[b.array[i] >>> 6] |= 1L << b.array[i];
+                }
+            }
+            return ofBits(ret);
+        }
+
+        /**
+         * Returns the elements of {@code a} not in {@code b}, or null if
+         * there are none.
+         */
+        static Container andNot(Container a, Container b) {
+            if (a.array != null) {
+                char[] ret = new char[a.cardinality];
+                int n = 0;
+                for (int i = 0; i < a.cardinality; i++) {
+                    if (!b.contains(a.array[i])) {
+                        ret[n++] = a.array[i];
+                    }
+                }
+                return n == 0 ? null : ofArray(ret, n);
+            }
+            long[] ret = a.bits.clone();
+            if (b.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    ret[i] &= ~b.bits[i];
+                }
+            } else {
+                for (int i = 0; i < b.cardinality; i++) {
+                    ret[b.array[i] >>> 6] &= ~(1L << b.array[i]);
+                }
+            }
+            return ofBits(ret);
+        }
+    }
+
+    /**
+     * Sorted high bits of the chunks, the first {@code size} are used
+     */
+    private long[] highs;
+    private Container[] containers;
+    private int size;
+
+    /**
+     * Creates an empty bitmap
+     */
+    IdBitmap() {
+        this(new long[4], new Container[4], 0);
+    }
+
+    private IdBitmap(long[] highs, Container[] containers, int size) {
+        this.highs = highs;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    /**
+     * Returns a bitmap holding provided ids, in any order.
+     */
+    static IdBitmap of(long... ids) {
+        IdBitmap ret = new IdBitmap();
+        ret.addAll(ids);
+        return ret;
+    }
+
+    /**
+     * Adds provided id.
+     *
+     * @return false if the id was already present.
+     */
+    boolean add(long id) {
+        checkArgument(id >= 0, "Invalid id: %s", id);
+        long high = id >>> 16;
+        int pos = Arrays.binarySearch(highs, 0, size, high);
+        if (pos < 0) {
+            pos = -pos - 1;
+            if (size == highs.length) {
+                highs = Arrays.copyOf(highs, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            System.arraycopy(highs, pos, highs, pos + 1, size - pos);
+            System.arraycopy(containers, pos, containers, pos + 1, size - pos);
+            highs[pos] = high;
+            containers[pos] = Container.ofArray(new char[4], 0);
+            size += 1;
+        }
+        return containers[pos].add((char) id);
+    }
+
+    /**
+     * Removes provided id.
+     *
+     * @return false if the id was not present.
+     */
+    boolean remove(long id) {
+        if (id < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(highs, 0, size, id >>> 16);
+        if (pos < 0 || !containers[pos].remove((char) id)) {
+            return false;
+        }
+        if (containers[pos].cardinality == 0) {
+            System.arraycopy(highs, pos + 1, highs, pos, size - pos - 1);
+            System.arraycopy(containers, pos + 1, containers, pos, size - pos - 1);
+            size -= 1;
+            containers[size] = null;
+        }
+        return true;
+    }
+
+    void addAll(long[] ids) {
+        checkNotNull(ids);
+        for (long id : ids) {
+            add(id);
+        }
+    }
+
+    boolean contains(long id) {
+        if (id < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(highs, 0, size, id >>> 16);
+        return pos >= 0 && containers[pos].contains((char) id);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The number of ids in the bitmap
+     */
+    long getCardinality() {
+        long ret = 0;
+        for (int i = 0; i < size; i++) {
+            ret += containers[i].cardinality;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a deep copy of the bitmap.
+     */
+    IdBitmap copy() {
+        Container[] newContainers = new Container[Math.max(4, size)];
+        for (int i = 0; i < size; i++) {
+            newContainers[i] = containers[i].copy();
+        }
+        return new IdBitmap(Arrays.copyOf(highs, Math.max(4, size)), newContainers, size);
+    }
+
+    /**
+     * Returns a new bitmap with the ids both in this bitmap and in provided
+     * one.
+     */
+    IdBitmap and(IdBitmap other) {
+        checkNotNull(other);
+        IdBitmap ret = new IdBitmap(new long[Math.max(4, Math.min(size, other.size))],
+                new Container[Math.max(4, Math.min(size, other.size))], 0);
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (highs[i] < other.highs[j]) {
+                i++;
+            } else if (other.highs[j] < highs[i]) {
+                j++;
+            } else {
+                ret.append(highs[i], Container.and(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a new bitmap with the ids either in this bitmap or in provided
+     * one.
+     */
+    IdBitmap or(IdBitmap other) {
+        checkNotNull(other);
+        IdBitmap ret = new IdBitmap(new long[Math.max(4, size + other.size)],
+                new Container[Math.max(4, size + other.size)], 0);
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && highs[i] < other.highs[j])) {
+                ret.append(highs[i], containers[i].copy());
+                i++;
+            } else if (i == size || other.highs[j] < highs[i]) {
+                ret.append(other.highs[j], other.containers[j].copy());
+                j++;
+            } else {
+                ret.append(highs[i], Container.or(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a new bitmap with the ids in this bitmap which are not in
+     * provided one.
+     */
+    IdBitmap andNot(IdBitmap other) {
+        checkNotNull(other);
+        IdBitmap ret = new IdBitmap(new long[Math.max(4, size)], new Container[Math.max(4, size)], 0);
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.highs[j] < highs[i]) {
+                j++;
+            }
+            if (j < other.size && other.highs[j] == highs[i]) {
+                ret.append(highs[i], Container.andNot(containers[i], other.containers[j]));
+            } else {
+                ret.append(highs[i], containers[i].copy());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Appends a container with high bits greater than the present ones,
+     * skipping null ones. Only for freshly created bitmaps with enough room.
+     */
+    private void append(long high, Container container) {
+        if (container != null) {
+            highs[size] = high;
+            containers[size] = container;
+            size += 1;
+        }
+    }
+
+    /**
+     * Returns the ids in ascending order.
+     */
+    long[] toArray() {
+        long cardinality = getCardinality();
+        checkArgument(cardinality <= Integer.MAX_VALUE, "Too many ids for an array: %s", cardinality);
+        long[] ret = new long[(int) cardinality];
+        int n = 0;
+        for (Long id : this) {
+            ret[n++] = id;
+        }
+        return ret;
+    }
+
+    /**
+     * Iterates ids in ascending order. The bitmap must not be changed while
+     * iterating.
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        return new UnmodifiableIterator<Long>() {
+            private int pos = 0;
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (pos < size) {
+                    Container container = containers[pos];
+                    if (container.array != null) {
+                        if (next < container.cardinality) {
+                            return true;
+                        }
+                    } else {
+                        while (next < (1 << 16)) {
+                            long word = container.bits[next >>> 6] >>> next;
+                            if (word != 0) {
+                                next += Long.numberOfTrailingZeros(word);
+                                return true;
+                            }
+                            next = (next | 63) + 1;
+                        }
+                    }
+                    pos += 1;
+                    next = 0;
+                }
+                return false;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Container container = containers[pos];
+                long low = container.array != null ? container.array[next] : next;
+                next += 1;
+                return (highs[pos] << 16) | low;
+            }
+        };
+    }
+
+    /**
+     * Writes the bitmap to provided output, see {@link #read(DataInput)}
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Container container = containers[i];
+            out.writeLong(highs[i]);
+            out.writeInt(container.cardinality);
+            if (container.array != null) {
+                out.writeByte(ARRAY_KIND);
+                for (int j = 0; j < container.cardinality; j++) {
+                    out.writeChar(container.array[j]);
+                }
+            } else {
+                out.writeByte(BITMAP_KIND);
+                for (long word : container.bits) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a bitmap written by {@link #write(DataOutput)}
+     */
+    static IdBitmap read(DataInput in) throws IOException {
+        int size = in.readInt();
+        IdBitmap ret = new IdBitmap(new long[Math.max(4, size)], new Container[Math.max(4, size)], 0);
+        for (int i = 0; i < size; i++) {
+            long high = in.readLong();
+            int cardinality = in.readInt();
+            byte kind = in.readByte();
+            if (kind == ARRAY_KIND) {
+                char[] array = new char[cardinality];
+                for (int j = 0; j < cardinality; j++) {
+                    array[j] = in.readChar();
+                }
+                ret.append(high, Container.ofArray(array, cardinality));
+            } else if (kind == BITMAP_KIND) {
+                long[] bits = new long[BITMAP_WORDS];
+                for (int j = 0; j < BITMAP_WORDS; j++) {
+                    bits[j] = in.readLong();
+                }
+                ret.append(high, Container.ofBits(bits));
+            } else {
+                throw new IOException("Unknown bitmap container kind " + kind);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "IdBitmap{cardinality=" + getCardinality() + ", containers=" + size + "}";
+    }
+}
@@ -0,0 +1,246 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static eu.trentorise.opendata.commons.validation.Preconditions.checkNotEmpty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A boolean combination of TraceDb indexes, to be run with
+ * {@link TraceDb#query(IndexQuery)}. Leaves select the nodes of an
+ * {@link TraceDb#indexType(String) indexed type}, publisher, license or
+ * language, and can be combined with {@link #and(IndexQuery...) and},
+ * {@link #or(IndexQuery...) or} and {@link #not(IndexQuery) not}. For
+ * example, nodes of type X from publisher Y under license Z are selected by
+ *
+ * <pre>
+ * IndexQuery.and(IndexQuery.type(&quot;X&quot;), IndexQuery.publisher(Y), IndexQuery.license(&quot;Z&quot;))
+ * </pre>
+ *
+ * Queries are evaluated over compressed bitmaps of node ids, so their cost
+ * depends on the size of the posting lists involved and not on the number of
+ * nodes to read.
+ *
+ * @author David Leoni
+ */
+public abstract class IndexQuery {
+
+    IndexQuery() {
+    }
+
+    /**
+     * Returns the ids of the nodes selected by the query
+     */
+    abstract IdBitmap evaluate(TraceDb db);
+
+    /**
+     * Selects all the nodes in the db.
+     */
+    public static IndexQuery all() {
+        return new Postings(MetadataIndex.ALL_KEY);
+    }
+
+    /**
+     * Selects the nodes whose raw value is an instance of provided type, which
+     * must be indexed (see {@link TraceDb#indexType(String)}).
+     */
+    public static IndexQuery type(final String typeId) {
+        checkNotEmpty(typeId, "Invalid TraceType id!");
+        return new IndexQuery() {
+            @Override
+            IdBitmap evaluate(TraceDb db) {
+                return db.typeIds(typeId);
+            }
+
+            @Override
+            public String toString() {
+                return "type:" + typeId;
+            }
+        };
+    }
+
+    /**
+     * Selects the nodes from provided publisher
+     */
+    public static IndexQuery publisher(long publisherId) {
+        checkArgument(publisherId >= 0, "Invalid publisher id: %s", publisherId);
+        return new Postings(MetadataIndex.publisherKey(publisherId));
+    }
+
+    /**
+     * Selects the nodes under provided license
+     */
+    public static IndexQuery license(String license) {
+        return new Postings(MetadataIndex.licenseKey(license));
+    }
+
+    /**
+     * Selects the nodes in provided language
+     */
+    public static IndexQuery language(Locale language) {
+        return new Postings(MetadataIndex.languageKey(language));
+    }
+
+    /**
+     * Selects the nodes selected by all provided queries.
+     */
+    public static IndexQuery and(IndexQuery... queries) {
+        return and(Arrays.asList(queries));
+    }
+
+    /**
+     * Selects the nodes selected by all provided queries.
+     */
+    public static IndexQuery and(Iterable<IndexQuery> queries) {
+        return new And(queries);
+    }
+
+    /**
+     * Selects the nodes selected by at least one of provided queries.
+     */
+    public static IndexQuery or(IndexQuery... queries) {
+        return or(Arrays.asList(queries));
+    }
+
+    /**
+     * Selects the nodes selected by at least one of provided queries.
+     */
+    public static IndexQuery or(Iterable<IndexQuery> queries) {
+        return new Or(queries);
+    }
+
+    /**
+     * Selects the nodes in the db not selected by provided query.
+     */
+    public static IndexQuery not(IndexQuery query) {
+        return new Not(query);
+    }
+
+    private static final class Postings extends IndexQuery {
+        private final String key;
+
+        Postings(String key) {
+            this.key = key;
+        }
+
+        @Override
+        IdBitmap evaluate(TraceDb db) {
+            return db.postings(key);
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    private static final class And extends IndexQuery {
+        private final ImmutableList<IndexQuery> queries;
+
+        And(Iterable<IndexQuery> queries) {
+            this.queries = ImmutableList.copyOf(queries);
+            checkArgument(!this.queries.isEmpty(), "And needs at least one query!");
+        }
+
+        /**
+         * Intersects positive operands from the smallest, stopping as soon as
+         * the result is empty, and then subtracts negated operands.
+         */
+        @Override
+        IdBitmap evaluate(TraceDb db) {
+            List<IdBitmap> positives = new ArrayList<>();
+            List<IndexQuery> negatives = new ArrayList<>();
+            for (IndexQuery query : queries) {
+                if (query instanceof Not) {
+                    negatives.add(((Not) query).query);
+                } else {
+                    positives.add(query.evaluate(db));
+                }
+            }
+            IdBitmap ret;
+            if (positives.isEmpty()) {
+                ret = db.postings(MetadataIndex.ALL_KEY);
+            } else {
+                Collections.sort(positives, new Comparator<IdBitmap>() {
+                    @Override
+                    public int compare(IdBitmap o1, IdBitmap o2) {
+                        return Long.compare(o1.getCardinality(), o2.getCardinality());
+                    }
+                });
+                ret = positives.get(0);
+                for (int i = 1; i < positives.size() && !ret.isEmpty(); i++) {
+                    ret = ret.and(positives.get(i));
+                }
+            }
+            for (IndexQuery negative : negatives) {
+                if (ret.isEmpty()) {
+                    break;
+                }
+                ret = ret.andNot(negative.evaluate(db));
+            }
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Joiner.on(" AND ")
+                               .join(queries)
+                    + ")";
+        }
+    }
+
+    private static final class Or extends IndexQuery {
+        private final ImmutableList<IndexQuery> queries;
+
+        Or(Iterable<IndexQuery> queries) {
+            this.queries = ImmutableList.copyOf(queries);
+            checkArgument(!this.queries.isEmpty(), "Or needs at least one query!");
+        }
+
+        @Override
+        IdBitmap evaluate(TraceDb db) {
+            IdBitmap ret = queries.get(0)
+                                  .evaluate(db);
+            for (int i = 1; i < queries.size(); i++) {
+                ret = ret.or(queries.get(i)
+                                    .evaluate(db));
+            }
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Joiner.on(" OR ")
+                               .join(queries)
+                    + ")";
+        }
+    }
+
+    private static final class Not extends IndexQuery {
+        private final IndexQuery query;
+
+        Not(IndexQuery query) {
+            this.query = checkNotNull(query);
+        }
+
+        @Override
+        IdBitmap evaluate(TraceDb db) {
+            return db.postings(MetadataIndex.ALL_KEY)
+                     .andNot(query.evaluate(db));
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + query;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package eu.trentorise.opendata.traceprov.db;
+
+/**
+ * The kind of change recorded by a {@link LogRecord} in the TraceDb log.
+ *
+ * @author David Leoni
+ */
+enum LogOp {
+
+    /** A node was created, record holds the node as stored in the db */
+    CREATE,
+
+    /**
+     * Many nodes were created at once, record holds the nodes as stored in
+     * the db
+     */
+    CREATE_BATCH,
+
+    /** Some ids were put in the same sameas clique */
+    SAME_AS,
+
+    /** A node was set as main node of its sameas clique */
+    MAIN_NODE,
+
+    /** An url prefix was stored */
+    PREFIX,
+
+    /** A type was declared as indexed */
+    INDEX_TYPE,
+
+    /**
+     * New versions of some nodes were stored, record holds the nodes as
+     * stored in the db
+     */
+    UPDATE,
+
+    /**
+     * Some nodes were overwritten without keeping their current version,
+     * record holds the nodes as stored in the db
+     */
+    HARD_UPDATE
+}
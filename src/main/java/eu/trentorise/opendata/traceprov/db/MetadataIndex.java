@@ -0,0 +1,155 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.trentorise.opendata.traceprov.data.NodeMetadata;
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * Posting lists of stored node ids by publisher, license and language of
+ * their {@link NodeMetadata}, plus the list of all stored ids, held as
+ * {@link IdBitmap IdBitmaps} so they can be combined by {@link IndexQuery}.
+ * Each posting list is identified by a string key, see
+ * {@link #publisherKey(long)}, {@link #licenseKey(String)} and
+ * {@link #languageKey(Locale)}.
+ *
+ * <p>
+ * The index is thread safe: each bitmap is guarded by itself, and readers
+ * get copies.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class MetadataIndex {
+
+    /**
+     * Key of the posting list of all stored ids
+     */
+    static final String ALL_KEY = "all";
+
+    private final ConcurrentMap<String, IdBitmap> postings = new ConcurrentHashMap<>();
+
+    static String publisherKey(long publisherId) {
+        return "publisher:" + publisherId;
+    }
+
+    static String licenseKey(String license) {
+        return "license:" + checkNotNull(license);
+    }
+
+    static String languageKey(Locale language) {
+        return "language:" + checkNotNull(language).toLanguageTag();
+    }
+
+    private IdBitmap bitmap(String key) {
+        IdBitmap ret = postings.get(key);
+        if (ret == null) {
+            IdBitmap newBitmap = new IdBitmap();
+            ret = postings.putIfAbsent(key, newBitmap);
+            if (ret == null) {
+                ret = newBitmap;
+            }
+        }
+        return ret;
+    }
+
+    private void add(String key, long id) {
+        IdBitmap bitmap = bitmap(key);
+        synchronized (bitmap) {
+            bitmap.add(id);
+        }
+    }
+
+    /**
+     * Keys of the posting lists of the metadata of provided node, except
+     * {@link #ALL_KEY}
+     */
+    private static List<String> keys(TraceData node) {
+        NodeMetadata metadata = node.getMetadata();
+        return ImmutableList.of(publisherKey(metadata.getPublisherId()), licenseKey(metadata.getLicense()),
+                languageKey(metadata.getLanguage()));
+    }
+
+    /**
+     * Adds provided nodes to the posting lists of their metadata.
+     */
+    void addAll(List<? extends TraceData> nodes) {
+        for (TraceData node : nodes) {
+            add(ALL_KEY, node.getId());
+            for (String key : keys(node)) {
+                add(key, node.getId());
+            }
+        }
+    }
+
+    /**
+     * Moves the id of an updated node from the posting lists of the metadata
+     * of its previous version to the ones of its new version.
+     */
+    void update(TraceData prev, TraceData node) {
+        List<String> prevKeys = keys(prev);
+        List<String> keys = keys(node);
+        for (String key : prevKeys) {
+            IdBitmap bitmap = postings.get(key);
+            if (!keys.contains(key) && bitmap != null) {
+                synchronized (bitmap) {
+                    bitmap.remove(node.getId());
+                }
+            }
+        }
+        for (String key : keys) {
+            if (!prevKeys.contains(key)) {
+                add(key, node.getId());
+            }
+        }
+    }
+
+    /**
+     * Adds provided ids to the posting list with given key.
+     */
+    void addAll(String key, IdBitmap ids) {
+        IdBitmap bitmap = bitmap(key);
+        synchronized (bitmap) {
+            for (Long id : ids) {
+                bitmap.add(id);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the posting list with given key, which is empty if
+     * there is no such list.
+     */
+    IdBitmap get(String key) {
+        IdBitmap bitmap = postings.get(key);
+        if (bitmap == null) {
+            return new IdBitmap();
+        }
+        synchronized (bitmap) {
+            return bitmap.copy();
+        }
+    }
+
+    /**
+     * Returns a copy of the index, as a map from keys to posting lists.
+     */
+    Map<String, IdBitmap> copy() {
+        Map<String, IdBitmap> ret = new HashMap<>();
+        for (Map.Entry<String, IdBitmap> entry : postings.entrySet()) {
+            synchronized (entry.getValue()) {
+                ret.put(entry.getKey(), entry.getValue()
+                                             .copy());
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,152 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * Cache of nodes read from disk, bounded both by number of nodes and by their
+ * estimated heap size. Eviction is approximately least recently used.
+ *
+ * <p>
+ * Both bounds are enforced with a single weight: each node weighs its
+ * estimated bytes, but at least {@code maxBytes / maxNodes}, so no more than
+ * {@code maxNodes} nodes fit in the cache. As the cache is split into
+ * independently evicted segments, concurrency level never exceeds
+ * {@code maxNodes}, so every node weighs no more than a segment capacity.
+ * </p>
+ *
+ * <p>
+ * Current versions of nodes are cached by id, while old versions (see
+ * {@link VersionStore}) are cached by their entry in the segment holding
+ * them.
+ * </p>
+ *
+ * <p>
+ * Cached nodes are shared among all readers, which is safe as
+ * {@link TraceData} nodes are immutable and {@link NodeCodec} decodes map and
+ * array raw values into unmodifiable collections.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class NodeCache {
+
+    /**
+     * Rough ratio between the heap size of a decoded node and the size of its
+     * json encoding.
+     */
+    static final int HEAP_BYTES_PER_ENCODED_BYTE = 3;
+
+    static final int CONCURRENCY_LEVEL = 4;
+
+    private static final class Weighed {
+        private final TraceData node;
+        private final int weight;
+
+        Weighed(TraceData node, int weight) {
+            this.node = node;
+            this.weight = weight;
+        }
+    }
+
+    private final Cache<Object, Weighed> cache;
+    private final long minWeight;
+
+    /**
+     * @param maxNodes
+     *            maximum number of cached nodes
+     * @param maxBytes
+     *            maximum estimated bytes of cached nodes
+     */
+    NodeCache(long maxNodes, long maxBytes) {
+        checkArgument(maxNodes >= 0, "Invalid max number of nodes: %s", maxNodes);
+        checkArgument(maxBytes >= 0, "Invalid max bytes: %s", maxBytes);
+        this.minWeight = maxNodes == 0 ? Integer.MAX_VALUE : Math.max(1, maxBytes / maxNodes);
+        this.cache = CacheBuilder.newBuilder()
+                                 .concurrencyLevel((int) Math.max(1, Math.min(CONCURRENCY_LEVEL, maxNodes)))
+                                 .maximumWeight(maxNodes == 0 ? 0 : maxBytes)
+                                 .weigher(new Weigher<Object, Weighed>() {
+                                     @Override
+                                     public int weigh(Object key, Weighed value) {
+                                         return value.weight;
+                                     }
+                                 })
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * Returns the cached node with given id, or null if not cached.
+     */
+    @Nullable
+    TraceData getIfPresent(long id) {
+        return get(id);
+    }
+
+    /**
+     * Returns the cached version stored at provided entry, or null if not
+     * cached.
+     */
+    @Nullable
+    TraceData getIfPresent(NodeSegment.Entry entry) {
+        return get(entry);
+    }
+
+    @Nullable
+    private TraceData get(Object key) {
+        Weighed ret = cache.getIfPresent(key);
+        return ret == null ? null : ret.node;
+    }
+
+    /**
+     * Caches provided node.
+     *
+     * @param encodedBytes
+     *            the length of the encoded node, used to estimate its heap
+     *            size.
+     */
+    void put(TraceData node, int encodedBytes) {
+        checkNotNull(node);
+        put(node.getId(), node, encodedBytes);
+    }
+
+    /**
+     * Caches provided version, stored at given entry.
+     *
+     * @see #put(TraceData, int)
+     */
+    void put(NodeSegment.Entry entry, TraceData version) {
+        checkNotNull(entry);
+        checkNotNull(version);
+        put(entry, version, entry.bytes());
+    }
+
+    private void put(Object key, TraceData node, int encodedBytes) {
+        long estimate = (long) encodedBytes * HEAP_BYTES_PER_ENCODED_BYTE;
+        int weight = (int) Math.min(Integer.MAX_VALUE, Math.max(estimate, minWeight));
+        cache.put(key, new Weighed(node, weight));
+    }
+
+    /**
+     * Number of cached nodes
+     */
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Hit, miss and eviction counters.
+     */
+    CacheStats stats() {
+        return cache.stats();
+    }
+}
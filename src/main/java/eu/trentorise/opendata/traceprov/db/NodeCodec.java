@@ -0,0 +1,155 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import eu.trentorise.opendata.commons.validation.Ref;
+import eu.trentorise.opendata.traceprov.data.DataArray;
+import eu.trentorise.opendata.traceprov.data.DataMap;
+import eu.trentorise.opendata.traceprov.data.DataObject;
+import eu.trentorise.opendata.traceprov.data.DataValue;
+import eu.trentorise.opendata.traceprov.data.NodeMetadata;
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.exceptions.TraceProvException;
+
+/**
+ * Converts stored {@link TraceData} nodes to/from json trees. Differently from
+ * plain Jackson serialization, the encoding remembers both the kind of node
+ * and the Java class of the raw value, so nodes can be faithfully rebuilt
+ * when the db is loaded.
+ *
+ * @author David Leoni
+ */
+final class NodeCodec {
+
+    static final String KIND = "kind";
+    static final String ID = "id";
+    static final String REF = "ref";
+    static final String METADATA = "metadata";
+    static final String RAW_VALUE_CLASS = "rawValueClass";
+    static final String RAW_VALUE = "rawValue";
+
+    private NodeCodec() {
+    }
+
+    /**
+     * Encodes provided node as a json tree.
+     */
+    static ObjectNode encode(TraceData node, ObjectMapper om) {
+        checkNotNull(node);
+        ObjectNode ret = om.createObjectNode();
+        ret.put(KIND, node.getClass()
+                          .getSimpleName());
+        ret.put(ID, node.getId());
+        ret.set(REF, om.valueToTree(node.getRef()));
+        ret.set(METADATA, om.valueToTree(node.getMetadata()));
+        Object rawValue = node.getRawValue();
+        if (rawValue != null && !(rawValue instanceof Map) && !(rawValue instanceof List)) {
+            ret.put(RAW_VALUE_CLASS, rawValue.getClass()
+                                             .getName());
+        }
+        ret.set(RAW_VALUE, om.valueToTree(rawValue));
+        return ret;
+    }
+
+    /**
+     * Rebuilds a node previously encoded with
+     * {@link #encode(TraceData, ObjectMapper)}
+     *
+     * @throws TraceProvException
+     *             if the node can't be decoded.
+     */
+    static TraceData decode(JsonNode json, ObjectMapper om) {
+        checkNotNull(json);
+        try {
+            String kind = json.get(KIND)
+                              .asText();
+            TraceData.Builder builder = builder(kind);
+            builder.setId(json.get(ID)
+                              .asLong());
+            builder.setRef(om.treeToValue(json.get(REF), Ref.class));
+            builder.setMetadata(om.treeToValue(json.get(METADATA), NodeMetadata.class));
+            builder.setRawValue(decodeRawValue(kind, json, om));
+            return builder.build();
+        } catch (TraceProvException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new TraceProvException("Couldn't decode stored node: " + json, ex);
+        }
+    }
+
+    private static TraceData.Builder builder(String kind) {
+        if (DataValue.class.getSimpleName()
+                           .equals(kind)) {
+            return DataValue.builder();
+        } else if (DataMap.class.getSimpleName()
+                                .equals(kind)) {
+            return DataMap.builder();
+        } else if (DataArray.class.getSimpleName()
+                                  .equals(kind)) {
+            return DataArray.builder();
+        } else if (DataObject.class.getSimpleName()
+                                   .equals(kind)) {
+            return DataObject.builder();
+        } else {
+            throw new TraceProvException("Unsupported stored node kind: " + kind);
+        }
+    }
+
+    /**
+     * Maps and arrays, also when held by plain values, are rebuilt with
+     * Jackson default collections, as their original classes might not be
+     * deserializable (i.e. {@code Arrays.asList} or the immutable collections
+     * made by {@link ValueInterner}), and then made unmodifiable.
+     */
+    private static Object decodeRawValue(String kind, JsonNode json, ObjectMapper om) throws Exception {
+        JsonNode rawValue = json.get(RAW_VALUE);
+        if (rawValue == null || rawValue.isNull()) {
+            return null;
+        }
+        if (DataMap.class.getSimpleName()
+                         .equals(kind)) {
+            return freeze(om.treeToValue(rawValue, Map.class));
+        }
+        if (DataArray.class.getSimpleName()
+                           .equals(kind)) {
+            return freeze(om.treeToValue(rawValue, List.class));
+        }
+        JsonNode rawValueClass = json.get(RAW_VALUE_CLASS);
+        if (rawValueClass == null) {
+            return freeze(om.treeToValue(rawValue, Object.class));
+        }
+        return om.treeToValue(rawValue, Class.forName(rawValueClass.asText()));
+    }
+
+    /**
+     * Recursively wraps the maps and lists created by Jackson into
+     * unmodifiable views, so decoded nodes can be safely shared among threads.
+     */
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                entry.setValue(freeze(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(map);
+        }
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            for (ListIterator<Object> iter = list.listIterator(); iter.hasNext();) {
+                iter.set(freeze(iter.next()));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        return value;
+    }
+
+}
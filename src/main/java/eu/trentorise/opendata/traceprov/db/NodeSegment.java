@@ -0,0 +1,479 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.exceptions.TraceProvException;
+
+/**
+ * An immutable segment file of stored nodes, written by checkpoints. Layout
+ * is:
+ *
+ * <pre>
+ * record*  footer-entry*  footer-offset:long  entry-count:int  magic:int
+ * </pre>
+ *
+ * where each record is a length prefixed node encoded by {@link NodeCodec}
+ * and each footer entry holds id, publisher id, timestamp, content
+ * fingerprint (see {@link ContentHash}), url, offset and length of a record.
+ * Ids, publisher ids, timestamps, fingerprints and urls can so be indexed
+ * reading only the footer, and records are read from a memory mapped buffer
+ * without parsing the rest of the file. Segments written before timestamps
+ * (see {@link #MAGIC_V1}) or fingerprints (see {@link #MAGIC_V2}) were added
+ * to the footer are still readable.
+ *
+ * <p>
+ * Segments written with deduplication (see {@link #MAGIC_DEDUP}) store raw
+ * values content-addressed: records hold nodes without their raw value, and
+ * raw values are length prefixed records of their own, written once per
+ * distinct serialized value and referenced by the footer entries of all the
+ * nodes having it.
+ * </p>
+ *
+ * <p>
+ * Segments of versions (see {@link #MAGIC_VERSIONS}) hold the versions of
+ * updated nodes written by a checkpoint (see {@link VersionStore}): footer
+ * entries also hold the commit sequence number and the position in the
+ * history of each version, and entries of the same node are consecutive,
+ * oldest version first.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class NodeSegment {
+
+    /**
+     * "TRS3"
+     */
+    static final int MAGIC = 0x54525333;
+
+    /**
+     * "TRS4", segments with deduplicated raw values, whose footer entries
+     * also hold offset and length of the raw value record
+     */
+    static final int MAGIC_DEDUP = 0x54525334;
+
+    /**
+     * "TRS5", segments of node versions, whose footer entries also hold
+     * commit sequence number and history position of the version
+     */
+    static final int MAGIC_VERSIONS = 0x54525335;
+
+    /**
+     * "TRS2", segments whose footer entries have no fingerprint
+     */
+    static final int MAGIC_V2 = 0x54525332;
+
+    /**
+     * "TRDS", segments whose footer entries have no timestamp
+     */
+    static final int MAGIC_V1 = 0x54524453;
+
+    /**
+     * Footer timestamp of nodes without a timestamp
+     */
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    static final String PREFIX = "segment-";
+    static final String SUFFIX = ".dat";
+
+    private static final int TAIL_SIZE = 8 + 4 + 4;
+
+    /**
+     * Addresses deduplicated raw values by their serialized bytes
+     */
+    private static final HashFunction VALUE_HASH = Hashing.murmur3_128();
+
+    /**
+     * Position of a node record inside a segment
+     */
+    static final class Entry {
+        final long id;
+        final long publisherId;
+        /**
+         * Timestamp in millisecs, or {@link #NO_TIMESTAMP}
+         */
+        final long timestamp;
+        /**
+         * Content fingerprint, or {@link ContentHash#UNKNOWN}
+         */
+        final long fingerprint;
+        final String url;
+        final int offset;
+        final int length;
+        /**
+         * Offset of the raw value record, or -1 if the raw value is in the
+         * node record
+         */
+        final int valueOffset;
+        final int valueLength;
+        /**
+         * Commit sequence number of the version, or -1 if the entry is not
+         * a version
+         */
+        final long seq;
+        /**
+         * Position of the version in the history of the node, or -1 if the
+         * entry is not a version
+         */
+        final int index;
+
+        Entry(long id, long publisherId, long timestamp, long fingerprint, String url, int offset, int length,
+                int valueOffset, int valueLength, long seq, int index) {
+            this.id = id;
+            this.publisherId = publisherId;
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.seq = seq;
+            this.index = index;
+        }
+
+        /**
+         * Bytes of the records of the node
+         */
+        int bytes() {
+            return valueOffset == -1 ? length : length + valueLength;
+        }
+    }
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final ImmutableList<Entry> entries;
+    private final boolean timestamps;
+
+    private NodeSegment(File file, ByteBuffer buffer, ImmutableList<Entry> entries, boolean timestamps) {
+        this.file = file;
+        this.buffer = buffer;
+        this.entries = entries;
+        this.timestamps = timestamps;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns false if the segment has the old layout without timestamps, in
+     * which case the timestamps of the entries are {@link #NO_TIMESTAMP} and
+     * the real ones must be read from the nodes.
+     */
+    boolean hasTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * The footer entries, in id order.
+     */
+    ImmutableList<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the entry of the node with provided id. In segments of
+     * versions, returns the entry of its last version.
+     *
+     * @throws TraceProvException
+     *             if the segment doesn't contain the id.
+     */
+    Entry find(long id) {
+        int lo = 0;
+        int hi = entries.size() - 1;
+        Entry ret = null;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Entry entry = entries.get(mid);
+            if (entry.id <= id) {
+                if (entry.id == id) {
+                    ret = entry;
+                }
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (ret == null) {
+            throw new TraceProvException("Couldn't find node " + id + " in segment " + file.getAbsolutePath());
+        }
+        return ret;
+    }
+
+    /**
+     * Decodes the node stored at provided entry.
+     */
+    TraceData read(Entry entry, ObjectMapper om) {
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(entry.offset + 4);
+        byte[] bytes = new byte[entry.length];
+        buf.get(bytes);
+        try {
+            JsonNode json = om.readTree(bytes);
+            if (entry.valueOffset != -1) {
+                byte[] value = new byte[entry.valueLength];
+                buf.position(entry.valueOffset + 4);
+                buf.get(value);
+                ((ObjectNode) json).set(NodeCodec.RAW_VALUE, om.readTree(value));
+            }
+            return NodeCodec.decode(json, om);
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read node " + entry.id + " from segment " + file.getAbsolutePath(),
+                    ex);
+        }
+    }
+
+    /**
+     * Memory maps provided segment file and reads its footer.
+     *
+     * @throws TraceProvException
+     *             if the segment is corrupted
+     */
+    static NodeSegment open(File file) {
+        checkNotNull(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size < TAIL_SIZE) {
+                throw new TraceProvException("Segment file is too short: " + file.getAbsolutePath());
+            }
+            MappedByteBuffer buffer = raf.getChannel()
+                                         .map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.position((int) size - TAIL_SIZE);
+            long footerOffset = buffer.getLong();
+            int count = buffer.getInt();
+            int magic = buffer.getInt();
+            if (magic != MAGIC && magic != MAGIC_DEDUP && magic != MAGIC_VERSIONS && magic != MAGIC_V2
+                    && magic != MAGIC_V1) {
+                throw new TraceProvException("Bad magic number in segment file " + file.getAbsolutePath());
+            }
+
+            ImmutableList.Builder<Entry> entriesb = ImmutableList.builder();
+            buffer.position((int) footerOffset);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                long publisherId = buffer.getLong();
+                long timestamp = magic == MAGIC_V1 ? NO_TIMESTAMP : buffer.getLong();
+                long fingerprint = magic == MAGIC_V2 || magic == MAGIC_V1 ? ContentHash.UNKNOWN : buffer.getLong();
+                byte[] url = new byte[buffer.getInt()];
+                buffer.get(url);
+                int offset = buffer.getInt();
+                int length = buffer.getInt();
+                int valueOffset = -1;
+                int valueLength = 0;
+                if (magic == MAGIC_DEDUP) {
+                    valueOffset = buffer.getInt();
+                    valueLength = buffer.getInt();
+                }
+                long seq = -1;
+                int index = -1;
+                if (magic == MAGIC_VERSIONS) {
+                    seq = buffer.getLong();
+                    index = buffer.getInt();
+                }
+                entriesb.add(new Entry(id, publisherId, timestamp, fingerprint, new String(url, Charsets.UTF_8),
+                        offset, length, valueOffset, valueLength, seq, index));
+            }
+            return new NodeSegment(file, buffer, entriesb.build(), magic != MAGIC_V1);
+        } catch (IOException | RuntimeException ex) {
+            if (ex instanceof TraceProvException) {
+                throw (TraceProvException) ex;
+            }
+            throw new TraceProvException("Couldn't open segment file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Returns the timestamp of provided node in millisecs, or
+     * {@link #NO_TIMESTAMP} if it has none.
+     */
+    static long timestamp(TraceData node) {
+        Timestamp timestamp = node.getMetadata()
+                                  .getTimestamp();
+        return timestamp == null ? NO_TIMESTAMP : timestamp.getTime();
+    }
+
+    /**
+     * Writes provided nodes, sorted by id, to new segment files in
+     * {@code folder}. A segment is closed as soon as it reaches
+     * {@code maxSegmentBytes}, so only segments holding a single big node can
+     * exceed it.
+     *
+     * @param fingerprints
+     *            the content fingerprints of {@code nodes}, in the same order.
+     *            Unknown ones are computed.
+     * @param dedup
+     *            if true, equal serialized raw values in a segment are
+     *            written once
+     * @return the names of the written segment files
+     */
+    static List<String> write(File folder, List<TraceData> nodes, long[] fingerprints, long maxSegmentBytes,
+            boolean dedup, ObjectMapper om) {
+        checkNotNull(folder);
+        checkNotNull(nodes);
+        checkArgument(fingerprints.length == nodes.size(), "Expected %s fingerprints, found %s", nodes.size(),
+                fingerprints.length);
+        checkArgument(maxSegmentBytes > 0 && maxSegmentBytes <= Integer.MAX_VALUE,
+                "Segment size must be positive and less than 2GB, found instead %s", maxSegmentBytes);
+
+        List<String> ret = new ArrayList<>();
+        int i = 0;
+        while (i < nodes.size()) {
+            String name = PREFIX + nodes.get(i)
+                                        .getId()
+                    + SUFFIX;
+            File file = new File(folder, name);
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                ByteArrayOutputStream footer = new ByteArrayOutputStream();
+                DataOutputStream footerOut = new DataOutputStream(footer);
+                int count = 0;
+                Map<HashCode, int[]> values = new HashMap<>();
+                while (i < nodes.size()) {
+                    TraceData node = nodes.get(i);
+                    ObjectNode json = NodeCodec.encode(node, om);
+                    byte[] value = null;
+                    int[] valuePos = null;
+                    if (dedup) {
+                        value = om.writeValueAsBytes(json.remove(NodeCodec.RAW_VALUE));
+                        valuePos = values.get(VALUE_HASH.hashBytes(value));
+                    }
+                    byte[] bytes = om.writeValueAsBytes(json);
+                    long recordBytes = 4 + bytes.length + (value != null && valuePos == null ? 4 + value.length : 0);
+                    if (count > 0 && out.size() + recordBytes > maxSegmentBytes) {
+                        break;
+                    }
+                    if (value != null && valuePos == null) {
+                        valuePos = new int[] { out.size(), value.length };
+                        values.put(VALUE_HASH.hashBytes(value), valuePos);
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                    writeFooterEntry(footerOut, node, fingerprints[i] == ContentHash.UNKNOWN
+                            ? ContentHash.of(node, om) : fingerprints[i], out.size(), bytes.length);
+                    if (dedup) {
+                        footerOut.writeInt(valuePos[0]);
+                        footerOut.writeInt(valuePos[1]);
+                    }
+
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    count += 1;
+                    i += 1;
+                }
+                long footerOffset = out.size();
+                footerOut.flush();
+                footer.writeTo(out);
+                out.writeLong(footerOffset);
+                out.writeInt(count);
+                out.writeInt(dedup ? MAGIC_DEDUP : MAGIC);
+                out.flush();
+                fos.getFD()
+                   .sync();
+            } catch (IOException ex) {
+                throw new TraceProvException("Couldn't write segment file " + file.getAbsolutePath(), ex);
+            }
+            ret.add(name);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes provided versions of nodes to a new segment file (see
+     * {@link #MAGIC_VERSIONS}). Versions must be sorted by id and, for the
+     * same id, by position in the history. Fingerprints are only computed for
+     * the last version of each node, as older ones are never compared by
+     * content.
+     *
+     * @param seqs
+     *            the commit sequence numbers of {@code versions}, in the same
+     *            order
+     * @param indexes
+     *            the positions of {@code versions} in the histories of their
+     *            nodes, in the same order
+     */
+    static void writeVersions(File file, List<TraceData> versions, long[] seqs, int[] indexes, ObjectMapper om) {
+        checkNotNull(file);
+        checkNotNull(versions);
+        checkArgument(seqs.length == versions.size() && indexes.length == versions.size(),
+                "Expected %s sequence numbers and indexes, found %s and %s", versions.size(), seqs.length,
+                indexes.length);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream footerOut = new DataOutputStream(footer);
+            for (int i = 0; i < versions.size(); i++) {
+                TraceData version = versions.get(i);
+                checkArgument(i == 0 || versions.get(i - 1)
+                                                .getId() <= version.getId(),
+                        "Versions are not sorted by id!");
+                boolean last = i == versions.size() - 1 || versions.get(i + 1)
+                                                                   .getId() != version.getId();
+                byte[] bytes = om.writeValueAsBytes(NodeCodec.encode(version, om));
+                writeFooterEntry(footerOut, version, last ? ContentHash.of(version, om) : ContentHash.UNKNOWN,
+                        out.size(), bytes.length);
+                footerOut.writeLong(seqs[i]);
+                footerOut.writeInt(indexes[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            long footerOffset = out.size();
+            footerOut.flush();
+            footer.writeTo(out);
+            out.writeLong(footerOffset);
+            out.writeInt(versions.size());
+            out.writeInt(MAGIC_VERSIONS);
+            out.flush();
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write versions segment file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Writes the fields common to the footer entries of all segments.
+     */
+    private static void writeFooterEntry(DataOutputStream footerOut, TraceData node, long fingerprint, int offset,
+            int length) throws IOException {
+        byte[] url = node.getRef()
+                         .uri()
+                         .getBytes(Charsets.UTF_8);
+        footerOut.writeLong(node.getId());
+        footerOut.writeLong(node.getMetadata()
+                                .getPublisherId());
+        footerOut.writeLong(timestamp(node));
+        footerOut.writeLong(fingerprint);
+        footerOut.writeInt(url.length);
+        footerOut.write(url);
+        footerOut.writeInt(offset);
+        footerOut.writeInt(length);
+    }
+}
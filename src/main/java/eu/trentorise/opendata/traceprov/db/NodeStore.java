@@ -0,0 +1,274 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * Holds the nodes of a TraceDb by id. Nodes can either be on the heap or
+ * stay in the {@link NodeSegment} where they were checkpointed: in the latter
+ * case they are decoded on first access and kept in a {@link NodeCache}.
+ *
+ * <p>
+ * As ids are dense, both kinds of nodes are indexed with {@link PagedArray
+ * PagedArrays}, so lookups need no boxing and there is no per-node entry
+ * object.
+ * </p>
+ *
+ * <p>
+ * The store is thread safe and never locks on reads.
+ * </p>
+ *
+ * <p>
+ * For each node the store also keeps the sequence number of the change which
+ * committed it, so snapshots of the db (see {@link TraceDbSnapshot}) can tell
+ * which nodes they are allowed to see.
+ * </p>
+ *
+ * <p>
+ * Content fingerprints of nodes (see {@link ContentHash}) are kept too, so
+ * contents of nodes on disk can be compared without decoding them.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class NodeStore {
+
+    /**
+     * Nodes on the heap
+     */
+    private final PagedArray<TraceData> nodes;
+
+    /**
+     * Segments of the nodes not loaded on the heap
+     */
+    private final PagedArray<NodeSegment> onDisk;
+
+    /**
+     * Commit sequence numbers plus one, zero for nodes not yet committed
+     */
+    private final AtomicPagedLongArray commitSeqs;
+
+    /**
+     * Content fingerprints, {@link ContentHash#UNKNOWN} if not computed yet
+     */
+    private final AtomicPagedLongArray fingerprints;
+
+    /**
+     * Recently read nodes from {@link #onDisk}
+     */
+    private final NodeCache cache;
+
+    private final AtomicLong size;
+
+    /**
+     * Deduplicates raw values of nodes decoded from disk, if not null
+     */
+    @Nullable
+    private final ValueInterner interner;
+
+    /**
+     * @param cacheNodes
+     *            the maximum number of nodes decoded from disk to keep cached
+     * @param cacheBytes
+     *            the maximum estimated bytes of nodes decoded from disk to
+     *            keep cached
+     */
+    NodeStore(long cacheNodes, long cacheBytes) {
+        this(cacheNodes, cacheBytes, null);
+    }
+
+    /**
+     * @param interner
+     *            if not null, deduplicates the raw values of nodes decoded
+     *            from disk
+     * @see #NodeStore(long, long)
+     */
+    NodeStore(long cacheNodes, long cacheBytes, @Nullable ValueInterner interner) {
+        this.nodes = new PagedArray<>();
+        this.onDisk = new PagedArray<>();
+        this.commitSeqs = new AtomicPagedLongArray();
+        this.fingerprints = new AtomicPagedLongArray();
+        this.cache = new NodeCache(cacheNodes, cacheBytes);
+        this.size = new AtomicLong(0);
+        this.interner = interner;
+    }
+
+    /**
+     * Puts provided node on the heap, replacing any previous version of it.
+     */
+    void put(TraceData node) {
+        checkNotNull(node);
+        long id = node.getId();
+        if (nodes.getAndSet(id, node) == null && onDisk.get(id) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records node with given id can be read from provided segment.
+     */
+    void putOnDisk(long id, NodeSegment segment) {
+        checkNotNull(segment);
+        if (onDisk.getAndSet(id, segment) == null && nodes.get(id) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the node with given id, or null if not present.
+     */
+    @Nullable
+    TraceData get(long id, ObjectMapper om) {
+        TraceData ret = nodes.get(id);
+        if (ret != null) {
+            return ret;
+        }
+        NodeSegment segment = onDisk.get(id);
+        if (segment == null) {
+            return null;
+        }
+        ret = cache.getIfPresent(id);
+        if (ret != null) {
+            return ret;
+        }
+        NodeSegment.Entry entry = segment.find(id);
+        ret = segment.read(entry, om);
+        if (interner != null) {
+            ret = interner.intern(ret);
+        }
+        cache.put(ret, entry.bytes());
+        return ret;
+    }
+
+    /**
+     * Returns the node of provided version, decoding it if it was left on
+     * disk.
+     */
+    TraceData get(VersionStore.Version version, ObjectMapper om) {
+        if (version.node != null) {
+            return version.node;
+        }
+        TraceData ret = cache.getIfPresent(version.entry);
+        if (ret != null) {
+            return ret;
+        }
+        ret = version.segment.read(version.entry, om);
+        if (interner != null) {
+            ret = interner.intern(ret);
+        }
+        cache.put(version.entry, ret);
+        return ret;
+    }
+
+    /**
+     * Records the node with given id was committed by the change with
+     * provided sequence number.
+     */
+    void commit(long id, long seq) {
+        checkArgument(seq >= 0, "Invalid sequence number: %s", seq);
+        commitSeqs.set(id, seq + 1);
+    }
+
+    /**
+     * Returns the sequence number of the change which committed node with
+     * given id, or -1 if it is not committed.
+     */
+    long commitSeq(long id) {
+        return commitSeqs.get(id) - 1;
+    }
+
+    /**
+     * Sets the content fingerprint of the node with given id.
+     */
+    void putFingerprint(long id, long fingerprint) {
+        fingerprints.set(id, fingerprint);
+    }
+
+    /**
+     * Returns the content fingerprint of the node with given id, or
+     * {@link ContentHash#UNKNOWN} if it was not computed yet.
+     */
+    long fingerprint(long id) {
+        return fingerprints.get(id);
+    }
+
+    /**
+     * Returns the node with given id if it was committed at or before provided
+     * sequence number, otherwise null.
+     */
+    @Nullable
+    TraceData get(long id, long seq, ObjectMapper om) {
+        return isCommitted(id, seq) ? get(id, om) : null;
+    }
+
+    /**
+     * Returns true if node with given id was committed at or before provided
+     * sequence number.
+     */
+    boolean isCommitted(long id, long seq) {
+        long commitSeq = commitSeqs.get(id) - 1;
+        return commitSeq >= 0 && commitSeq <= seq;
+    }
+
+    boolean contains(long id) {
+        return nodes.get(id) != null || onDisk.get(id) != null;
+    }
+
+    /**
+     * Number of stored nodes
+     */
+    long size() {
+        return size.get();
+    }
+
+    /**
+     * One plus the highest stored id, all stored ids are lower than this.
+     */
+    long limit() {
+        return Math.max(nodes.limit(), onDisk.limit());
+    }
+
+    /**
+     * Hit, miss and eviction counters of the cache of nodes read from disk.
+     */
+    CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Returns a copy of the nodes held on the heap, in id order.
+     */
+    List<TraceData> heapNodes() {
+        List<TraceData> ret = new ArrayList<>();
+        for (long id = 0; id < nodes.limit(); id++) {
+            TraceData node = nodes.get(id);
+            if (node != null) {
+                ret.add(node);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the content fingerprints of provided nodes, in the same order.
+     */
+    long[] fingerprints(List<TraceData> nodes) {
+        long[] ret = new long[nodes.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = fingerprints.get(nodes.get(i)
+                                           .getId());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,114 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * Array of objects indexed by non-negative long, allocated in fixed size pages
+ * as higher indexes are set. Meant for dense ids like the ones of TraceDb
+ * nodes: compared to a hash map there is no boxing and no per-entry object,
+ * just a reference slot per index.
+ *
+ * <p>
+ * The array is thread safe and reads never lock: slots are volatile, so an
+ * element set by a thread is safely published to the threads which read it.
+ * Only allocating a new page takes a lock.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class PagedArray<T> {
+
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Replaced by a bigger copy when full. Pages are only added while holding
+     * the lock of the array, so a page is never lost in an old copy.
+     */
+    private volatile AtomicReferenceArray<AtomicReferenceArray<Object>> pages;
+
+    /**
+     * One plus the highest index ever set
+     */
+    private final AtomicLong limit;
+
+    PagedArray() {
+        this.pages = new AtomicReferenceArray<>(16);
+        this.limit = new AtomicLong(0);
+    }
+
+    /**
+     * Returns the element at provided index, or null if not set.
+     */
+    @Nullable
+    T get(long index) {
+        if (index < 0) {
+            return null;
+        }
+        AtomicReferenceArray<Object> page = page(index);
+        return page == null ? null : (T) page.get((int) (index & PAGE_MASK));
+    }
+
+    void set(long index, @Nullable T value) {
+        getAndSet(index, value);
+    }
+
+    /**
+     * Sets the element at provided index and returns the previous one, or
+     * null if it was not set.
+     */
+    @Nullable
+    T getAndSet(long index, @Nullable T value) {
+        checkArgument(index >= 0, "Invalid index: %s", index);
+        AtomicReferenceArray<Object> page = page(index);
+        if (page == null) {
+            page = allocatePage((int) (index >>> PAGE_BITS));
+        }
+        T ret = (T) page.getAndSet((int) (index & PAGE_MASK), value);
+        long cur = limit.get();
+        while (cur <= index && !limit.compareAndSet(cur, index + 1)) {
+            cur = limit.get();
+        }
+        return ret;
+    }
+
+    @Nullable
+    private AtomicReferenceArray<Object> page(long index) {
+        long pageIndex = index >>> PAGE_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<Object>> curPages = pages;
+        return pageIndex < curPages.length() ? curPages.get((int) pageIndex) : null;
+    }
+
+    private synchronized AtomicReferenceArray<Object> allocatePage(int pageIndex) {
+        AtomicReferenceArray<AtomicReferenceArray<Object>> curPages = pages;
+        if (pageIndex >= curPages.length()) {
+            AtomicReferenceArray<AtomicReferenceArray<Object>> newPages = new AtomicReferenceArray<>(
+                    Math.max(curPages.length() * 2, pageIndex + 1));
+            for (int i = 0; i < curPages.length(); i++) {
+                newPages.set(i, curPages.get(i));
+            }
+            pages = newPages;
+            curPages = newPages;
+        }
+        AtomicReferenceArray<Object> ret = curPages.get(pageIndex);
+        if (ret == null) {
+            ret = new AtomicReferenceArray<>(PAGE_SIZE);
+            curPages.set(pageIndex, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * One plus the highest index ever set, all set indexes are lower than
+     * this.
+     */
+    long limit() {
+        return limit.get();
+    }
+}
@@ -0,0 +1,95 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Array of primitive longs indexed by non-negative long, allocated in fixed
+ * size pages as higher indexes are set. Unset elements are zero.
+ *
+ * <p>
+ * Copies are cheap: a copy shares pages with the original and a page is
+ * duplicated only when either array first changes it afterwards.
+ * </p>
+ *
+ * @author David Leoni
+ * @see PagedArray
+ */
+final class PagedLongArray {
+
+    private static final int PAGE_BITS = PagedArray.PAGE_BITS;
+    private static final int PAGE_SIZE = PagedArray.PAGE_SIZE;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private long[][] pages;
+
+    /**
+     * Whether each page may be referenced also by a copy of the array
+     */
+    private boolean[] shared;
+
+    /**
+     * One plus the highest index ever set
+     */
+    private long limit;
+
+    PagedLongArray() {
+        this.pages = new long[16][];
+        this.shared = new boolean[16];
+        this.limit = 0;
+    }
+
+    /**
+     * Returns the element at provided index, or zero if not set.
+     */
+    long get(long index) {
+        if (index < 0 || index >= limit) {
+            return 0;
+        }
+        long[] page = pages[(int) (index >>> PAGE_BITS)];
+        return page == null ? 0 : page[(int) (index & PAGE_MASK)];
+    }
+
+    void set(long index, long value) {
+        checkArgument(index >= 0, "Invalid index: %s", index);
+        int pageIndex = (int) (index >>> PAGE_BITS);
+        if (pageIndex >= pages.length) {
+            int newLength = Math.max(pages.length * 2, pageIndex + 1);
+            pages = Arrays.copyOf(pages, newLength);
+            shared = Arrays.copyOf(shared, newLength);
+        }
+        long[] page = pages[pageIndex];
+        if (page == null) {
+            page = new long[PAGE_SIZE];
+            pages[pageIndex] = page;
+        } else if (shared[pageIndex]) {
+            page = page.clone();
+            pages[pageIndex] = page;
+            shared[pageIndex] = false;
+        }
+        page[(int) (index & PAGE_MASK)] = value;
+        limit = Math.max(limit, index + 1);
+    }
+
+    /**
+     * One plus the highest index ever set.
+     */
+    long limit() {
+        return limit;
+    }
+
+    /**
+     * Returns a copy of this array, which takes time proportional to the
+     * number of pages and not to the number of elements. Changes to either
+     * array are not seen by the other one.
+     */
+    PagedLongArray copy() {
+        Arrays.fill(shared, true);
+        PagedLongArray ret = new PagedLongArray();
+        ret.pages = pages.clone();
+        ret.shared = shared.clone();
+        ret.limit = limit;
+        return ret;
+    }
+}
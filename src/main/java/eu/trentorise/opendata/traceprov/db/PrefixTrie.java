@@ -0,0 +1,99 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static eu.trentorise.opendata.commons.validation.Preconditions.checkNotEmpty;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Immutable trie of url prefixes and their expansions, finding the longest
+ * prefix of an url in time proportional to the prefix length, whatever the
+ * number of prefixes.
+ *
+ * <p>
+ * Children of each node are kept in parallel arrays sorted by character and
+ * looked up by binary search.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class PrefixTrie {
+
+    private static final class Node {
+        private char[] chars = new char[0];
+        private Node[] children = new Node[0];
+        @Nullable
+        private String expansion;
+
+        @Nullable
+        Node child(char c) {
+            int pos = Arrays.binarySearch(chars, c);
+            return pos >= 0 ? children[pos] : null;
+        }
+
+        Node addChild(char c) {
+            int pos = Arrays.binarySearch(chars, c);
+            if (pos >= 0) {
+                return children[pos];
+            }
+            pos = -pos - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            System.arraycopy(chars, pos, newChars, pos + 1, chars.length - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, children.length - pos);
+            Node ret = new Node();
+            newChars[pos] = c;
+            newChildren[pos] = ret;
+            chars = newChars;
+            children = newChildren;
+            return ret;
+        }
+    }
+
+    private final Node root;
+
+    private PrefixTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Builds a trie from provided [prefix, expanded url] pairs.
+     */
+    static PrefixTrie of(Map<String, String> prefixes) {
+        checkNotNull(prefixes);
+        Node root = new Node();
+        for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+            String prefix = entry.getKey();
+            checkNotEmpty(prefix, "Invalid url prefix!");
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.addChild(prefix.charAt(i));
+            }
+            node.expansion = checkNotNull(entry.getValue());
+        }
+        return new PrefixTrie(root);
+    }
+
+    /**
+     * Replaces the longest prefix of provided url with its expansion. If url
+     * has no known prefix it is returned as it is.
+     */
+    String expand(String url) {
+        Node node = root;
+        String expansion = null;
+        int length = 0;
+        for (int i = 0; i < url.length() && node != null; i++) {
+            node = node.child(url.charAt(i));
+            if (node != null && node.expansion != null) {
+                expansion = node.expansion;
+                length = i + 1;
+            }
+        }
+        return expansion == null ? url : expansion + url.substring(length);
+    }
+}
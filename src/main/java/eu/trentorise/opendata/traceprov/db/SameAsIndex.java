@@ -0,0 +1,354 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The same as cliques of a TraceDb, as a disjoint-set forest with path
+ * compression and union by rank, so finding the clique of a node takes
+ * almost constant time and merging two cliques doesn't depend on their size.
+ *
+ * <p>
+ * For each node we keep:
+ * <ul>
+ * <li>its parent in the forest, plus one, so zero means the node is not in
+ * the index</li>
+ * <li>the next member of its clique, as members form a circular list which
+ * can be spliced in constant time when cliques are merged</li>
+ * <li>only for roots, the rank in the upper {@link #RANK_BITS} bits and the
+ * main node id of the clique in the other bits</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * The index is thread safe. Queries share a read lock, changes take the
+ * write lock. Paths are compressed by changes, as {@link #union(long, long)}
+ * compresses the paths of the ids it merges, and by queries finding a path
+ * longer than one step, which compress it afterwards only if they can take
+ * the write lock without waiting. So readers never block each other, and
+ * repeated lookups of the same ids soon take constant time. Paths left
+ * uncompressed are anyway at most logarithmic in the clique size, thanks to
+ * union by rank.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class SameAsIndex {
+
+    static final int RANK_BITS = 8;
+    private static final int ID_BITS = 64 - RANK_BITS;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    private final PagedLongArray parents;
+    private final PagedLongArray nexts;
+    private final PagedLongArray roots;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Number of merges of distinct cliques so far
+     */
+    private volatile long unions;
+
+    SameAsIndex() {
+        this(new PagedLongArray(), new PagedLongArray(), new PagedLongArray());
+    }
+
+    private SameAsIndex(PagedLongArray parents, PagedLongArray nexts, PagedLongArray roots) {
+        this.parents = parents;
+        this.nexts = nexts;
+        this.roots = roots;
+    }
+
+    boolean contains(long id) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return parents.get(id) != 0;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Puts provided id in a clique by itself.
+     */
+    void add(long id) {
+        checkArgument(id >= 0 && id <= ID_MASK, "Invalid id: %s", id);
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            parents.set(id, id + 1);
+            nexts.set(id, id);
+            roots.set(id, id);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Puts each id from {@code fromId} included to {@code toId} excluded in a
+     * clique by itself, taking the lock only once.
+     */
+    void addRange(long fromId, long toId) {
+        checkArgument(fromId >= 0 && fromId <= toId && toId - 1 <= ID_MASK, "Invalid id range: [%s, %s)", fromId,
+                toId);
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            for (long id = fromId; id < toId; id++) {
+                parents.set(id, id + 1);
+                nexts.set(id, id);
+                roots.set(id, id);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the root of the tree of provided id.
+     *
+     * @throws IllegalArgumentException
+     *             if the id is not in the index
+     */
+    private long root(long id) {
+        checkArgument(parents.get(id) != 0, "Id %s is not in the same as index", id);
+        long root = id;
+        long parent;
+        while ((parent = parents.get(root) - 1) != root) {
+            root = parent;
+        }
+        return root;
+    }
+
+    /**
+     * Returns true if provided id is neither a root nor a child of one. Must be
+     * called holding a lock.
+     */
+    private boolean isDeep(long id) {
+        long parent = parents.get(id) - 1;
+        return parents.get(parent) - 1 != parent;
+    }
+
+    /**
+     * Compresses the path from provided id to its root, unless the write lock
+     * is busy. Must be called without holding locks.
+     */
+    private void tryCompress(long id) {
+        Lock writeLock = lock.writeLock();
+        if (writeLock.tryLock()) {
+            try {
+                find(id);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the root of the tree of provided id, compressing the path to it.
+     * Must be called holding the write lock.
+     */
+    private long find(long id) {
+        long root = root(id);
+        long cur = id;
+        while (cur != root) {
+            long next = parents.get(cur) - 1;
+            parents.set(cur, root + 1);
+            cur = next;
+        }
+        return root;
+    }
+
+    private static int rank(long rootData) {
+        return (int) (rootData >>> ID_BITS);
+    }
+
+    private static long rootData(int rank, long mainId) {
+        return ((long) rank << ID_BITS) | mainId;
+    }
+
+    /**
+     * Returns true if provided ids are in the same clique.
+     *
+     * @throws IllegalArgumentException
+     *             if either id is not in the index
+     */
+    boolean sameAs(long id1, long id2) {
+        boolean ret;
+        boolean deep1;
+        boolean deep2;
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            ret = root(id1) == root(id2);
+            deep1 = isDeep(id1);
+            deep2 = isDeep(id2);
+        } finally {
+            readLock.unlock();
+        }
+        if (deep1) {
+            tryCompress(id1);
+        }
+        if (deep2) {
+            tryCompress(id2);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the id of the main node of the clique of provided id.
+     *
+     * @throws IllegalArgumentException
+     *             if the id is not in the index
+     */
+    long mainId(long id) {
+        long ret;
+        boolean deep;
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            ret = roots.get(root(id)) & ID_MASK;
+            deep = isDeep(id);
+        } finally {
+            readLock.unlock();
+        }
+        if (deep) {
+            tryCompress(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Makes provided id the main node of its clique.
+     */
+    void setMainId(long id) {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            long root = find(id);
+            roots.set(root, rootData(rank(roots.get(root)), id));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the cliques of provided ids, keeping the main node of the clique
+     * of {@code id1}.
+     */
+    void union(long id1, long id2) {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            long root1 = find(id1);
+            long root2 = find(id2);
+            if (root1 == root2) {
+                return;
+            }
+            long data1 = roots.get(root1);
+            long data2 = roots.get(root2);
+            long mainId = data1 & ID_MASK;
+            int rank1 = rank(data1);
+            int rank2 = rank(data2);
+
+            unions += 1;
+
+            // splice the circular member lists
+            long next1 = nexts.get(root1);
+            nexts.set(root1, nexts.get(root2));
+            nexts.set(root2, next1);
+
+            if (rank1 < rank2) {
+                parents.set(root1, root2 + 1);
+                roots.set(root2, rootData(rank2, mainId));
+            } else {
+                parents.set(root2, root1 + 1);
+                roots.set(root1, rootData(rank1 == rank2 ? rank1 + 1 : rank1, mainId));
+            }
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times distinct cliques were merged. As cliques
+     * are never split, results of {@link #sameAs(long, long)} which were false
+     * still hold as long as this number doesn't change.
+     */
+    long unions() {
+        return unions;
+    }
+
+    /**
+     * Returns the ids in the clique of provided id, main node first, or the
+     * empty list if the id is not in the index.
+     */
+    ImmutableList<Long> members(long id) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return unlockedMembers(id);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private ImmutableList<Long> unlockedMembers(long id) {
+        if (parents.get(id) == 0) {
+            return ImmutableList.of();
+        }
+        long mainId = roots.get(root(id)) & ID_MASK;
+        ImmutableList.Builder<Long> retb = ImmutableList.builder();
+        retb.add(mainId);
+        for (long cur = nexts.get(mainId); cur != mainId; cur = nexts.get(cur)) {
+            retb.add(cur);
+        }
+        return retb.build();
+    }
+
+    /**
+     * Returns all the cliques with more than one member, each one with the
+     * main node first.
+     */
+    List<List<Long>> cliques() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            List<List<Long>> ret = new ArrayList<>();
+            for (long id = 0; id < parents.limit(); id++) {
+                if (parents.get(id) == id + 1 && nexts.get(id) != id) {
+                    ret.add(unlockedMembers(id));
+                }
+            }
+            return ret;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the index, unaffected by later changes. Arrays are
+     * copied on write, so copying only takes time proportional to the number
+     * of pages of ids.
+     */
+    SameAsIndex copy() {
+        // marking pages as shared changes the arrays
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            return new SameAsIndex(parents.copy(), nexts.copy(), roots.copy());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
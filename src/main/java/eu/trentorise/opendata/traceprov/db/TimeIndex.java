@@ -0,0 +1,122 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Longs;
+
+/**
+ * Ids of stored nodes ordered by
+ * {@link eu.trentorise.opendata.traceprov.data.NodeMetadata#getTimestamp()
+ * timestamp}, both globally and for each publisher. Nodes with the same
+ * timestamp are ordered by id, and nodes without a timestamp come first.
+ *
+ * <p>
+ * The index is thread safe. Range views are weakly consistent: their
+ * iterators never throw {@link java.util.ConcurrentModificationException}
+ * and may or may not see nodes added after their creation.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class TimeIndex {
+
+    /**
+     * A node in the index, ordered by timestamp and then by id
+     */
+    static final class Key implements Comparable<Key> {
+        final long timestamp;
+        final long id;
+
+        Key(long timestamp, long id) {
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int ret = Long.compare(timestamp, other.timestamp);
+            return ret != 0 ? ret : Long.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return timestamp == other.timestamp && id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Longs.hashCode(timestamp) + Longs.hashCode(id);
+        }
+    }
+
+    private final NavigableSet<Key> all = new ConcurrentSkipListSet<>();
+
+    private final ConcurrentMap<Long, NavigableSet<Key>> byPublisher = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a node to the index.
+     *
+     * @param timestamp
+     *            in millisecs, or {@link NodeSegment#NO_TIMESTAMP}
+     */
+    void add(long publisherId, long timestamp, long id) {
+        Key key = new Key(timestamp, id);
+        all.add(key);
+        NavigableSet<Key> keys = byPublisher.get(publisherId);
+        if (keys == null) {
+            NavigableSet<Key> newKeys = new ConcurrentSkipListSet<>();
+            keys = byPublisher.putIfAbsent(publisherId, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Removes a node from the index, if present.
+     */
+    void remove(long publisherId, long timestamp, long id) {
+        Key key = new Key(timestamp, id);
+        all.remove(key);
+        NavigableSet<Key> keys = byPublisher.get(publisherId);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Returns the nodes with timestamp in [{@code from}, {@code to}), in
+     * order. The view is live, it reflects later additions.
+     */
+    NavigableSet<Key> range(long from, long to) {
+        return range(all, from, to);
+    }
+
+    /**
+     * Returns the nodes of given publisher with timestamp in [{@code from},
+     * {@code to}), in order. The view is live, it reflects later additions.
+     */
+    NavigableSet<Key> range(long publisherId, long from, long to) {
+        NavigableSet<Key> keys = byPublisher.get(publisherId);
+        if (keys == null) {
+            return ImmutableSortedSet.of();
+        }
+        return range(keys, from, to);
+    }
+
+    private static NavigableSet<Key> range(NavigableSet<Key> keys, long from, long to) {
+        if (from >= to) {
+            return ImmutableSortedSet.of();
+        }
+        return keys.subSet(new Key(from, Long.MIN_VALUE), true, new Key(to, Long.MIN_VALUE), false);
+    }
+}
@@ -5,23 +5,39 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static eu.trentorise.opendata.commons.validation.Preconditions.checkNotEmpty;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectOutput;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,26 +46,28 @@ import javax.annotation.Nullable;
 import org.apache.commons.io.FileUtils;
 
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Sets.SetView;
-import com.google.common.collect.Table;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import eu.trentorise.opendata.commons.Dict;
-import eu.trentorise.opendata.commons.TodUtils;
 import eu.trentorise.opendata.commons.validation.Ref;
 import eu.trentorise.opendata.traceprov.TraceProvs;
 import eu.trentorise.opendata.traceprov.data.TraceData;
-import eu.trentorise.opendata.traceprov.data.TraceDatas;
 import eu.trentorise.opendata.traceprov.data.DataObject;
 import eu.trentorise.opendata.traceprov.data.NodeMetadata;
 import eu.trentorise.opendata.traceprov.dcat.AFoafAgent;
@@ -59,9 +77,13 @@ import eu.trentorise.opendata.traceprov.exceptions.TraceProvException;
 import eu.trentorise.opendata.traceprov.exceptions.TraceProvNotFoundException;
 import eu.trentorise.opendata.traceprov.exceptions.AmbiguousUrlException;
 import eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException;
+import eu.trentorise.opendata.traceprov.exceptions.DuplicateKeyException;
 import eu.trentorise.opendata.traceprov.exceptions.IncomparableVersionsException;
+import eu.trentorise.opendata.traceprov.tracel.java.PropertyPath;
+import eu.trentorise.opendata.traceprov.types.ClassType;
 import eu.trentorise.opendata.traceprov.types.TraceType;
 import eu.trentorise.opendata.traceprov.types.TypeRegistry;
+import eu.trentorise.opendata.traceprov.types.UniqueIndex;
 
 /**
  * Database of TraceProv. Allows storing foreign objects while tracking their
@@ -69,6 +91,29 @@ import eu.trentorise.opendata.traceprov.types.TypeRegistry;
  * {@link TraceData DataNodes} and indexing is manual.
  * 
  * Currently Serialization is done with Jackson. Object cloning with Kryo.
+ * Changes to a db on disk are recorded in an append-only log (see
+ * {@link #flush()}) which is replayed when connecting to the db. To bound log
+ * size and replay time, a compact checkpoint of the db is periodically written
+ * in background (see {@link #checkpoint()} and {@link TraceDbConfig}).
+ *
+ * <p>
+ * A TraceDb is thread safe and can be shared by many threads, which can
+ * create and read nodes concurrently without global locking: ids are
+ * allocated atomically and nodes are published through lock-free id and url
+ * indexes, while same as cliques are guarded by a read-write lock. Changes to
+ * same as cliques, to prefixes and updates of nodes are applied one at a time,
+ * in the same order they are logged. Every effect of a write method (i.e.
+ * {@link #create(Iterable)}, {@link #update(Iterable)},
+ * {@link #putSameAsIds(long, Iterable)},
+ * {@link #setMainNode(long)}, {@link #putPrefix(String, String)})
+ * <i>happens-before</i> any read in another thread which observes one of
+ * those effects: for example, a thread reading a node by an id returned by
+ * {@code create} in another thread always sees it fully initialized. Flushes
+ * and checkpoints can run while other threads write, a checkpoint only
+ * blocks writers while it copies the db state. Notice the current db (see
+ * {@link #getDb()}) is per thread, so threads sharing a db should set it with
+ * {@link #setCurrentDb(TraceDb)}.
+ * </p>
  *
  * NOTE: Current implementation is just a prototype and thus super inefficient.
  *
@@ -81,10 +126,49 @@ public class TraceDb {
     private static final Logger LOG = Logger.getLogger(TraceDb.class.getSimpleName());
 
     public static final String IN_MEMORY_PREFIX = "memory://";
+    /**
+     * File of the old whole-db json format, only read for backward
+     * compatibility.
+     */
     public static final String TRACEDB_FILE = "tracedb.json";
 
+    /**
+     * Append-only log of changes
+     */
+    public static final String TRACEDB_LOG_FILE = "tracedb.log";
+
+    /**
+     * Manifest of the latest checkpoint of the db. Log files rotated at
+     * checkpoint time are named like the log file plus a dot and the sequence
+     * number of their last record.
+     */
+    public static final String TRACEDB_MANIFEST_FILE = "tracedb.manifest";
+
+    /**
+     * Name given to {@link #TRACEDB_FILE} once it has been migrated to the
+     * current format.
+     */
+    public static final String TRACEDB_MIGRATED_FILE = TRACEDB_FILE + ".migrated";
+
     private static final String FILE_PREFIX = "file://";
 
+    /**
+     * Number of ids scanned by each task when building a type index
+     */
+    private static final long TYPE_INDEX_SCAN_CHUNK = 1 << 16;
+
+    /**
+     * Scans chunks of stored nodes when building type indexes, shared by all
+     * dbs. Threads are daemons created on first use, so the pool is never
+     * shut down.
+     */
+    private static final ExecutorService TYPE_INDEX_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime()
+                   .availableProcessors(),
+            new ThreadFactoryBuilder().setDaemon(true)
+                                      .setNameFormat("tracedb-index-%d")
+                                      .build());
+
     public static final long TRACEDB_PUBLISHER_ID = 0L;
     public static final String TRACEDB_PUBLISHER_URI = TraceProvs.TRACEPROV_IRI + "/db/tracedb-publisher";
 
@@ -117,11 +201,17 @@ public class TraceDb {
         }
     };
 
-    private Map<String, String> prefixes;
+    private ConcurrentMap<String, String> prefixes;
+
+    /**
+     * Expands urls with current {@link #prefixes}, replaced whenever they
+     * change. Guarded by {@link #logLock} for writing.
+     */
+    private volatile UrlNormalizer urlNormalizer;
 
     private String dbUrl;
 
-    private long idCounter;
+    private final AtomicLong idCounter;
 
     private TypeRegistry typeRegistry;
     
@@ -147,35 +237,122 @@ public class TraceDb {
      */
     private static int INIT_LEVEL_3 = 3;
 
-    private int initLevel;
+    private volatile int initLevel;
 
     /**
-     * Maps {@code <publisherId, externalId>} pairs (i.e. 4,
-     * "http://entitypedia.org/entities/123") to corresponding views. This is a
-     * way to say TraceProv knows about entity 123 of publisher Entitypedia,
-     * which has traceprov internal id = 4
+     * Maps {@code <externalId, publisherId>} pairs (i.e.
+     * "http://entitypedia.org/entities/123", 4) to corresponding views. This
+     * is a way to say TraceProv knows about entity 123 of publisher
+     * Entitypedia, which has traceprov internal id = 4
      * 
      */
-    private Table<Long, String, ArrayList<TraceData>> storedValuesByUrl;
+    private ConcurrentMap<String, ConcurrentMap<Long, List<Long>>> storedValuesByUrl;
+
+    /**
+     * Normalized url -> same as cliques of the nodes with that url
+     */
+    private UrlIndex urlIndex;
 
     /**
      * trace id -> DataNode object
      */
-    private HashMap<Long, TraceData> storedValuesById;
+    private NodeStore storedValuesById;
+
+    /**
+     * Type id -> traceprov internal ids of DataNode which are instances of
+     * that type
+     */
+    private TypeIndex typeIndex;
+
+    /**
+     * Hash indexes of the unique indexes declared by class types
+     */
+    private UniqueIndexes uniqueIndexes;
+
+    /**
+     * Ids of nodes by timestamp, globally and for each publisher
+     */
+    private TimeIndex timeIndex;
+
+    /**
+     * Posting lists of node ids by publisher, license and language
+     */
+    private MetadataIndex metadataIndex;
+
+    /**
+     * Previous versions of updated nodes
+     */
+    private VersionStore versions;
+
+    /**
+     * Canonical raw values, used if {@link TraceDbConfig#isDedupRawValues()}
+     */
+    private final ValueInterner interner = new ValueInterner();
+
+    /**
+     * Merkle hashes of the maps and lists in the raw values of stored nodes,
+     * by identity (see {@link ContentHash})
+     */
+    private final Cache<Object, Long> subtreeHashes = CacheBuilder.newBuilder()
+                                                                  .weakKeys()
+                                                                  .build();
+
+    /**
+     * The sameas cliques. If there is a corresponding odr view of the view, it
+     * will be the main node of the clique.
+     */
+    private SameAsIndex sameAsIds;
+
+    /**
+     * The log where changes are recorded. Null for in-memory dbs.
+     */
+    @Nullable
+    private TraceDbLog log;
 
     /**
-     * A multimap type id -> traceprov internal ids of DataNode which are
-     * instances of that type
+     * Sequence number of the last change applied to the db, guarded by
+     * {@link #logLock}
      */
-    private Multimap<String, Long> indexedValues;
+    private long lastSeq;
 
-    private Set<String> indexedTypes;
+    /**
+     * Held while assigning a sequence number to a change and appending it to
+     * the log, so the log order is the sequence number order.
+     */
+    private final Object logLock = new Object();
 
     /**
-     * If there is a corresponding odr view of the view, its id will be the
-     * first of the list. id -> id1, id2, id3 ...
+     * Held while changing same as cliques and logging the change, so cliques
+     * are changed in the same order they are logged.
      */
-    private LinkedHashMultimap<Long, Long> sameAsIds;
+    private final Object cliqueLock = new Object();
+
+    /**
+     * Held while updating nodes, so the versions of a node are stored one at
+     * a time in the same order they are logged.
+     */
+    private final Object updateLock = new Object();
+
+    /**
+     * Changes to the db state hold the read lock, so they can run
+     * concurrently. Checkpoints hold the write lock while copying the state,
+     * so the copy includes exactly the changes up to the last logged one.
+     */
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    private TraceDbConfig config = TraceDbConfig.of();
+
+    /**
+     * Writes checkpoints, created on first checkpoint.
+     */
+    @Nullable
+    private ExecutorService checkpointExecutor;
+
+    /**
+     * Last started checkpoint
+     */
+    @Nullable
+    private Future<?> checkpointFuture;
 
     /**
      * Database with an in-memory db and default Jackson object mapper
@@ -183,13 +360,18 @@ public class TraceDb {
     private TraceDb() {
 
         this.dbUrl = IN_MEMORY_PREFIX + "/tracedb/defaultdb";
-        this.storedValuesByUrl = HashBasedTable.create();
-        this.storedValuesById = new HashMap();
-        this.indexedValues = HashMultimap.create();
-        this.indexedTypes = new HashSet();
-        this.prefixes = new HashMap();
-        this.sameAsIds = LinkedHashMultimap.create();
-        this.idCounter = 0;
+        this.storedValuesByUrl = new ConcurrentHashMap<>();
+        this.urlIndex = new UrlIndex();
+        this.storedValuesById = new NodeStore(config.getNodeCacheSize(), config.getNodeCacheBytes());
+        this.typeIndex = new TypeIndex();
+        this.uniqueIndexes = new UniqueIndexes();
+        this.timeIndex = new TimeIndex();
+        this.metadataIndex = new MetadataIndex();
+        this.versions = new VersionStore();
+        this.prefixes = new ConcurrentHashMap<>();
+        this.urlNormalizer = new UrlNormalizer(prefixes, config.getUrlCacheSize());
+        this.sameAsIds = new SameAsIndex();
+        this.idCounter = new AtomicLong(0);
         this.typeRegistry = TypeRegistry.of();
     }
 
@@ -282,22 +464,317 @@ public class TraceDb {
 
     /**
      * Indexes all objects which are instances of provided {@code traceType}.
-     * Successive put operations will maintain the index updated.
+     * Successive put operations will maintain the index updated. The index is
+     * persisted with the db, so a type needs to be indexed only once. Stored
+     * nodes are scanned in parallel when they are many. If type is already
+     * indexed does nothing.
      * 
      * @param typeId
+     * @see #readByType(String)
      */
     public void indexType(String typeId) {
+        checkInitialized();
         checkNotEmpty(typeId, "Invalid TraceType id!");
         typeRegistry.checkRegistered(typeId);
-        TraceType type = typeRegistry.get(typeId);
-        for (Map.Entry<Long, TraceData> entry : this.storedValuesById.entrySet()) {
-            Object rawValue = entry.getValue()
-                                   .getRawValue();
-            if (type.isInstance(rawValue)) {
-                indexedValues.put(typeId, entry.getKey());
+        // the type is declared holding the write lock, so stores either
+        // completed before, and are below the scanned limit, or see the type
+        // declared. The scan then holds the read lock, so checkpoints either
+        // include the whole type index or don't include its declaration
+        Lock writeLock = stateLock.writeLock();
+        Lock readLock = stateLock.readLock();
+        long limit;
+        writeLock.lock();
+        try {
+            if (!typeIndex.declare(typeId)) {
+                return;
             }
+            log(LogRecord.builder()
+                         .setOp(LogOp.INDEX_TYPE)
+                         .setTypeId(typeId));
+            limit = storedValuesById.limit();
+            // downgrades to the read lock, letting writers in
+            readLock.lock();
+        } finally {
+            writeLock.unlock();
         }
+        try {
+            buildTypeIndex(typeRegistry.get(typeId), limit);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Adds to the index of provided type, which must be already declared, the
+     * nodes stored so far, that is with ids below {@code limit}. Nodes stored
+     * afterwards must be indexed by {@link #store(List)}.
+     */
+    private void buildTypeIndex(final TraceType type, final long limit) {
+        if (limit <= TYPE_INDEX_SCAN_CHUNK) {
+            scanTypeIndex(type, 0, limit);
+            return;
+        }
+
+        LOG.fine("Building index of type " + type.getId() + " in parallel...");
+        final TraceDb db = this;
+        List<Future<?>> futures = new ArrayList();
+        try {
+            for (long from = 0; from < limit; from += TYPE_INDEX_SCAN_CHUNK) {
+                final long chunkFrom = from;
+                final long chunkTo = Math.min(limit, from + TYPE_INDEX_SCAN_CHUNK);
+                futures.add(TYPE_INDEX_EXECUTOR.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        dbPool.set(db);
+                        try {
+                            scanTypeIndex(type, chunkFrom, chunkTo);
+                        } finally {
+                            dbPool.remove();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new TraceProvException("Interrupted while building index of type " + type.getId(), ex);
+        } catch (ExecutionException ex) {
+            throw new TraceProvException("Error while building index of type " + type.getId(), ex.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void scanTypeIndex(TraceType type, long fromId, long toId) {
+        for (long id = fromId; id < toId; id++) {
+            TraceData node = storedValuesById.get(id, om());
+            if (node != null) {
+                typeIndex.add(type, node);
+            }
+        }
+    }
 
+    /**
+     * Returns true if provided type is indexed.
+     * 
+     * @see #indexType(String)
+     */
+    public boolean isTypeIndexed(String typeId) {
+        checkNotEmpty(typeId, "Invalid TraceType id!");
+        return typeIndex.isIndexed(typeId);
+    }
+
+    /**
+     * Returns the ids of the indexed types.
+     * 
+     * @see #indexType(String)
+     */
+    public Set<String> getIndexedTypes() {
+        return typeIndex.getTypeIds();
+    }
+
+    /**
+     * Returns the nodes whose raw value is an instance of provided type, in id
+     * order. Nodes are read lazily as the iterator advances. The iterator
+     * reflects the index at its creation.
+     * 
+     * @throws IllegalArgumentException
+     *             if the type is not indexed (see {@link #indexType(String)})
+     */
+    public Iterator<TraceData> readByType(String typeId) {
+        checkInitialized();
+        checkNotEmpty(typeId, "Invalid TraceType id!");
+        final Iterator<Long> ids = typeIndex.getIds(typeId)
+                                           .iterator();
+        return new UnmodifiableIterator<TraceData>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public TraceData next() {
+                return readStored(ids.next());
+            }
+        };
+    }
+
+    /**
+     * Returns the nodes selected by provided query, in id order. Nodes are
+     * read lazily as the iterator advances. The iterator reflects the indexes
+     * at its creation.
+     *
+     * @throws IllegalArgumentException
+     *             if the query refers to a type which is not indexed (see
+     *             {@link #indexType(String)})
+     */
+    public Iterator<TraceData> query(IndexQuery query) {
+        checkInitialized();
+        checkNotNull(query);
+        final Iterator<Long> ids = query.evaluate(this)
+                                        .iterator();
+        return new UnmodifiableIterator<TraceData>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public TraceData next() {
+                return readStored(ids.next());
+            }
+        };
+    }
+
+    /**
+     * Returns the number of nodes selected by provided query, without reading
+     * them.
+     *
+     * @throws IllegalArgumentException
+     *             if the query refers to a type which is not indexed (see
+     *             {@link #indexType(String)})
+     */
+    public long count(IndexQuery query) {
+        checkInitialized();
+        checkNotNull(query);
+        return query.evaluate(this)
+                    .getCardinality();
+    }
+
+    /**
+     * Returns a copy of the ids of the nodes of provided indexed type.
+     */
+    IdBitmap typeIds(String typeId) {
+        return typeIndex.getIds(typeId);
+    }
+
+    /**
+     * Returns a copy of the posting list with provided key (see
+     * {@link MetadataIndex})
+     */
+    IdBitmap postings(String key) {
+        return metadataIndex.get(key);
+    }
+
+    /**
+     * Adds provided ids to the posting list with given key, without logging
+     * the change.
+     */
+    void loadPostings(String key, IdBitmap ids) {
+        metadataIndex.addAll(key, ids);
+    }
+
+    /**
+     * Adds provided ids to the index of given type, declaring it if needed,
+     * without logging the change.
+     */
+    void loadTypeIndex(String typeId, long[] ids) {
+        typeIndex.addAll(typeId, ids);
+    }
+
+    /**
+     * Returns the node whose properties have the provided values in given
+     * unique index (see {@link ClassType#getUniqueIndexes()}). Values must be
+     * in the order of {@link UniqueIndex#getPropertyDefIds()}. Lookup takes
+     * constant time.
+     *
+     * @throws DataNotFoundException
+     *             if no node has such key.
+     */
+    public TraceData readByUniqueKey(String typeId, String indexId, Object... values) {
+        checkInitialized();
+        checkNotEmpty(typeId, "Invalid TraceType id!");
+        checkNotEmpty(indexId, "Invalid unique index id!");
+        checkNotNull(values);
+        Long id = uniqueIndexes.get(new UniqueIndexes.Name(typeId, indexId), UniqueIndexes.key(values));
+        // keys are published before their nodes are stored, and removed if
+        // storing the batch fails
+        TraceData ret = id == null ? null : storedValuesById.get(id, om());
+        if (ret == null) {
+            throw new DataNotFoundException("Couldn't find node with key " + Arrays.toString(values)
+                    + " in unique index " + indexId + " of type " + typeId);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the nodes of provided publisher with timestamp in [{@code from},
+     * {@code to}), ordered by timestamp and then by id. Nodes are read lazily
+     * as the iterator advances. The iterator reflects the index at some point
+     * at or since its creation, and never throws
+     * {@link java.util.ConcurrentModificationException}.
+     *
+     * @param from
+     *            if null, nodes are returned from the oldest one
+     * @param to
+     *            if null, nodes are returned up to the newest one
+     */
+    public Iterator<TraceData> readByPublisher(long publisherId, @Nullable Timestamp from, @Nullable Timestamp to) {
+        checkInitialized();
+        checkArgument(publisherId >= 0, "Invalid publisher id: %s", publisherId);
+        return readTimeKeys(timeIndex.range(publisherId, fromMillis(from), toMillis(to)));
+    }
+
+    /**
+     * Returns all the nodes of provided publisher, ordered by timestamp and
+     * then by id.
+     *
+     * @see #readByPublisher(long, Timestamp, Timestamp)
+     */
+    public Iterator<TraceData> readByPublisher(long publisherId) {
+        return readByPublisher(publisherId, null, null);
+    }
+
+    /**
+     * Returns the nodes with timestamp in [{@code from}, {@code to}), ordered
+     * by timestamp and then by id. Nodes are read lazily as the iterator
+     * advances.
+     *
+     * @param from
+     *            if null, nodes are returned from the oldest one
+     * @param to
+     *            if null, nodes are returned up to the newest one
+     * @see #readByPublisher(long, Timestamp, Timestamp)
+     */
+    public Iterator<TraceData> readByTimestamp(@Nullable Timestamp from, @Nullable Timestamp to) {
+        checkInitialized();
+        return readTimeKeys(timeIndex.range(fromMillis(from), toMillis(to)));
+    }
+
+    private static long fromMillis(@Nullable Timestamp from) {
+        return from == null ? Long.MIN_VALUE : from.getTime();
+    }
+
+    private static long toMillis(@Nullable Timestamp to) {
+        return to == null ? Long.MAX_VALUE : to.getTime();
+    }
+
+    private Iterator<TraceData> readTimeKeys(Iterable<TimeIndex.Key> keys) {
+        final Iterator<TimeIndex.Key> iter = keys.iterator();
+        return new UnmodifiableIterator<TraceData>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public TraceData next() {
+                return readStored(iter.next().id);
+            }
+        };
+    }
+
+    /**
+     * Puts provided key into given unique index, without checking for
+     * duplicates nor logging the change.
+     */
+    void loadUniqueKey(UniqueIndexes.Name name, List<Object> key, long id) {
+        uniqueIndexes.put(name, UniqueIndexes.key(key.toArray()), id);
     }
 
     /**
@@ -314,31 +791,158 @@ public class TraceDb {
      *             if the database is not found
      */
     public static TraceDb connectToDb(String folderpath, TypeRegistry typeRegistry) {
+        return connectToDb(folderpath, typeRegistry, TraceDbConfig.of());
+    }
+
+    /**
+     * Connects to a database on the local hard drive and returns it.
+     *
+     * @param folderpath
+     *            The folder where the db is located
+     * @param typeRegistry
+     *            The type registry to use for type casting, serialization and
+     *            deserialization. Normally it can be safely shared with other
+     *            instances except when they reconfigure it - in this case other
+     *            threads must not use the object mapper during reconfiguration.
+     * @param config
+     *            Tuning options of the db
+     * @throws TraceProvNotFoundException
+     *             if the database is not found
+     */
+    public static TraceDb connectToDb(String folderpath, TypeRegistry typeRegistry, TraceDbConfig config) {
         LOG.info("Connecting to TraceDb at " + folderpath + "   ...");
         checkNotEmpty(folderpath, "path to db folder is invalid!");
         checkNotNull(typeRegistry, "Type registry must not be null!");
+        checkNotNull(config, "Db config must not be null!");
 
+        File logFile = new File(folderpath, TRACEDB_LOG_FILE);
+        File manifestFile = new File(folderpath, TRACEDB_MANIFEST_FILE);
         File json = new File(folderpath + File.separator + TRACEDB_FILE);
-        if (json.exists()) {
+        List<File> rotatedLogs = rotatedLogs(new File(folderpath));
+        // the log alone may be missing if a crash interrupted its rotation
+        if (logFile.exists() || manifestFile.exists() || !rotatedLogs.isEmpty()) {
+            TraceDb ret = new TraceDb();
+            ret.dbUrl = Paths.get(folderpath)
+                             .toUri()
+                             .toString();
+            ret.typeRegistry = typeRegistry;
+            ret.config = config;
+            ret.updateUrlNormalizer();
+            ret.storedValuesById = new NodeStore(config.getNodeCacheSize(), config.getNodeCacheBytes(),
+                    config.isDedupRawValues() ? ret.interner : null);
+            ret.log = new TraceDbLog(logFile);
+            ObjectMapper om = typeRegistry.getObjectMapper();
+
+            // stored types are resolved through the current db
+            TraceDb prevDb = dbPool.get();
+            dbPool.set(ret);
             try {
-                TraceDb ret = typeRegistry.getObjectMapper()
-                                          .readValue(json, TraceDb.class);
-                ret.typeRegistry = typeRegistry;
-                ret.initLevel = INIT_LEVEL_3;
-                LOG.info("Connected to TraceDb at " + folderpath);
-                return ret;
+                long checkpointSeq = 0;
+                if (manifestFile.exists()) {
+                    checkpointSeq = TraceDbCheckpoint.read(new File(folderpath), ret, om);
+                    ret.lastSeq = Math.max(ret.lastSeq, checkpointSeq);
+                }
+                for (File rotatedLog : rotatedLogs) {
+                    new TraceDbLog(rotatedLog).replay(ret, om, checkpointSeq);
+                }
+                ret.log.replay(ret, om, checkpointSeq);
+            } finally {
+                dbPool.set(prevDb);
+            }
+            ret.initLevel = INIT_LEVEL_3;
+            LOG.info("Connected to TraceDb at " + folderpath);
+            return ret;
+        } else if (json.exists()) {
+            TraceDb ret;
+            try {
+                ret = typeRegistry.getObjectMapper()
+                                  .readValue(json, TraceDb.class);
             } catch (IOException ex) {
                 throw new TraceProvException("Couldn't load TraceDB", ex);
             }
+            ret.migrate(folderpath, typeRegistry, config);
+            ret.initLevel = INIT_LEVEL_3;
+            LOG.info("Connected to TraceDb at " + folderpath);
+            return ret;
         } else {
             throw new TraceProvNotFoundException("Couldn't find any TraceDb database in folder " + folderpath);
         }
     }
 
+    /**
+     * Converts a db just loaded from the old {@link #TRACEDB_FILE} to the
+     * current format, writing its first checkpoint and an empty log. The old
+     * file is then renamed to {@link #TRACEDB_MIGRATED_FILE}.
+     */
+    private void migrate(String folderpath, TypeRegistry typeRegistry, TraceDbConfig config) {
+        LOG.info("Migrating TraceDb at " + folderpath + " to current format...");
+        File folder = new File(folderpath);
+        this.dbUrl = Paths.get(folderpath)
+                          .toUri()
+                          .toString();
+        this.typeRegistry = typeRegistry;
+        this.config = config;
+        updateUrlNormalizer();
+        List<TraceData> heapNodes = storedValuesById.heapNodes();
+        new TraceDbCheckpoint(lastSeq, idCounter.get(), prefixes, heapNodes,
+                storedValuesById.fingerprints(heapNodes), sameAsIds.copy(), typeIndex.copy(), uniqueIndexes.copy(),
+                metadataIndex.copy(), versions.copy()).write(folder, om(), config);
+        File logFile = new File(folder, TRACEDB_LOG_FILE);
+        try {
+            logFile.createNewFile();
+            Files.move(new File(folder, TRACEDB_FILE).toPath(), new File(folder, TRACEDB_MIGRATED_FILE).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't migrate TraceDb at " + folderpath, ex);
+        }
+        this.log = new TraceDbLog(logFile);
+        LOG.info("Done migrating TraceDb at " + folderpath);
+    }
+
     private String folderPath() {
         return dbUrl.substring(FILE_PREFIX.length());
     }
 
+    /**
+     * Returns the log files rotated by checkpoints found in provided db
+     * folder, in sequence order.
+     */
+    private static List<File> rotatedLogs(File folder) {
+        List<File> ret = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (rotatedLogSeq(file) >= 0) {
+                    ret.add(file);
+                }
+            }
+        }
+        Collections.sort(ret, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(rotatedLogSeq(o1), rotatedLogSeq(o2));
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Returns the sequence number of the last record of a rotated log file, or
+     * -1 if provided file is not a rotated log.
+     */
+    private static long rotatedLogSeq(File file) {
+        String name = file.getName();
+        String prefix = TRACEDB_LOG_FILE + ".";
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
     /**
      * Deletes the database from disk. If database is not present silently exits
      */
@@ -358,6 +962,11 @@ public class TraceDb {
             return;
         }
 
+        if (log != null) {
+            stopCheckpoints();
+            log.close();
+        }
+
         Path dir;
         try {
             dir = Paths.get(new URI(getDbUrl()));
@@ -384,43 +993,172 @@ public class TraceDb {
     }
 
     /**
-     * Flushes cache to dbURL
+     * Writes to disk the changes made since last flush. Changes are appended to
+     * the db log, so the cost of the operation depends only on the amount of
+     * changes and not on the size of the db.
      */
-    public void flush() {
+    public synchronized void flush() {
 
-        LOG.info("Flushing TraceDb....");
+        LOG.fine("Flushing TraceDb....");
 
         if (dbUrl.startsWith(IN_MEMORY_PREFIX)) {
             throw new IllegalStateException("In memory database can't be flushed!");
         }
 
-        OutputStream file = null;
-        ObjectOutput oos = null;
+        log.flush();
 
-        File outputFile = new File(dbUrl, TRACEDB_FILE);
-        try {
-            FileWriter w = new FileWriter(outputFile);
-            om().writeValue(w, this);
+        if (needsCheckpoint()) {
+            startCheckpoint();
+        }
 
-        } catch (Exception ex) {
-            throw new TraceProvException("Couldn't write to file: " + outputFile.getAbsolutePath(), ex);
+        LOG.fine("Done flushing TraceDb at " + getDbUrl());
+
+    }
+
+    private boolean needsCheckpoint() {
+        if (checkpointFuture != null && !checkpointFuture.isDone()) {
+            return false;
+        }
+        return (config.getCheckpointLogRecords() > 0 && log.getRecords() >= config.getCheckpointLogRecords())
+                || (config.getCheckpointLogBytes() > 0 && log.getSize() >= config.getCheckpointLogBytes());
+    }
+
+    /**
+     * Copies current state, rotates the log and writes the checkpoint in
+     * background. Once the checkpoint is on disk, rotated logs it includes are
+     * deleted. Writers are blocked only while the state is copied.
+     */
+    private void startCheckpoint() {
+        final TraceDbCheckpoint checkpoint;
+        final File folder = new File(folderPath());
+        Lock writeLock = stateLock.writeLock();
+        writeLock.lock();
+        try {
+            List<TraceData> heapNodes = storedValuesById.heapNodes();
+            checkpoint = new TraceDbCheckpoint(lastSeq, idCounter.get(), prefixes, heapNodes,
+                    storedValuesById.fingerprints(heapNodes), sameAsIds.copy(), typeIndex.copy(),
+                    uniqueIndexes.copy(), metadataIndex.copy(), versions.copy());
+            log.rotate(new File(folder, TRACEDB_LOG_FILE + "." + lastSeq));
         } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                }
+            writeLock.unlock();
+        }
 
-                if (file != null) {
-                    file.close();
+        if (checkpointExecutor == null) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                                                                    .setNameFormat("tracedb-checkpoint-%d")
+                                                                    .build();
+            checkpointExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        }
+        final TraceDb db = this;
+        checkpointFuture = checkpointExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                dbPool.set(db);
+                try {
+                    checkpoint.write(folder, om(), config);
+                    for (File rotatedLog : rotatedLogs(folder)) {
+                        if (rotatedLogSeq(rotatedLog) <= checkpoint.getSeq() && !rotatedLog.delete()) {
+                            LOG.warning("Couldn't delete rotated log " + rotatedLog.getAbsolutePath());
+                        }
+                    }
+                    LOG.fine("Written checkpoint of TraceDb at " + db.getDbUrl() + " up to record "
+                            + checkpoint.getSeq());
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.SEVERE, "Error while writing checkpoint of TraceDb at " + db.getDbUrl(), ex);
+                    throw ex;
+                } finally {
+                    dbPool.remove();
                 }
-            } catch (IOException ex) {
-                LOG.log(Level.SEVERE, "Error while closing TraceDb file", ex);
             }
+        });
+    }
 
+    /**
+     * Waits for the last started checkpoint to complete.
+     *
+     * @throws TraceProvException
+     *             if the checkpoint failed
+     */
+    private void awaitCheckpoint() {
+        if (checkpointFuture == null) {
+            return;
         }
+        try {
+            checkpointFuture.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new TraceProvException("Interrupted while waiting for checkpoint!", ex);
+        } catch (ExecutionException ex) {
+            throw new TraceProvException("Error while writing checkpoint!", ex.getCause());
+        } finally {
+            checkpointFuture = null;
+        }
+    }
 
-        LOG.info("Done flushing TraceDb at " + getDbUrl());
+    private void stopCheckpoints() {
+        if (checkpointExecutor != null) {
+            checkpointExecutor.shutdown();
+            try {
+                checkpointExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread()
+                      .interrupt();
+            }
+            checkpointExecutor = null;
+            checkpointFuture = null;
+        }
+    }
 
+    /**
+     * Flushes the db and writes a checkpoint of it, waiting for the checkpoint
+     * to be on disk. Normally there is no need to call this method, as
+     * checkpoints are automatically taken in background according to
+     * {@link TraceDbConfig} settings.
+     *
+     * @throws IllegalStateException
+     *             if db is in memory
+     */
+    public synchronized void checkpoint() {
+        flush();
+        awaitCheckpoint();
+        if (log.getRecords() > 0) {
+            startCheckpoint();
+            awaitCheckpoint();
+        }
+    }
+
+    /**
+     * Flushes the db, waits for pending checkpoints and releases files and
+     * threads used by the db. For in-memory dbs does nothing. After closing,
+     * the db can't be used anymore.
+     */
+    public synchronized void close() {
+        if (log == null) {
+            return;
+        }
+        flush();
+        try {
+            awaitCheckpoint();
+        } finally {
+            stopCheckpoints();
+            log.close();
+        }
+    }
+
+    /**
+     * Returns hit, miss and eviction counters of the cache of nodes read from
+     * disk (see {@link TraceDbConfig#isLazyLoading()}).
+     */
+    public CacheStats getNodeCacheStats() {
+        return storedValuesById.getCacheStats();
+    }
+
+    /**
+     * Returns the tuning options of the db.
+     */
+    public TraceDbConfig getConfig() {
+        return config;
     }
 
     /**
@@ -428,7 +1166,10 @@ public class TraceDb {
      */
     public static boolean existsDb(String folderPath) {
 
-        return new File(folderPath + File.separator + TRACEDB_FILE).exists();
+        return new File(folderPath, TRACEDB_LOG_FILE).exists()
+                || new File(folderPath, TRACEDB_MANIFEST_FILE).exists()
+                || !rotatedLogs(new File(folderPath)).isEmpty()
+                || new File(folderPath + File.separator + TRACEDB_FILE).exists();
     }
 
     /**
@@ -440,14 +1181,28 @@ public class TraceDb {
      *             if folderpath is non empty
      */
     public static TraceDb createDb(String folderpath, TypeRegistry typeRegistry) {
+        return createDb(folderpath, typeRegistry, TraceDbConfig.of());
+    }
+
+    /**
+     * Creates a database on the local hard drive and returns it.
+     *
+     * @param folderpath
+     *            The folder where the db is located
+     * @param config
+     *            Tuning options of the db
+     * @throws IllegalStateException
+     *             if folderpath is non empty
+     */
+    public static TraceDb createDb(String folderpath, TypeRegistry typeRegistry, TraceDbConfig config) {
 
         LOG.info("Creating TraceDb at " + folderpath + "  ...");
 
         checkNotEmpty(folderpath, "path to db folder is invalid!");
         checkNotNull(typeRegistry);
+        checkNotNull(config);
 
         File dir = new File(folderpath);
-        File jsonFile = new File(folderpath + File.separator + TRACEDB_FILE);
         if (dir.exists()) {
             if ((dir.isFile())) {
                 throw new IllegalStateException(
@@ -461,18 +1216,19 @@ public class TraceDb {
             }
         }
 
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new TraceProvException("Couldn't create TraceDb directory " + folderpath);
+        }
+
         TraceDb newDb = new TraceDb();
+        newDb.config = config;
+        newDb.updateUrlNormalizer();
+        newDb.log = new TraceDbLog(new File(dir, TRACEDB_LOG_FILE));
         Path path = Paths.get(folderpath);
         newDb.init(path.toUri()
                        .toString(),
                 typeRegistry);
-        try {
-            FileWriter fw = new FileWriter(jsonFile);
-            typeRegistry.getObjectMapper()
-                        .writeValue(fw, newDb);
-        } catch (Throwable tr) {
-            throw new TraceProvException("Error while writing trace db to disk!", tr);
-        }
+        newDb.flush();
 
         LOG.info("Created TraceDb at " + folderpath);
 
@@ -499,7 +1255,20 @@ public class TraceDb {
     public void putPrefix(String prefix, String url) {
         checkNotEmpty(prefix, "Url prefix is invalid!");
         checkNotEmpty(url, "Url is invalid!");
-        prefixes.put(prefix, url);
+        Lock readLock = stateLock.readLock();
+        readLock.lock();
+        try {
+            synchronized (logLock) {
+                prefixes.put(prefix, url);
+                updateUrlNormalizer();
+                log(LogRecord.builder()
+                             .setOp(LogOp.PREFIX)
+                             .setPrefix(prefix)
+                             .setUrl(url));
+            }
+        } finally {
+            readLock.unlock();
+        }
     }
 
     /**
@@ -530,38 +1299,41 @@ public class TraceDb {
         }
     }
 
+    /**
+     * Rebuilds the url normalizer from current prefixes and config.
+     */
+    private void updateUrlNormalizer() {
+        urlNormalizer = new UrlNormalizer(prefixes, config.getUrlCacheSize());
+    }
+
     /**
      * Returns the expanded version of the provided URL, according to the stored
-     * prefixes. If provided URL has an unknown prefix, the URL is returned as
-     * it is.
+     * prefixes. If more prefixes match, the longest one is used. If provided
+     * URL has an unknown prefix, the URL is returned as it is.
      */
     public String expandUrl(String url) {
         checkNotEmpty(url, "URL is invalid!");
-
-        for (String prefix : prefixes.keySet()) {
-            if (url.startsWith(prefix)) {
-                return prefixes.get(prefix) + url.substring(prefix.length());
-            }
-        }
-        return url;
+        return urlNormalizer.expand(url);
     }
 
     /**
-     * Expands the provided url and removes eventual slashes / at the end
+     * Expands the provided url and removes eventual slashes / at the end.
+     * Recently normalized urls are cached (see
+     * {@link TraceDbConfig#getUrlCacheSize()}).
      *
      * @return the normalized url
      */
     public String normalizeUrl(String url) {
         checkNotEmpty(url, "Invalid url!");
         // odr todo 0.3 this is rough....
-        return TodUtils.removeTrailingSlash(expandUrl(url));
+        return urlNormalizer.normalize(url);
     }
 
     /**
      * Returns an immutable map with [prefix, expanded url] pairs
      */
     public Map<String, String> getAllPrefixes() {
-        return ImmutableMap.copyOf(prefixes);
+        return urlNormalizer.getPrefixes();
     }
 
     /**
@@ -572,6 +1344,54 @@ public class TraceDb {
         return dbUrl;
     }
 
+    /**
+     * Returns an immutable read view of the db pinned to the last committed
+     * change. The snapshot sees neither later changes nor half applied ones
+     * like part of a {@link #create(Iterable)} batch. Taking a snapshot
+     * doesn't copy stored nodes, and writers never block snapshot readers.
+     */
+    public TraceDbSnapshot snapshot() {
+        checkInitialized();
+        synchronized (cliqueLock) {
+            synchronized (logLock) {
+                return new TraceDbSnapshot(this, lastSeq, sameAsIds.copy(), urlNormalizer);
+            }
+        }
+    }
+
+    /**
+     * Returns the version of node with given id committed at or before
+     * provided sequence number, or null if the node was committed later.
+     */
+    @Nullable
+    TraceData readCommitted(long datanodeId, long seq) {
+        TraceData ret = storedValuesById.get(datanodeId, seq, om());
+        if (ret == null) {
+            return null;
+        }
+        // versions are stored before the node is replaced, so a node being
+        // updated is always found in versions
+        VersionStore.Version[] nodeVersions = versions.get(datanodeId);
+        return nodeVersions == null ? ret : storedValuesById.get(VersionStore.asOf(nodeVersions, seq), om());
+    }
+
+    /**
+     * Returns true if the node with given id was committed at or before
+     * provided sequence number.
+     */
+    boolean isCommitted(long datanodeId, long seq) {
+        return storedValuesById.isCommitted(datanodeId, seq);
+    }
+
+    /**
+     * Returns the ids of the nodes with provided normalized url, by publisher
+     * id. If there are none, returns an empty map.
+     */
+    Map<Long, List<Long>> getStoredValuesByUrl(String normalizedUrl) {
+        Map<Long, List<Long>> ret = storedValuesByUrl.get(normalizedUrl);
+        return ret == null ? ImmutableMap.<Long, List<Long>> of() : ret;
+    }
+
     /**
      * Returns the datanode with given id.
      *
@@ -580,7 +1400,8 @@ public class TraceDb {
      * @throws eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException
      */
     public TraceData read(long datanodeId) {
-        return read(Arrays.asList(datanodeId)).get(0);
+        checkInitialized(INIT_LEVEL_0);
+        return readStored(datanodeId);
     }
 
     /**
@@ -594,18 +1415,38 @@ public class TraceDb {
         List<TraceData> ret = new ArrayList();
         for (Long datanodeId : datanodeIds) {
             checkNotNull(datanodeId);
-            checkArgument(datanodeId >= 0);
-            TraceData cand = storedValuesById.get(datanodeId);
-            if (cand == null) {
-                throw new DataNotFoundException("Couldn't find view with traceprov internal id " + datanodeId);
-            } else {
-                ret.add(cand);
-            }
+            ret.add(readStored(datanodeId));
         }
         return ret;
 
     }
 
+    /**
+     * Read all the datanodes with given ids. Same as {@link #read(Iterable)},
+     * without boxing ids.
+     * 
+     * @throws eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException
+     *             if any of the ids is not found.
+     */
+    public List<TraceData> read(long[] datanodeIds) {
+        checkInitialized(INIT_LEVEL_0);
+        checkNotNull(datanodeIds);
+        List<TraceData> ret = new ArrayList(datanodeIds.length);
+        for (long datanodeId : datanodeIds) {
+            ret.add(readStored(datanodeId));
+        }
+        return ret;
+    }
+
+    private TraceData readStored(long datanodeId) {
+        checkArgument(datanodeId >= 0);
+        TraceData ret = storedValuesById.get(datanodeId, om());
+        if (ret == null) {
+            throw new DataNotFoundException("Couldn't find view with traceprov internal id " + datanodeId);
+        }
+        return ret;
+    }
+
     protected boolean selfPublished(TraceData mainTraceView) {
         return mainTraceView.getId() == mainTraceView.getMetadata()
                                                      .getPublisherId();
@@ -623,13 +1464,107 @@ public class TraceDb {
         checkInitialized();
         checkArgument(datanodeId >= 0);
 
-        List<Long> clique = readSameAsIds(datanodeId);
+        if (sameAsIds.contains(datanodeId)) {
+            return read(sameAsIds.mainId(datanodeId));
+        }
+        throw new DataNotFoundException("Couldn't find view with internal traceprov id " + datanodeId);
+
+    }
+
+    /**
+     * Returns the version the node with given id had at provided time, that
+     * is its last version with timestamp not after {@code asOf}. Versions
+     * are found by binary search over the history of the node (see
+     * {@link #readVersions(long)}).
+     *
+     * @throws DataNotFoundException
+     *             if the node is not in the db or was created after
+     *             {@code asOf}
+     */
+    public TraceData read(long datanodeId, Timestamp asOf) {
+        checkInitialized();
+        checkNotNull(asOf);
+        TraceData ret = readAsOf(datanodeId, asOf.getTime());
+        if (ret == null) {
+            throw new DataNotFoundException("Couldn't find view with traceprov internal id " + datanodeId + " at "
+                    + asOf);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the version the node with given id had at provided time in
+     * millisecs, or null if it was created later.
+     *
+     * @throws DataNotFoundException
+     *             if the node is not in the db
+     */
+    @Nullable
+    private TraceData readAsOf(long datanodeId, long millis) {
+        TraceData current = readStored(datanodeId);
+        VersionStore.Version[] nodeVersions = versions.get(datanodeId);
+        if (nodeVersions == null) {
+            return NodeSegment.timestamp(current) <= millis ? current : null;
+        }
+        VersionStore.Version ret = VersionStore.asOfTime(nodeVersions, millis);
+        return ret == null ? null : storedValuesById.get(ret, om());
+    }
+
+    /**
+     * Returns the version the main view of the sameas clique where
+     * {@code datanodeId} belongs to had at provided time. Cliques have no
+     * history, so the current one is used. If the main view was created after
+     * {@code asOf}, the version of the view with given id is returned.
+     *
+     * @throws DataNotFoundException
+     *             if the view is not in the db or was created after
+     *             {@code asOf}
+     * @see #read(long, Timestamp)
+     */
+    public TraceData readMainObject(long datanodeId, Timestamp asOf) {
+        checkInitialized();
+        checkArgument(datanodeId >= 0);
+        checkNotNull(asOf);
+        if (!sameAsIds.contains(datanodeId)) {
+            throw new DataNotFoundException("Couldn't find view with internal traceprov id " + datanodeId);
+        }
+        TraceData ret = readAsOf(sameAsIds.mainId(datanodeId), asOf.getTime());
+        return ret == null ? read(datanodeId, asOf) : ret;
+    }
 
-        if (!clique.isEmpty()) {
-            return read(clique.get(0));
+    /**
+     * Returns what the db knew at provided time about the object with
+     * provided url as external id, that is the version at that time of the
+     * main view of the sameas clique of the views with given url which
+     * already existed (see {@link #readMainObject(long, Timestamp)}).
+     *
+     * @throws DataNotFoundException
+     *             if no view with given url existed at {@code asOf}
+     * @throws AmbiguousUrlException
+     *             if the views with given url existing at {@code asOf} are
+     *             in more than one clique.
+     */
+    public TraceData read(String url, Timestamp asOf) {
+        checkNotNull(asOf);
+        String normalizedUrl = normalizeUrl(url);
+        long firstId = -1;
+        for (List<Long> ids : getStoredValuesByUrl(normalizedUrl).values()) {
+            for (Long id : ids) {
+                if (readAsOf(id, asOf.getTime()) == null) {
+                    continue;
+                }
+                if (firstId == -1) {
+                    firstId = id;
+                } else if (!sameAsIds.sameAs(firstId, id)) {
+                    throw new AmbiguousUrlException("Tried to read url which is in more then one sameas clique!",
+                            normalizedUrl);
+                }
+            }
         }
-        throw new DataNotFoundException("Couldn't find view with internal traceprov id " + datanodeId);
-
+        if (firstId == -1) {
+            throw new DataNotFoundException("Couldn't find any stored object with url " + url + " at " + asOf);
+        }
+        return readMainObject(firstId, asOf);
     }
 
     /**
@@ -646,33 +1581,55 @@ public class TraceDb {
      *             if two cliques are found.
      */
     public TraceData read(String url) {
-        String normalizedUrl = normalizeUrl(url);
-
-        // publisherId -> many original urls
-        Map<Long, ArrayList<TraceData>> publisherIdToData = this.storedValuesByUrl.column(normalizedUrl);
-
-        if (publisherIdToData.isEmpty()) {
+        TraceData ret = tryRead(url);
+        if (ret == null) {
             throw new DataNotFoundException("Couldn't find any stored object with url " + url);
         }
+        return ret;
+    }
 
-        Set<Long> ids = new HashSet();
-        for (List<TraceData> tds : publisherIdToData.values()) {
-            ids.addAll(TraceDatas.ids(tds));
-        }
+    /**
+     * Same as {@link #read(String)}, but returns null instead of throwing an
+     * exception if no object has provided url. Meant for cheap 'is this object
+     * new?' probes.
+     *
+     * @throws eu.trentorise.opendata.traceprov.exceptions.AmbiguousUrlException
+     *             if two cliques are found.
+     */
+    @Nullable
+    public TraceData tryRead(String url) {
+        String normalizedUrl = normalizeUrl(url);
 
-        if (ids.isEmpty()) {
-            throw new IllegalStateException("Values shouldn't be empty for normalizedUrl " + normalizedUrl);
+        long mainId = urlIndex.mainId(normalizedUrl, sameAsIds);
+
+        if (mainId == UrlIndex.NOT_FOUND) {
+            return null;
         }
 
-        if (!sameAs(ids)) {
+        if (mainId == UrlIndex.AMBIGUOUS) {
             throw new AmbiguousUrlException("Tried to read url which is in more then one sameas clique!",
                     normalizedUrl);
-
         }
 
-        return readMainObject(ids.iterator()
-                                 .next());
+        return readStored(mainId);
+    }
+
+    /**
+     * Returns true if at least one stored object has provided url as external
+     * id.
+     */
+    public boolean contains(String url) {
+        return urlIndex.contains(normalizeUrl(url));
+    }
 
+    /**
+     * Returns true if a stored object with provided url as external id
+     * originated from provided publisher.
+     */
+    public boolean contains(long publisherId, String url) {
+        checkArgument(publisherId >= 0);
+        checkNotEmpty(url, "Invalid url!");
+        return !getStoredValuesByUrl(publisherId, normalizeUrl(url)).isEmpty();
     }
 
     /**
@@ -688,20 +1645,31 @@ public class TraceDb {
      * @throws eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException
      */
     public TraceData read(long publisherId, String url) {
+        TraceData ret = tryRead(publisherId, url);
+        if (ret == null) {
+            throw new DataNotFoundException("Couldn't find view identified by publisher id " + publisherId
+                    + " and external url " + normalizeUrl(url));
+        }
+        return ret;
+    }
+
+    /**
+     * Same as {@link #read(long, String)}, but returns null instead of
+     * throwing an exception if there is no such object.
+     */
+    @Nullable
+    public TraceData tryRead(long publisherId, String url) {
 
         checkArgument(publisherId >= 0);
         checkNotEmpty(url, "Invalid url!");
 
-        String normalizedUrl = normalizeUrl(url);
-
-        List<TraceData> rets = getStoredValuesByUrl(publisherId, normalizedUrl);
+        List<Long> rets = getStoredValuesByUrl(publisherId, normalizeUrl(url));
 
         if (rets.isEmpty()) {
-            throw new DataNotFoundException("Couldn't find view identified by publisher id " + publisherId
-                    + " and external url " + normalizedUrl);
+            return null;
         }
 
-        return rets.get(0);
+        return read(rets.get(0));
 
     }
 
@@ -712,22 +1680,17 @@ public class TraceDb {
         return create(Arrays.asList(dataNodes));
     }
 
-    private void index(TraceData dataNode) {
-        ImmutableList<TraceType> types = typeRegistry.getTypesFromInstance(dataNode.getRawValue());
-        for (TraceType type : types) {
-            if (indexedTypes.contains(type.getId())) {
-                indexedValues.put(type.getId(), idCounter);
-            }
-        }
-    }
-
     /**
      * Returns the publisher id
      * 
+     * @param checkedPublisherIds
+     *            ids of publishers already known to exist, to which the
+     *            publisher of provided node is added once checked.
      * @throws IllegalArgumentException
      * @throws TraceProvNotFoundException
      */
-    private long checkDataNodeToStore(TraceData dataNode, boolean toCreate, boolean publisher) {
+    private long checkDataNodeToStore(TraceData dataNode, boolean toCreate, boolean publisher,
+            Set<Long> checkedPublisherIds) {
         checkNotNull(dataNode);
         if (toCreate) {
             checkArgument(dataNode.getId() < 0, "Tried to create view with non-negative id: %s", dataNode.getId());
@@ -757,7 +1720,8 @@ public class TraceDb {
                 long pubId = dataNode.getMetadata()
                                      .getPublisherId();
                 if (pubId == -1) {
-                    return idCounter; // a publisher can self publish itself
+                    return -1; // a publisher can self publish itself, its
+                               // id is assigned on creation
                 } else {
                     return pubId;
                 }
@@ -769,7 +1733,11 @@ public class TraceDb {
             long pubId = dataNode.getMetadata()
                                  .getPublisherId();
             checkArgument(pubId != -1, "Tried to create datanode with invalid publisher, found one is empty!");
-            return read(pubId).getId();
+            if (!checkedPublisherIds.contains(pubId)) {
+                read(pubId);
+                checkedPublisherIds.add(pubId);
+            }
+            return pubId;
         }
     }
 
@@ -797,41 +1765,65 @@ public class TraceDb {
      * Creates new data nodes and return them. They all must have valid
      * publisher and refs.
      *
+     * <p>
+     * Nodes are created as a single batch, so for bulk ingestion prefer
+     * passing many nodes at once: all nodes are validated before creating any
+     * of them, each publisher is checked once, nodes get consecutive ids and
+     * the same timestamp, indexes are updated in one pass and the whole batch
+     * is committed and logged as one record, so after a crash either all of
+     * it is restored or none.
+     * </p>
+     *
      * @return new data nodes with newly assigned id.
+     * @throws DuplicateKeyException
+     *             if some node has the same key of an existing node (or of
+     *             another node in the batch) in a unique index of its class
+     *             type, in which case no node is created.
      */
     public <T extends TraceData> List<T> create(Iterable<T> dataNodes) {
         return create(dataNodes, false);
     }
 
     /**
-     * In case key has no value, the empty array is returned.
-     * <strong>NOTE:</strong> this empty array is <strong>not</strong> stored in
-     * the table.
+     * In case key has no value, the empty list is returned.
+     * <strong>NOTE:</strong> this empty list is <strong>not</strong> stored in
+     * the index.
      */
-    private ArrayList<TraceData> getStoredValuesByUrl(long publisherId, String url) {
-        ArrayList<TraceData> ret = this.storedValuesByUrl.get(publisherId, url);
+    List<Long> getStoredValuesByUrl(long publisherId, String url) {
+        Map<Long, List<Long>> byPublisher = this.storedValuesByUrl.get(url);
+        List<Long> ret = byPublisher == null ? null : byPublisher.get(publisherId);
         if (ret == null) {
-            return new ArrayList();
+            return ImmutableList.of();
         } else {
             return ret;
         }
 
     }
 
-    private void insertStoredValueByUrl(TraceData traceData) {
-        long id = traceData.getId();
-        long pubId = traceData.getMetadata()
-                              .getPublisherId();
+    /**
+     * Id lists are copied on write, as they are mostly read and usually hold
+     * a single id. The node must already be in {@link #sameAsIds}.
+     */
+    private void insertStoredValueByUrl(long pubId, String uri, long id) {
         checkArgument(id >= 0, "Invalid tracedata id! Found: %s", id);
-        String uri = traceData.getRef()
-                              .uri();
-        ArrayList<TraceData> datanodes = storedValuesByUrl.get(pubId, uri);
+        ConcurrentMap<Long, List<Long>> byPublisher = storedValuesByUrl.get(uri);
+        if (byPublisher == null) {
+            ConcurrentMap<Long, List<Long>> newByPublisher = new ConcurrentHashMap<>(2);
+            byPublisher = storedValuesByUrl.putIfAbsent(uri, newByPublisher);
+            if (byPublisher == null) {
+                byPublisher = newByPublisher;
+            }
+        }
+        List<Long> datanodes = byPublisher.get(pubId);
         if (datanodes == null) {
-            storedValuesByUrl.put(pubId, uri, Lists.newArrayList(traceData));
-        } else {
-            datanodes.add(traceData);
-            storedValuesByUrl.put(pubId, uri, datanodes);
+            List<Long> newDatanodes = new CopyOnWriteArrayList<>();
+            datanodes = byPublisher.putIfAbsent(pubId, newDatanodes);
+            if (datanodes == null) {
+                datanodes = newDatanodes;
+            }
         }
+        datanodes.add(id);
+        urlIndex.add(uri, id);
     }
 
     /**
@@ -844,32 +1836,268 @@ public class TraceDb {
      */
     private <T extends TraceData> List<T> create(Iterable<T> dataNodes, boolean publisher) {
         checkInitialized(0);
-        ImmutableList.Builder<T> retb = ImmutableList.builder();
+        checkNotNull(dataNodes);
+        List<T> nodes = Lists.newArrayList(dataNodes);
+        int n = nodes.size();
+        if (n == 0) {
+            return ImmutableList.of();
+        }
+
+        long[] publisherIds = new long[n];
+        Set<Long> checkedPublisherIds = new HashSet();
+        for (int i = 0; i < n; i++) {
+            publisherIds[i] = checkDataNodeToStore(nodes.get(i), true, publisher, checkedPublisherIds);
+        }
+
+        Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+        // nodes of a batch often share the same metadata object
+        Map<NodeMetadata, NodeMetadata> newMetadatas = new IdentityHashMap();
+        List<T> ret = new ArrayList(n);
+        // ids are allocated holding the state lock, so a checkpoint never
+        // sees an id allocated to a node not yet stored
+        Lock readLock = stateLock.readLock();
+        readLock.lock();
+        try {
+            long firstId = idCounter.getAndAdd(n);
+            for (int i = 0; i < n; i++) {
+                T dataNode = nodes.get(i);
+                long id = firstId + i;
+                NodeMetadata newwMetadata;
+                if (publisherIds[i] == -1) {
+                    newwMetadata = newMetadata(dataNode.getMetadata(), id, timestamp);
+                } else {
+                    newwMetadata = newMetadatas.get(dataNode.getMetadata());
+                    if (newwMetadata == null) {
+                        newwMetadata = newMetadata(dataNode.getMetadata(), publisherIds[i], timestamp);
+                        newMetadatas.put(dataNode.getMetadata(), newwMetadata);
+                    }
+                }
 
-        for (TraceData dataNode : dataNodes) {
+                ret.add((T) dataNode.fromThis()
+                                    .setId(id)
+                                    .setMetadata(newwMetadata)
+                                    .setRawValue(dedup(dataNode.getRawValue()))
+                                    .build());
+            }
+            store(ret);
+            logCreate(ret);
+        } finally {
+            readLock.unlock();
+        }
+        return Collections.unmodifiableList(ret);
+
+    }
+
+    private static NodeMetadata newMetadata(NodeMetadata metadata, long publisherId, @Nullable Timestamp timestamp) {
+        return NodeMetadata.builder()
+                           .from(metadata)
+                           .setPublisherId(publisherId)
+                           .setTimestamp(timestamp)
+                           .build();
+    }
+
+    /**
+     * Returns the canonical instance of provided raw value if
+     * {@link TraceDbConfig#isDedupRawValues() deduplication} is enabled,
+     * otherwise the value itself.
+     */
+    @Nullable
+    private Object dedup(@Nullable Object rawValue) {
+        return config.isDedupRawValues() ? interner.intern(rawValue) : rawValue;
+    }
+
+    /**
+     * Returns provided node with its raw value deduplicated (see
+     * {@link #dedup(Object)}).
+     */
+    TraceData dedup(TraceData node) {
+        return config.isDedupRawValues() ? interner.intern(node) : node;
+    }
+
+    /**
+     * Puts a node with an already assigned id into the db indexes.
+     */
+    void store(TraceData node) {
+        store(ImmutableList.of(node));
+    }
+
+    /**
+     * Puts nodes with already assigned consecutive ids into the db indexes.
+     * 
+     * @throws DuplicateKeyException
+     *             if nodes violate some unique index, in which case nothing is
+     *             stored.
+     */
+    private void store(List<? extends TraceData> nodes) {
+        long firstId = nodes.get(0)
+                            .getId();
+        for (int i = 0; i < nodes.size(); i++) {
+            checkArgument(nodes.get(i)
+                               .getId() == firstId + i,
+                    "Expected consecutive ids, found %s after %s", nodes.get(i)
+                                                                       .getId(),
+                    firstId + i - 1);
+        }
+        uniqueIndexes.putAll(nodes);
+        for (TraceData node : nodes) {
+            storedValuesById.put(node);
+            storedValuesById.putFingerprint(node.getId(), ContentHash.of(node, om(), subtreeHashes));
+            timeIndex.add(node.getMetadata()
+                              .getPublisherId(),
+                    NodeSegment.timestamp(node), node.getId());
+        }
+        sameAsIds.addRange(firstId, firstId + nodes.size());
+        // urls are indexed last, so readers resolving an url only find nodes
+        // already in their own clique
+        for (TraceData node : nodes) {
+            insertStoredValueByUrl(node.getMetadata()
+                                       .getPublisherId(),
+                    node.getRef()
+                        .uri(),
+                    node.getId());
+        }
+        typeIndex.addAll(nodes, typeRegistry);
+        metadataIndex.addAll(nodes);
+        advanceIdCounter(firstId + nodes.size());
+    }
+
+    /**
+     * Puts a checkpointed node into the db indexes, leaving it on disk until it
+     * is first read. As the node is not decoded, it is not added to type
+     * indexes.
+     */
+    void storeOnDisk(NodeSegment segment, NodeSegment.Entry entry) {
+        storedValuesById.putOnDisk(entry.id, segment);
+        storedValuesById.putFingerprint(entry.id, entry.fingerprint);
+        timeIndex.add(entry.publisherId, entry.timestamp, entry.id);
+        sameAsIds.add(entry.id);
+        insertStoredValueByUrl(entry.publisherId, entry.url, entry.id);
+        advanceIdCounter(entry.id + 1);
+    }
 
-            long publisherId = checkDataNodeToStore(dataNode, true, publisher);
+    /**
+     * Makes sure next allocated ids are not lower than provided one.
+     */
+    private void advanceIdCounter(long minNextId) {
+        long cur = idCounter.get();
+        while (cur < minNextId && !idCounter.compareAndSet(cur, minNextId)) {
+            cur = idCounter.get();
+        }
+    }
 
-            NodeMetadata newwMetadata = NodeMetadata.builder()
-                                                    .from(dataNode.getMetadata())
-                                                    .setPublisherId(publisherId)
-                                                    .setTimestamp(new Timestamp(System.currentTimeMillis()))
-                                                    .build();
+    /**
+     * Commits provided nodes, recording their creation in the log if the db
+     * has one. All the nodes are committed at once by a single record, so
+     * snapshots either see all of them or none, and so does the db replayed
+     * after a crash.
+     */
+    private void logCreate(List<? extends TraceData> nodes) {
+        LogRecord.Builder recordBuilder = LogRecord.builder();
+        if (nodes.size() == 1) {
+            recordBuilder.setOp(LogOp.CREATE);
+            if (log != null) {
+                recordBuilder.setNode(NodeCodec.encode(nodes.get(0), om()));
+            }
+        } else {
+            recordBuilder.setOp(LogOp.CREATE_BATCH);
+            if (log != null) {
+                List<JsonNode> encoded = new ArrayList(nodes.size());
+                for (TraceData node : nodes) {
+                    encoded.add(NodeCodec.encode(node, om()));
+                }
+                recordBuilder.addAllNodes(encoded);
+            }
+        }
+        synchronized (logLock) {
+            long seq = log(recordBuilder);
+            for (TraceData node : nodes) {
+                commit(node.getId(), seq);
+            }
+        }
+    }
 
-            T toCreate = (T) dataNode.fromThis()
-                                     .setId(idCounter)
-                                     .setMetadata(newwMetadata)
-                                     .build();
-            storedValuesById.put(idCounter, toCreate);
-            insertStoredValueByUrl(toCreate);
-            putSameAsIds(idCounter);
+    /**
+     * Records the node with given id was committed by the change with
+     * provided sequence number.
+     */
+    void commit(long id, long seq) {
+        storedValuesById.commit(id, seq);
+    }
 
-            index(toCreate);
-            idCounter += 1;
-            retb.add(toCreate);
+    /**
+     * Records a change in the log, if the db has one.
+     * 
+     * @return the sequence number of the change
+     */
+    private long log(LogRecord.Builder recordBuilder) {
+        synchronized (logLock) {
+            lastSeq += 1;
+            if (log != null) {
+                log.append(recordBuilder.setSeq(lastSeq)
+                                        .build(),
+                        om());
+            }
+            return lastSeq;
         }
-        return retb.build();
+    }
 
+    /**
+     * Applies a change read from the log, without logging it again.
+     */
+    void apply(LogRecord record) {
+        switch (record.getOp()) {
+        case CREATE:
+            TraceData node = dedup(NodeCodec.decode(record.getNode(), om()));
+            store(node);
+            commit(node.getId(), record.getSeq());
+            break;
+        case CREATE_BATCH:
+            List<TraceData> nodes = new ArrayList(record.getNodes()
+                                                        .size());
+            for (JsonNode encoded : record.getNodes()) {
+                nodes.add(dedup(NodeCodec.decode(encoded, om())));
+            }
+            store(nodes);
+            for (TraceData created : nodes) {
+                commit(created.getId(), record.getSeq());
+            }
+            break;
+        case SAME_AS:
+            mergeSameAsIds(record.getMainId(), record.getIds());
+            break;
+        case MAIN_NODE:
+            sameAsIds.setMainId(record.getMainId());
+            break;
+        case PREFIX:
+            prefixes.put(record.getPrefix(), record.getUrl());
+            updateUrlNormalizer();
+            break;
+        case INDEX_TYPE:
+            if (typeIndex.declare(record.getTypeId())) {
+                buildTypeIndex(typeRegistry.get(record.getTypeId()), storedValuesById.limit());
+            }
+            break;
+        case UPDATE:
+        case HARD_UPDATE:
+            boolean hard = record.getOp() == LogOp.HARD_UPDATE;
+            List<TraceData> prevs = new ArrayList(record.getNodes()
+                                                        .size());
+            List<TraceData> updated = new ArrayList(record.getNodes()
+                                                          .size());
+            for (JsonNode encoded : record.getNodes()) {
+                TraceData version = dedup(NodeCodec.decode(encoded, om()));
+                prevs.add(readStored(version.getId()));
+                updated.add(version);
+            }
+            storeVersions(prevs, updated, hard);
+            for (TraceData version : updated) {
+                versions.commit(version.getId(), record.getSeq());
+            }
+            break;
+        default:
+            throw new IllegalStateException("Unsupported log operation: " + record.getOp());
+        }
+        lastSeq = record.getSeq();
     }
 
     /**
@@ -877,52 +2105,262 @@ public class TraceDb {
      * @see #hardUpdate(Iterable)
      */
     protected List<TraceData> hardUpdate(TraceData... dataNodes) {
-        return Arrays.asList(dataNodes);
+        return hardUpdate(Arrays.asList(dataNodes));
     }
 
     /**
-     * todo
-     * @see {@link #hardUpdate(Iterable)}
+     * Stores new versions of existing nodes and returns them. Each provided
+     * node must have the id of a stored node, and the same url and publisher
+     * (or no publisher). New versions get a new timestamp, while their
+     * previous versions are kept (see {@link #readVersions(long)}) and still
+     * seen by snapshots taken before the update. Reads return the new
+     * versions.
+     *
+     * <p>
+     * Nodes equal to their current version, except for the timestamp, are
+     * returned as they are without storing anything, so re-harvesting
+     * unchanged objects doesn't grow the db. Parts of the raw values equal to
+     * the previous version are shared with it. As for
+     * {@link #create(Iterable)}, the whole batch is logged as a single record.
+     * </p>
+     *
+     * @return the current versions of provided nodes
+     * @throws DataNotFoundException
+     *             if some node is not in the db
+     * @throws DuplicateKeyException
+     *             if some new version has the same key of another node in a
+     *             unique index of its class type, in which case no node is
+     *             updated.
      */
-    @Nullable
     public List<TraceData> update(Iterable<TraceData> dataNodes) {
-        throw new UnsupportedOperationException("TODO implement me!");
+        return update(dataNodes, false, null);
     }
 
     /**
      * 
-     * @see #hardUpdate(Iterable)
+     * @see #update(Iterable)
      */
-    protected List<TraceData> update(TraceData... dataNodes) {
-        throw new UnsupportedOperationException("TODO implement me!");
-        // return Arrays.asList(dataNodes);
+    public List<TraceData> update(TraceData... dataNodes) {
+        return update(Arrays.asList(dataNodes));
     }
 
     /**
      * Writes provided dataNodes to their originId / foreign identifier slot.
-     * This is a hard update, if possible just create a new view using
+     * This is a hard update: current versions are overwritten and lost, also
+     * for snapshots. If possible just create a new version using
      * {@link #update } instead.
      *
-     * @param view
-     *            the view to update
-     * @return the value previously associated with the originId / foreign
-     *         identifier slot
+     * @return the values previously associated with the originId / foreign
+     *         identifier slots
      * @throws DataNotFoundException
      */
-    @Nullable
     protected List<TraceData> hardUpdate(Iterable<TraceData> dataNodes) {
-        throw new UnsupportedOperationException("TODO implement me!");
+        List<TraceData> ret = new ArrayList();
+        update(dataNodes, true, ret);
+        return ret;
+    }
+
+    /**
+     * @param prevs
+     *            if not null, the previous versions of provided nodes are
+     *            added to it
+     * @return the current versions of provided nodes
+     */
+    private List<TraceData> update(Iterable<TraceData> dataNodes, boolean hard, @Nullable List<TraceData> prevs) {
+        checkInitialized();
+        checkNotNull(dataNodes);
+        List<TraceData> nodes = Lists.newArrayList(dataNodes);
+        Set<Long> ids = new HashSet();
+        for (TraceData node : nodes) {
+            checkNotNull(node);
+            checkArgument(ids.add(node.getId()), "Tried to update view %s twice in the same batch!", node.getId());
+        }
+
+        Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+        List<TraceData> ret = new ArrayList(nodes.size());
+        Lock readLock = stateLock.readLock();
+        readLock.lock();
+        try {
+            synchronized (updateLock) {
+                List<TraceData> changedPrevs = new ArrayList();
+                List<TraceData> changed = new ArrayList();
+                for (TraceData node : nodes) {
+                    TraceData prev = read(node.getId());
+                    if (prevs != null) {
+                        prevs.add(prev);
+                    }
+                    TraceData version = newVersion(prev, node, timestamp);
+                    if (version == null) {
+                        ret.add(prev);
+                    } else {
+                        changedPrevs.add(prev);
+                        changed.add(version);
+                        ret.add(version);
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    storeVersions(changedPrevs, changed, hard);
+                    logUpdate(changed, hard);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * Returns the new version of stored node {@code prev} described by
+     * provided node, or null if the node doesn't change it.
+     */
+    @Nullable
+    private TraceData newVersion(TraceData prev, TraceData node, Timestamp timestamp) {
+        long publisherId = prev.getMetadata()
+                               .getPublisherId();
+        long newPublisherId = node.getMetadata()
+                                  .getPublisherId();
+        checkArgument(newPublisherId == -1 || newPublisherId == publisherId,
+                "Tried to change publisher of view %s from %s to %s!", prev.getId(), publisherId, newPublisherId);
+        String url = normalizeUrl(prev.getRef()
+                                      .uri());
+        String newUrl;
+        try {
+            newUrl = normalizeUrl(node.getRef()
+                                      .uri());
+        } catch (IllegalStateException ex) {
+            throw new IllegalArgumentException(
+                    "Tried to update a DataNode without a valid ref! Ref is " + node.toString(), ex);
+        }
+        checkArgument(url.equals(newUrl), "Tried to change url of view %s from %s to %s!", prev.getId(), url,
+                newUrl);
+
+        // versions must be in timestamp order even if the clock goes back
+        Timestamp prevTimestamp = prev.getMetadata()
+                                      .getTimestamp();
+        Timestamp newTimestamp = prevTimestamp != null && prevTimestamp.after(timestamp) ? prevTimestamp
+                : timestamp;
+
+        Object rawValue = VersionStore.share(prev.getRawValue(), node.getRawValue());
+        boolean sameRef = node.getRef()
+                              .equals(prev.getRef());
+        if (sameRef && node.getClass() == prev.getClass() && rawValue == prev.getRawValue()
+                && newMetadata(node.getMetadata(), publisherId, prev.getMetadata()
+                                                                    .getTimestamp()).equals(prev.getMetadata())) {
+            return null;
+        }
+        return node.fromThis()
+                   .setId(prev.getId())
+                   .setRef(sameRef ? prev.getRef() : node.getRef())
+                   .setMetadata(newMetadata(node.getMetadata(), publisherId, newTimestamp))
+                   .setRawValue(dedup(rawValue))
+                   .build();
+    }
+
+    /**
+     * Replaces stored nodes with their new versions at the same positions in
+     * {@code nodes}, updating the indexes. Url and publisher of nodes must
+     * not change.
+     *
+     * @param hard
+     *            if true previous versions are overwritten, otherwise new
+     *            versions are appended to the history of the nodes, not
+     *            committed yet.
+     * @throws DuplicateKeyException
+     *             if nodes violate some unique index, in which case nothing is
+     *             stored.
+     */
+    private void storeVersions(List<TraceData> prevs, List<TraceData> nodes, boolean hard) {
+        uniqueIndexes.replace(prevs, nodes);
+        for (int i = 0; i < nodes.size(); i++) {
+            TraceData prev = prevs.get(i);
+            TraceData node = nodes.get(i);
+            long prevSeq = storedValuesById.commitSeq(node.getId());
+            if (hard) {
+                versions.replaceLast(prev, prevSeq, node);
+            } else {
+                versions.append(prev, prevSeq, node);
+            }
+            storedValuesById.put(node);
+            storedValuesById.putFingerprint(node.getId(), ContentHash.of(node, om(), subtreeHashes));
+            long publisherId = node.getMetadata()
+                                   .getPublisherId();
+            timeIndex.remove(publisherId, NodeSegment.timestamp(prev), node.getId());
+            timeIndex.add(publisherId, NodeSegment.timestamp(node), node.getId());
+            typeIndex.update(prev, node, typeRegistry);
+            metadataIndex.update(prev, node);
+        }
+    }
+
+    /**
+     * Records the update of provided nodes in the log, if the db has one, and
+     * commits their new versions.
+     */
+    private void logUpdate(List<TraceData> nodes, boolean hard) {
+        LogRecord.Builder recordBuilder = LogRecord.builder()
+                                                   .setOp(hard ? LogOp.HARD_UPDATE : LogOp.UPDATE);
+        if (log != null) {
+            List<JsonNode> encoded = new ArrayList(nodes.size());
+            for (TraceData node : nodes) {
+                encoded.add(NodeCodec.encode(node, om()));
+            }
+            recordBuilder.addAllNodes(encoded);
+        }
+        synchronized (logLock) {
+            long seq = log(recordBuilder);
+            for (TraceData node : nodes) {
+                versions.commit(node.getId(), seq);
+            }
+        }
+    }
+
+    /**
+     * Puts into the db an updated node read from a checkpoint, given its
+     * versions. If the current version was left on disk, the node is too.
+     *
+     * @param seq
+     *            the sequence number of the checkpoint
+     */
+    void loadVersions(long id, VersionStore.Version[] nodeVersions, long seq) {
+        VersionStore.Version current = nodeVersions[nodeVersions.length - 1];
+        if (current.node == null) {
+            storeOnDisk(current.segment, current.entry);
+        } else {
+            store(current.node);
+        }
+        commit(id, seq);
+        versions.load(id, nodeVersions);
+    }
+
+    /**
+     * Returns all the versions of the node with given id stored by
+     * {@link #update(Iterable)}, from the first one to the current one.
+     *
+     * @throws DataNotFoundException
+     *             if the node is not in the db
+     */
+    public List<TraceData> readVersions(long datanodeId) {
+        checkInitialized();
+        TraceData current = readStored(datanodeId);
+        VersionStore.Version[] nodeVersions = versions.get(datanodeId);
+        if (nodeVersions == null) {
+            return ImmutableList.of(current);
+        }
+        ImmutableList.Builder<TraceData> ret = ImmutableList.builder();
+        for (VersionStore.Version version : nodeVersions) {
+            ret.add(storedValuesById.get(version, om()));
+        }
+        return ret.build();
     }
 
     /**
      *
      * Returns the ids of the views considered to be the same as the provided
-     * one (including it).
+     * one (including it). The main view id comes first.
      */
     public List<Long> readSameAsIds(long id) {
         checkInitialized();
         checkArgument(id >= 0);
-        return ImmutableList.copyOf(sameAsIds.get(id));
+        return sameAsIds.members(id);
     }
 
     /**
@@ -938,15 +2376,17 @@ public class TraceDb {
      */
     public void setMainNode(long datanodeId) {
         read(datanodeId);
-
-        Set<Long> ids = ImmutableSet.copyOf(sameAsIds.get(datanodeId));
-
-        for (Long id : ids) {
-            // because get returns a view
-            Set<Long> valsCopy = new LinkedHashSet(this.sameAsIds.get(id));
-            this.sameAsIds.removeAll(id);
-            this.sameAsIds.put(id, datanodeId);
-            this.sameAsIds.putAll(id, valsCopy);
+        Lock readLock = stateLock.readLock();
+        readLock.lock();
+        try {
+            synchronized (cliqueLock) {
+                sameAsIds.setMainId(datanodeId);
+                log(LogRecord.builder()
+                             .setOp(LogOp.MAIN_NODE)
+                             .setMainId(datanodeId));
+            }
+        } finally {
+            readLock.unlock();
         }
     }
 
@@ -971,21 +2411,33 @@ public class TraceDb {
             read(mainId);
         }
 
-        ImmutableSet.Builder<Long> enlargedCliqueb = ImmutableSet.builder();
-        enlargedCliqueb.add(mainId);
-        for (Long id : ids) {
-            enlargedCliqueb.addAll(readSameAsIds(id));
+        Lock readLock = stateLock.readLock();
+        readLock.lock();
+        try {
+            synchronized (cliqueLock) {
+                mergeSameAsIds(mainId, ids);
+                log(LogRecord.builder()
+                             .setOp(LogOp.SAME_AS)
+                             .setMainId(mainId)
+                             .addAllIds(ids));
+            }
+        } finally {
+            readLock.unlock();
         }
+    }
 
-        ImmutableSet<Long> enlargedClique = enlargedCliqueb.build();
-
-        for (Long id : enlargedClique) {
-            this.sameAsIds.removeAll(id);
-            this.sameAsIds.putAll(id, enlargedClique);
-
+    /**
+     * Merges the cliques of provided ids into the clique of {@code mainId},
+     * without logging the change.
+     */
+    void mergeSameAsIds(long mainId, Iterable<Long> ids) {
+        checkArgument(sameAsIds.contains(mainId), "Couldn't find view with traceprov internal id %s", mainId);
+        for (Long id : ids) {
+            if (sameAsIds.contains(id)) {
+                sameAsIds.union(mainId, id);
+            }
         }
-
-        assert true;
+        sameAsIds.setMainId(mainId);
     }
 
     /**
@@ -1008,26 +2460,90 @@ public class TraceDb {
 
     /**
      * Returns true if the stored views corresponding to the two provided ids
-     * are equal using Java equality.
+     * have equal content, that is the same type, kind and raw value, whatever
+     * their ids, urls and other metadata. Views are compared by their Merkle
+     * root hashes (see {@link #readFingerprint(long)}) in constant time,
+     * without decoding them.
      *
      * @throws DataNotFoundException
      *             if objects are not found.
      */
     public boolean shallowEqual(long viewId1, long viewId2) {
-        TraceData view1 = read(viewId1);
-        TraceData view2 = read(viewId2);
-        throw new UnsupportedOperationException("TODO IMPLEMENT ME!");
-        // return view1.controlledEquals(view2);
+        checkInitialized();
+        return readFingerprint(viewId1) == readFingerprint(viewId2);
     }
 
     /**
      * Returns true if the stored objects corresponding to the two provided ids
-     * are equal using Java equality.
+     * are equal in everything except the data assigned by the db, that is id,
+     * publisher and timestamp. Contents are compared first by their Merkle
+     * root hashes (see {@link #shallowEqual(long, long)}), so only objects
+     * which are very likely equal are decoded to compare raw values, refs and
+     * metadata.
      *
      * @throws DataNotFoundException
      */
     public boolean deepEqual(long objId1, long objId2) {
-        throw new UnsupportedOperationException("TODO Implement me!!");
+        if (!shallowEqual(objId1, objId2)) {
+            return false;
+        }
+        TraceData obj1 = readStored(objId1);
+        TraceData obj2 = readStored(objId2);
+        // hashes may collide
+        return obj1.getClass() == obj2.getClass()
+                && Objects.equal(obj1.getRawValue(), obj2.getRawValue())
+                && obj1.getRef()
+                       .equals(obj2.getRef())
+                && newMetadata(obj1.getMetadata(), -1, null).equals(newMetadata(obj2.getMetadata(), -1, null));
+    }
+
+    /**
+     * Returns the changes which turn the raw value of {@code oldData} into
+     * the one of {@code newData}, with paths starting from the roots of the
+     * nodes. If the nodes have different kinds or types, a single change of
+     * the root is returned. Beans like the values of {@link DataObject} nodes
+     * are walked through their json representation, so changes inside them
+     * hold json values (maps, lists and scalars) rather than Java objects.
+     *
+     * <p>
+     * Changes are computed lazily while iterating, pruning equal subtrees by
+     * their Merkle hashes and streaming arrays position by position (see
+     * {@link TraceDiff}), so diffing successive versions of a node (see
+     * {@link #readVersions(long)}) only walks the parts which changed.
+     * </p>
+     */
+    public Iterator<DataChange> diff(TraceData oldData, TraceData newData) {
+        checkInitialized();
+        checkNotNull(oldData);
+        checkNotNull(newData);
+        PropertyPath root = PropertyPath.builder()
+                                        .build();
+        if (oldData.getClass() != newData.getClass() || !oldData.getMetadata()
+                                                                .getType()
+                                                                .getId()
+                                                                .equals(newData.getMetadata()
+                                                                               .getType()
+                                                                               .getId())) {
+            return Iterators.singletonIterator(
+                    DataChange.of(ChangeKind.CHANGED, root, oldData.getRawValue(), newData.getRawValue()));
+        }
+        return new TraceDiff(root, oldData.getRawValue(), newData.getRawValue(), om(), subtreeHashes);
+    }
+
+    /**
+     * Returns the changes which turn the stored view with id {@code oldId}
+     * into the one with id {@code newId}. Views with equal fingerprints (see
+     * {@link #shallowEqual(long, long)}) are not even decoded.
+     *
+     * @throws DataNotFoundException
+     *             if views are not found.
+     * @see #diff(TraceData, TraceData)
+     */
+    public Iterator<DataChange> diff(long oldId, long newId) {
+        if (shallowEqual(oldId, newId)) {
+            return Collections.emptyIterator();
+        }
+        return diff(readStored(oldId), readStored(newId));
     }
 
     /**
@@ -1043,32 +2559,97 @@ public class TraceDb {
      * @throws DataNotFoundException
      */
     public boolean sameAs(Iterable<Long> viewIds) {
-        long firstMainId = -1;
+        long firstId = -1;
         for (Long viewId : viewIds) {
-            long curMainId = readMainObject(viewId).getId();
-            if (firstMainId == -1) {
-                firstMainId = curMainId;
-            } else {
-                if (curMainId != firstMainId) {
-                    return false;
-                }
+            checkNotNull(viewId);
+            if (!sameAsIds.contains(viewId)) {
+                throw new DataNotFoundException("Couldn't find view with internal traceprov id " + viewId);
+            }
+            if (firstId == -1) {
+                firstId = viewId;
+            } else if (!sameAsIds.sameAs(firstId, viewId)) {
+                return false;
             }
         }
         return true;
     }
 
     /**
+     * Returns true if the view published by origin {@code originId} with
+     * {@code externalId} as url has the same content of the main view of its
+     * sameas clique, that is, the db still reflects what the origin
+     * published. Contents are compared by fingerprint (see
+     * {@link #readFingerprint(long)}), so nodes are neither decoded nor
+     * walked.
+     *
      * @throws DataNotFoundException
+     *             if the origin has no view with given url
      */
     public boolean isSynchronized(long originId, String externalId) {
+        checkInitialized();
+        checkArgument(originId >= 0);
+        checkNotEmpty(externalId, "Invalid external id!");
+        String normalizedUrl = normalizeUrl(externalId);
+        List<Long> ids = getStoredValuesByUrl(originId, normalizedUrl);
+        if (ids.isEmpty()) {
+            throw new DataNotFoundException("Couldn't find view identified by publisher id " + originId
+                    + " and external url " + normalizedUrl, originId, externalId);
+        }
+        long id = ids.get(0);
+        return readFingerprint(id) == readFingerprint(sameAsIds.mainId(id));
+    }
+
+    /**
+     * Returns true if the db already holds a view with the same publisher,
+     * url and content of provided one, so storing it again would change
+     * nothing. Harvesters can so skip foreign objects which didn't change
+     * since last harvest, as only the fingerprint of the stored view is read.
+     */
+    public boolean isSynchronized(TraceData foreignView) {
+        checkInitialized();
+        checkNotNull(foreignView);
+        List<Long> ids = getStoredValuesByUrl(foreignView.getMetadata()
+                                                         .getPublisherId(),
+                normalizeUrl(foreignView.getRef()
+                                        .uri()));
+        return !ids.isEmpty() && readFingerprint(ids.get(0)) == fingerprint(foreignView);
+    }
+
+    /**
+     * Returns the content fingerprint of the node with given id, a 64 bit
+     * hash of its type, kind and raw value. Nodes with equal content have the
+     * same fingerprint, whatever their metadata, and it is very unlikely for
+     * different contents to have the same one. Fingerprints are computed when
+     * nodes are stored and saved in checkpoints, so reading them doesn't
+     * decode nodes.
+     *
+     * @throws DataNotFoundException
+     *             if the node is not in the db
+     */
+    public long readFingerprint(long datanodeId) {
+        checkInitialized();
+        long ret = storedValuesById.fingerprint(datanodeId);
+        if (ret == ContentHash.UNKNOWN) {
+            // nodes from segments written before fingerprints
+            synchronized (updateLock) {
+                ret = storedValuesById.fingerprint(datanodeId);
+                if (ret == ContentHash.UNKNOWN) {
+                    ret = ContentHash.of(readStored(datanodeId), om(), subtreeHashes);
+                    storedValuesById.putFingerprint(datanodeId, ret);
+                }
+            }
+        }
+        return ret;
+    }
 
-        throw new UnsupportedOperationException("TODO IMPLEMENT ME!");
-        // todo check odrity
-        /*
-         * return (odrView.getTimestamp().isBefore(foreignView.getTimestamp())
-         * || odrView.getTimestamp().isEqual(foreignView.getTimestamp())); //&&
-         * odrView.controlledEquals(foreignView)
-         */
+    /**
+     * Returns the content fingerprint provided node would have once stored.
+     *
+     * @see #readFingerprint(long)
+     */
+    public long fingerprint(TraceData data) {
+        checkInitialized();
+        return ContentHash.of(data, om());
     }
 
     /**
@@ -1123,7 +2704,7 @@ public class TraceDb {
         TraceData node2 = read(objId2);
 
         ImmutableList<TraceType> types1 = typeRegistry.getTypesFromInstance(node1.getRawValue());
-        ImmutableList<TraceType> types2 = typeRegistry.getTypesFromInstance(node1.getRawValue());
+        ImmutableList<TraceType> types2 = typeRegistry.getTypesFromInstance(node2.getRawValue());
 
         SetView<TraceType> types = Sets.intersection(new HashSet(types1), new HashSet(types2));
 
@@ -0,0 +1,607 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.exceptions.TraceProvException;
+
+/**
+ * A compact copy of the whole db state at a given log sequence number. State
+ * is copied when the checkpoint is constructed, so the checkpoint can then be
+ * safely written from another thread while the db keeps changing.
+ *
+ * <p>
+ * On disk a checkpoint is made of immutable {@link NodeSegment} files, a
+ * binary file of same as cliques, binary files of type, unique and metadata
+ * indexes, segments of the versions of updated nodes and a
+ * {@link CheckpointManifest} listing them. As segments are never rewritten, a
+ * new checkpoint only writes segments for the nodes created after the
+ * previous one and a segment for the versions changed after the previous one.
+ * Updated nodes are read from the segments of versions. The manifest is
+ * written last to a temporary file and then atomically renamed, so a crash
+ * never leaves a partial checkpoint.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class TraceDbCheckpoint {
+
+    private static final Logger LOG = Logger.getLogger(TraceDbCheckpoint.class.getSimpleName());
+
+    static final int FORMAT_VERSION = 2;
+
+    /**
+     * "TRDC"
+     */
+    static final int SAME_AS_MAGIC = 0x54524443;
+
+    static final String SAME_AS_PREFIX = "sameas-";
+    static final String SAME_AS_SUFFIX = ".dat";
+
+    /**
+     * "TRDT"
+     */
+    static final int TYPE_INDEX_MAGIC = 0x54524454;
+
+    static final String TYPE_INDEX_PREFIX = "types-";
+    static final String TYPE_INDEX_SUFFIX = ".dat";
+
+    /**
+     * "TRDU"
+     */
+    static final int UNIQUE_INDEX_MAGIC = 0x54524455;
+
+    static final String UNIQUE_INDEX_PREFIX = "unique-";
+    static final String UNIQUE_INDEX_SUFFIX = ".dat";
+
+    /**
+     * "TRDP"
+     */
+    static final int POSTINGS_MAGIC = 0x54524450;
+
+    static final String POSTINGS_PREFIX = "postings-";
+    static final String POSTINGS_SUFFIX = ".dat";
+
+    static final String VERSIONS_PREFIX = "versions-";
+    static final String VERSIONS_SUFFIX = ".dat";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final long seq;
+    private final long idCounter;
+    private final ImmutableMap<String, String> prefixes;
+    private final List<TraceData> nodes;
+    private final long[] fingerprints;
+    private final SameAsIndex sameAsIds;
+    private final Map<String, long[]> typeIndex;
+    private final Map<UniqueIndexes.Name, Map<List<Object>, Long>> uniqueIndexes;
+    private final Map<String, IdBitmap> postings;
+    private final Map<Long, VersionStore.Version[]> versions;
+
+    /**
+     * Copies provided db state, except same as index, the other indexes and
+     * versions which must be already copies.
+     *
+     * @param nodes
+     *            the nodes held on the heap, in id order
+     * @param fingerprints
+     *            the fingerprints of {@code nodes}, in the same order
+     */
+    TraceDbCheckpoint(long seq, long idCounter, Map<String, String> prefixes, List<TraceData> nodes,
+            long[] fingerprints, SameAsIndex sameAsIds, Map<String, long[]> typeIndex,
+            Map<UniqueIndexes.Name, Map<List<Object>, Long>> uniqueIndexes, Map<String, IdBitmap> postings,
+            Map<Long, VersionStore.Version[]> versions) {
+        checkNotNull(prefixes);
+        checkNotNull(nodes);
+        checkArgument(fingerprints.length == nodes.size(), "Expected %s fingerprints, found %s", nodes.size(),
+                fingerprints.length);
+        checkNotNull(sameAsIds);
+        checkNotNull(typeIndex);
+        checkNotNull(uniqueIndexes);
+        checkNotNull(postings);
+        checkNotNull(versions);
+        this.seq = seq;
+        this.idCounter = idCounter;
+        this.prefixes = ImmutableMap.copyOf(prefixes);
+        this.nodes = new ArrayList<>(nodes);
+        this.fingerprints = fingerprints.clone();
+        this.sameAsIds = sameAsIds;
+        this.typeIndex = typeIndex;
+        this.uniqueIndexes = uniqueIndexes;
+        this.postings = postings;
+        this.versions = versions;
+    }
+
+    /**
+     * The sequence number of the last log record included in the checkpoint.
+     */
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Writes the checkpoint into provided db folder, replacing the previous
+     * one. Files of the previous checkpoint which are not needed anymore are
+     * deleted.
+     */
+    void write(File folder, ObjectMapper om, TraceDbConfig config) {
+        File manifestFile = new File(folder, TraceDb.TRACEDB_MANIFEST_FILE);
+        CheckpointManifest prev = manifestFile.exists() ? readManifest(manifestFile, om) : null;
+        long prevIdCounter = prev == null ? 0 : prev.getIdCounter();
+
+        // nodes are in id order, so the new ones are at the end
+        int first = nodes.size();
+        while (first > 0 && nodes.get(first - 1)
+                                 .getId() >= prevIdCounter) {
+            first--;
+        }
+        List<TraceData> newNodes = nodes.subList(first, nodes.size());
+        long[] newFingerprints = Arrays.copyOfRange(fingerprints, first, fingerprints.length);
+
+        List<String> segments = new ArrayList<>();
+        if (prev != null) {
+            segments.addAll(prev.getSegments());
+        }
+        segments.addAll(NodeSegment.write(folder, newNodes, newFingerprints, config.getCheckpointSegmentBytes(),
+                config.isDedupRawValues(), om));
+
+        String sameAsFile = SAME_AS_PREFIX + seq + SAME_AS_SUFFIX;
+        writeSameAs(new File(folder, sameAsFile));
+
+        String typeIndexFile = "";
+        if (!typeIndex.isEmpty()) {
+            typeIndexFile = TYPE_INDEX_PREFIX + seq + TYPE_INDEX_SUFFIX;
+            writeTypeIndex(new File(folder, typeIndexFile));
+        }
+
+        String uniqueIndexFile = "";
+        if (!uniqueIndexes.isEmpty()) {
+            uniqueIndexFile = UNIQUE_INDEX_PREFIX + seq + UNIQUE_INDEX_SUFFIX;
+            writeUniqueIndexes(new File(folder, uniqueIndexFile), om);
+        }
+
+        String postingsFile = POSTINGS_PREFIX + seq + POSTINGS_SUFFIX;
+        writePostings(new File(folder, postingsFile));
+
+        List<String> versionFiles = new ArrayList<>();
+        if (prev != null) {
+            versionFiles.addAll(prev.getVersionFiles());
+        }
+        String versionFile = VERSIONS_PREFIX + seq + VERSIONS_SUFFIX;
+        if (writeVersions(new File(folder, versionFile), prev == null ? -1 : prev.getSeq(), om)) {
+            versionFiles.add(versionFile);
+        }
+
+        CheckpointManifest manifest = CheckpointManifest.builder()
+                                                        .setFormatVersion(FORMAT_VERSION)
+                                                        .setSeq(seq)
+                                                        .setIdCounter(idCounter)
+                                                        .addAllSegments(segments)
+                                                        .setSameAsFile(sameAsFile)
+                                                        .putAllPrefixes(prefixes)
+                                                        .setTypeIndexFile(typeIndexFile)
+                                                        .setUniqueIndexFile(uniqueIndexFile)
+                                                        .setPostingsFile(postingsFile)
+                                                        .addAllVersionFiles(versionFiles)
+                                                        .build();
+        File tmp = new File(folder, TraceDb.TRACEDB_MANIFEST_FILE + TMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(om.writeValueAsBytes(manifest));
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write checkpoint manifest " + tmp.getAbsolutePath(), ex);
+        }
+        try {
+            Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't move checkpoint manifest to " + manifestFile.getAbsolutePath(),
+                    ex);
+        }
+
+        deleteUnused(folder, manifest);
+    }
+
+    /**
+     * Each clique is stored once, with its main node first. Singleton cliques
+     * are not stored.
+     */
+    private void writeSameAs(File file) {
+        List<List<Long>> cliques = sameAsIds.cliques();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(SAME_AS_MAGIC);
+            out.writeInt(cliques.size());
+            for (List<Long> clique : cliques) {
+                out.writeInt(clique.size());
+                for (Long id : clique) {
+                    out.writeLong(id);
+                }
+            }
+            out.flush();
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write same as file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * For each type, stores its id and the sorted ids of its nodes.
+     */
+    private void writeTypeIndex(File file) {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(TYPE_INDEX_MAGIC);
+            out.writeInt(typeIndex.size());
+            for (Map.Entry<String, long[]> entry : typeIndex.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (long id : entry.getValue()) {
+                    out.writeLong(id);
+                }
+            }
+            out.flush();
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write type index file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * For each unique index, stores its type id, its id and its entries. Keys
+     * are stored as Json arrays, as they may mix values of different types.
+     */
+    private void writeUniqueIndexes(File file, ObjectMapper om) {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(UNIQUE_INDEX_MAGIC);
+            out.writeInt(uniqueIndexes.size());
+            for (Map.Entry<UniqueIndexes.Name, Map<List<Object>, Long>> entry : uniqueIndexes.entrySet()) {
+                out.writeUTF(entry.getKey().typeId);
+                out.writeUTF(entry.getKey().indexId);
+                out.writeInt(entry.getValue()
+                                  .size());
+                for (Map.Entry<List<Object>, Long> keyEntry : entry.getValue()
+                                                                   .entrySet()) {
+                    byte[] key = om.writeValueAsBytes(keyEntry.getKey());
+                    out.writeLong(keyEntry.getValue());
+                    out.writeInt(key.length);
+                    out.write(key);
+                }
+            }
+            out.flush();
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write unique index file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * For each posting list, stores its key and its bitmap.
+     */
+    private void writePostings(File file) {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(POSTINGS_MAGIC);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, IdBitmap> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue()
+                     .write(out);
+            }
+            out.flush();
+            fos.getFD()
+               .sync();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't write postings file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Writes to a segment of versions the versions changed after provided
+     * sequence number of the previous checkpoint. As histories only grow at
+     * their end or have their last version overwritten, the changed versions
+     * of a node are all the ones from the first changed one on.
+     *
+     * @return false if no version changed, in which case no file is written
+     */
+    private boolean writeVersions(File file, long prevSeq, ObjectMapper om) {
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<Long, VersionStore.Version[]> entry : versions.entrySet()) {
+            VersionStore.Version[] nodeVersions = entry.getValue();
+            if (nodeVersions[nodeVersions.length - 1].changeSeq > prevSeq) {
+                ids.add(entry.getKey());
+            }
+        }
+        if (ids.isEmpty()) {
+            return false;
+        }
+        Collections.sort(ids);
+
+        List<TraceData> changed = new ArrayList<>();
+        List<Long> seqs = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (Long id : ids) {
+            VersionStore.Version[] nodeVersions = versions.get(id);
+            int first = nodeVersions.length - 1;
+            while (first > 0 && nodeVersions[first - 1].changeSeq > prevSeq) {
+                first--;
+            }
+            for (int i = first; i < nodeVersions.length; i++) {
+                // versions loaded from disk are never changed ones
+                changed.add(checkNotNull(nodeVersions[i].node));
+                seqs.add(nodeVersions[i].seq);
+                indexes.add(i);
+            }
+        }
+        NodeSegment.writeVersions(file, changed, Longs.toArray(seqs), Ints.toArray(indexes), om);
+        return true;
+    }
+
+    private static CheckpointManifest readManifest(File file, ObjectMapper om) {
+        CheckpointManifest ret;
+        try {
+            ret = om.readValue(file, CheckpointManifest.class);
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read checkpoint manifest " + file.getAbsolutePath(), ex);
+        }
+        if (ret.getFormatVersion() != FORMAT_VERSION) {
+            throw new TraceProvException("Unsupported checkpoint format version " + ret.getFormatVersion() + " in "
+                    + file.getAbsolutePath());
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes segments, same as, index and temporary files not referenced
+     * by provided manifest, which may be left by previous checkpoints or by
+     * interrupted ones.
+     */
+    private static void deleteUnused(File folder, CheckpointManifest manifest) {
+        Set<String> used = ImmutableSet.<String> builder()
+                                       .addAll(manifest.getSegments())
+                                       .add(manifest.getSameAsFile())
+                                       .add(manifest.getTypeIndexFile())
+                                       .add(manifest.getUniqueIndexFile())
+                                       .add(manifest.getPostingsFile())
+                                       .addAll(manifest.getVersionFiles())
+                                       .build();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean checkpointFile = (name.startsWith(NodeSegment.PREFIX) && name.endsWith(NodeSegment.SUFFIX))
+                    || (name.startsWith(SAME_AS_PREFIX) && name.endsWith(SAME_AS_SUFFIX))
+                    || (name.startsWith(TYPE_INDEX_PREFIX) && name.endsWith(TYPE_INDEX_SUFFIX))
+                    || (name.startsWith(UNIQUE_INDEX_PREFIX) && name.endsWith(UNIQUE_INDEX_SUFFIX))
+                    || (name.startsWith(POSTINGS_PREFIX) && name.endsWith(POSTINGS_SUFFIX))
+                    || (name.startsWith(VERSIONS_PREFIX) && name.endsWith(VERSIONS_SUFFIX))
+                    || name.endsWith(TMP_SUFFIX);
+            if (checkpointFile && !used.contains(name) && !file.delete()) {
+                LOG.warning("Couldn't delete unused checkpoint file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Loads the checkpoint in provided db folder into provided db. If db is
+     * configured for lazy loading nodes are left on disk, except the ones in
+     * old segments without timestamps or in old checkpoints without posting
+     * lists, which must be decoded to be indexed, and so are the versions of
+     * updated nodes. Updated nodes are loaded from the segments of versions
+     * instead of the segments of nodes.
+     *
+     * @return the sequence number of the checkpoint
+     * @throws TraceProvException
+     *             if the checkpoint can't be read.
+     */
+    static long read(File folder, TraceDb db, ObjectMapper om) {
+        CheckpointManifest manifest = readManifest(new File(folder, TraceDb.TRACEDB_MANIFEST_FILE), om);
+        deleteUnused(folder, manifest);
+
+        for (Map.Entry<String, String> entry : manifest.getPrefixes()
+                                                       .entrySet()) {
+            db.apply(LogRecord.builder()
+                              .setSeq(manifest.getSeq())
+                              .setOp(LogOp.PREFIX)
+                              .setPrefix(entry.getKey())
+                              .setUrl(entry.getValue())
+                              .build());
+        }
+
+        boolean lazy = db.getConfig()
+                         .isLazyLoading()
+                && !manifest.getPostingsFile()
+                            .isEmpty();
+
+        Map<Long, VersionStore.Version[]> versions = new HashMap<>();
+        for (String versionFile : manifest.getVersionFiles()) {
+            readVersions(NodeSegment.open(new File(folder, versionFile)), versions, lazy, manifest.getSeq(), db, om);
+        }
+        for (String segmentName : manifest.getSegments()) {
+            NodeSegment segment = NodeSegment.open(new File(folder, segmentName));
+            for (NodeSegment.Entry entry : segment.getEntries()) {
+                if (versions.containsKey(entry.id)) {
+                    continue;
+                }
+                if (lazy && segment.hasTimestamps()) {
+                    db.storeOnDisk(segment, entry);
+                } else {
+                    db.store(db.dedup(segment.read(entry, om)));
+                }
+                db.commit(entry.id, manifest.getSeq());
+            }
+        }
+        for (Map.Entry<Long, VersionStore.Version[]> entry : versions.entrySet()) {
+            db.loadVersions(entry.getKey(), entry.getValue(), manifest.getSeq());
+        }
+
+        File sameAsFile = new File(folder, manifest.getSameAsFile());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sameAsFile)))) {
+            if (in.readInt() != SAME_AS_MAGIC) {
+                throw new TraceProvException("Bad magic number in same as file " + sameAsFile.getAbsolutePath());
+            }
+            int cliques = in.readInt();
+            for (int i = 0; i < cliques; i++) {
+                int size = in.readInt();
+                long mainId = in.readLong();
+                List<Long> ids = new ArrayList<>(size - 1);
+                for (int j = 1; j < size; j++) {
+                    ids.add(in.readLong());
+                }
+                db.mergeSameAsIds(mainId, ids);
+            }
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read same as file " + sameAsFile.getAbsolutePath(), ex);
+        }
+
+        if (!manifest.getTypeIndexFile()
+                     .isEmpty()) {
+            readTypeIndex(new File(folder, manifest.getTypeIndexFile()), db);
+        }
+
+        if (!manifest.getUniqueIndexFile()
+                     .isEmpty()) {
+            readUniqueIndexes(new File(folder, manifest.getUniqueIndexFile()), db, om);
+        }
+
+        if (!manifest.getPostingsFile()
+                     .isEmpty()) {
+            readPostings(new File(folder, manifest.getPostingsFile()), db);
+        }
+
+        return manifest.getSeq();
+    }
+
+    private static void readTypeIndex(File file, TraceDb db) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != TYPE_INDEX_MAGIC) {
+                throw new TraceProvException("Bad magic number in type index file " + file.getAbsolutePath());
+            }
+            int types = in.readInt();
+            for (int i = 0; i < types; i++) {
+                String typeId = in.readUTF();
+                long[] ids = new long[in.readInt()];
+                for (int j = 0; j < ids.length; j++) {
+                    ids[j] = in.readLong();
+                }
+                db.loadTypeIndex(typeId, ids);
+            }
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read type index file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Reads a segment of versions into provided histories, replacing the
+     * versions it holds again.
+     *
+     * @param lazy
+     *            if true, versions are left on disk
+     * @param seq
+     *            the sequence number of the checkpoint
+     */
+    private static void readVersions(NodeSegment segment, Map<Long, VersionStore.Version[]> versions, boolean lazy,
+            long seq, TraceDb db, ObjectMapper om) {
+        List<NodeSegment.Entry> entries = segment.getEntries();
+        int i = 0;
+        while (i < entries.size()) {
+            NodeSegment.Entry first = entries.get(i);
+            int end = i + 1;
+            while (end < entries.size() && entries.get(end).id == first.id) {
+                end++;
+            }
+            VersionStore.Version[] prev = versions.get(first.id);
+            if (first.index > (prev == null ? 0 : prev.length)) {
+                throw new TraceProvException("Missing versions of node " + first.id + " before version "
+                        + first.index + " in segment " + segment.getFile()
+                                                                 .getAbsolutePath());
+            }
+            VersionStore.Version[] nodeVersions = Arrays.copyOf(prev == null ? new VersionStore.Version[0] : prev,
+                    first.index + end - i);
+            for (int j = i; j < end; j++) {
+                NodeSegment.Entry entry = entries.get(j);
+                nodeVersions[first.index + j - i] = lazy ? new VersionStore.Version(segment, entry, seq)
+                        : new VersionStore.Version(db.dedup(segment.read(entry, om)), entry.seq, seq);
+            }
+            versions.put(first.id, nodeVersions);
+            i = end;
+        }
+    }
+
+    private static void readPostings(File file, TraceDb db) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != POSTINGS_MAGIC) {
+                throw new TraceProvException("Bad magic number in postings file " + file.getAbsolutePath());
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                db.loadPostings(key, IdBitmap.read(in));
+            }
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read postings file " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    private static void readUniqueIndexes(File file, TraceDb db, ObjectMapper om) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != UNIQUE_INDEX_MAGIC) {
+                throw new TraceProvException("Bad magic number in unique index file " + file.getAbsolutePath());
+            }
+            // decimals are canonicalized exactly, so they mustn't be read as
+            // doubles
+            ObjectReader keyReader = om.reader(List.class)
+                                       .with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+            int indexes = in.readInt();
+            for (int i = 0; i < indexes; i++) {
+                UniqueIndexes.Name name = new UniqueIndexes.Name(in.readUTF(), in.readUTF());
+                int entries = in.readInt();
+                for (int j = 0; j < entries; j++) {
+                    long id = in.readLong();
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    List<Object> values = keyReader.readValue(key);
+                    db.loadUniqueKey(name, values, id);
+                }
+            }
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read unique index file " + file.getAbsolutePath(), ex);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.trentorise.opendata.traceprov.exceptions.TraceProvException;
+
+/**
+ * Append-only log of the changes made to a {@link TraceDb}. Records are
+ * buffered in memory when appended and written to disk in a single write upon
+ * {@link #flush()}, so flush cost only depends on the changes made since the
+ * previous flush.
+ *
+ * <p>
+ * The log is a text file with one json {@link LogRecord} per line. A last line
+ * without line terminator is considered a torn write of a crashed flush and is
+ * discarded when the log is replayed.
+ * </p>
+ *
+ * <p>
+ * When a checkpoint is taken the log is rotated (see {@link #rotate(File)}),
+ * so records already included in the checkpoint can be deleted with the old
+ * log file.
+ * </p>
+ *
+ * <p>
+ * The log is thread safe, records are written in the order they are
+ * appended.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class TraceDbLog {
+
+    private static final Logger LOG = Logger.getLogger(TraceDbLog.class.getSimpleName());
+
+    private static final byte NEWLINE = '\n';
+
+    private final File file;
+
+    private ByteArrayOutputStream pending;
+
+    private int pendingRecords;
+
+    /**
+     * Bytes written to the log file
+     */
+    private long size;
+
+    /**
+     * Records written to the log file
+     */
+    private long records;
+
+    /**
+     * Opened lazily on first flush
+     */
+    private RandomAccessFile raf;
+
+    TraceDbLog(File file) {
+        checkNotNull(file);
+        this.file = file;
+        this.pending = new ByteArrayOutputStream();
+        this.pendingRecords = 0;
+        this.size = file.length();
+        this.records = 0;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Buffers provided record, to write it to disk call {@link #flush()}
+     */
+    void append(LogRecord record, ObjectMapper om) {
+        checkNotNull(record);
+        byte[] bytes;
+        try {
+            bytes = om.writeValueAsBytes(record);
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't serialize log record " + record, ex);
+        }
+        synchronized (this) {
+            pending.write(bytes, 0, bytes.length);
+            pending.write(NEWLINE);
+            pendingRecords += 1;
+        }
+    }
+
+    /**
+     * Number of records appended since last flush.
+     */
+    synchronized int getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * Number of bytes written to the log file.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Number of records written to the log file, including the replayed ones.
+     */
+    synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Appends buffered records to the log file and forces them to disk. If
+     * writing fails, the file is truncated back to its previous size and the
+     * records are kept buffered, so the next flush writes them again from
+     * there.
+     */
+    synchronized void flush() {
+        if (pendingRecords == 0) {
+            return;
+        }
+        FileChannel channel = null;
+        try {
+            channel = channel();
+            // overwrites the bytes of an eventual previous failed flush
+            channel.position(size);
+            ByteBuffer buf = ByteBuffer.wrap(pending.toByteArray());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            if (channel != null) {
+                try {
+                    channel.truncate(size);
+                } catch (IOException truncateEx) {
+                    ex.addSuppressed(truncateEx);
+                }
+            }
+            throw new TraceProvException("Couldn't write to log file: " + file.getAbsolutePath(), ex);
+        }
+        size += pending.size();
+        records += pendingRecords;
+        pending = new ByteArrayOutputStream();
+        pendingRecords = 0;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+            raf.seek(raf.length());
+        }
+        return raf.getChannel();
+    }
+
+    /**
+     * Closes the log file. Records not yet flushed are discarded.
+     */
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                throw new TraceProvException("Error while closing log file " + file.getAbsolutePath(), ex);
+            } finally {
+                raf = null;
+            }
+        }
+    }
+
+    /**
+     * Flushes pending records and moves the log file to {@code target}. Later
+     * records will be appended to a new empty file at the original location.
+     * If a crash happens before the new file is created, the log is found
+     * missing on {@link #replay(TraceDb, ObjectMapper, long) replay} and
+     * recreated empty.
+     */
+    synchronized void rotate(File target) {
+        checkNotNull(target);
+        flush();
+        close();
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            file.createNewFile();
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't rotate log file " + file.getAbsolutePath(), ex);
+        }
+        size = 0;
+        records = 0;
+    }
+
+    /**
+     * Reads all the records in the log file in order and applies to provided
+     * db the ones with sequence number greater than {@code afterSeq}. An
+     * eventual torn last record is removed from the file. A missing file, left
+     * by a crash during {@link #rotate(File)}, is created empty.
+     *
+     * @throws TraceProvException
+     *             if the log is corrupted
+     */
+    void replay(TraceDb db, ObjectMapper om, long afterSeq) {
+        long goodLength = 0;
+        records = 0;
+        if (!file.exists()) {
+            LOG.warning("Couldn't find log " + file.getAbsolutePath()
+                    + ", probably a log rotation was interrupted. Starting a new empty log.");
+            try {
+                file.createNewFile();
+            } catch (IOException ex) {
+                throw new TraceProvException("Couldn't create log file " + file.getAbsolutePath(), ex);
+            }
+            size = 0;
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == NEWLINE) {
+                    LogRecord record;
+                    try {
+                        record = om.readValue(line.toByteArray(), LogRecord.class);
+                    } catch (IOException ex) {
+                        throw new TraceProvException("Found corrupted record in log " + file.getAbsolutePath()
+                                + " at byte " + goodLength, ex);
+                    }
+                    if (record.getSeq() > afterSeq) {
+                        db.apply(record);
+                    }
+                    goodLength += line.size() + 1;
+                    records += 1;
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+            if (line.size() > 0) {
+                LOG.warning("Discarding torn record at the end of log " + file.getAbsolutePath() + " ("
+                        + line.size() + " bytes)");
+            }
+        } catch (IOException ex) {
+            throw new TraceProvException("Couldn't read log file " + file.getAbsolutePath(), ex);
+        }
+
+        size = goodLength;
+        if (goodLength < file.length()) {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.setLength(goodLength);
+            } catch (IOException ex) {
+                throw new TraceProvException("Couldn't truncate torn log file " + file.getAbsolutePath(), ex);
+            }
+        }
+        LOG.fine("Replayed " + records + " records from " + file.getAbsolutePath());
+    }
+
+}
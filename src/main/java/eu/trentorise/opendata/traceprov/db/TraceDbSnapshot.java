@@ -0,0 +1,244 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static eu.trentorise.opendata.commons.validation.Preconditions.checkNotEmpty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.exceptions.AmbiguousUrlException;
+import eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException;
+
+/**
+ * Immutable read view of a {@link TraceDb}, pinned to the change committed
+ * last when the snapshot was taken (see {@link TraceDb#snapshot()}).
+ *
+ * <p>
+ * Nodes are not copied: stored nodes are immutable and the db remembers for
+ * each of them the sequence number of the change that committed it, so the
+ * snapshot just hides nodes committed after its sequence number. Nodes
+ * updated after the snapshot was taken are read in the version they had at
+ * its sequence number (see {@link TraceDb#update(Iterable)}). Same as
+ * cliques are a copy on write of the db ones, taken in time proportional to
+ * the number of pages of ids. Reading from a snapshot never takes locks shared
+ * with writers, so long reads don't stall ingestion and vice versa.
+ * </p>
+ *
+ * <p>
+ * A snapshot is thread safe and stays valid as long as its db is not closed.
+ * </p>
+ *
+ * @author David Leoni
+ */
+public final class TraceDbSnapshot {
+
+    private final TraceDb db;
+    private final long seq;
+    private final SameAsIndex sameAsIds;
+    private final UrlNormalizer urlNormalizer;
+
+    /**
+     * @param sameAsIds
+     *            must be already a copy
+     * @param urlNormalizer
+     *            normalizer with the prefixes of the db at {@code seq}
+     */
+    TraceDbSnapshot(TraceDb db, long seq, SameAsIndex sameAsIds, UrlNormalizer urlNormalizer) {
+        checkNotNull(db);
+        checkNotNull(sameAsIds);
+        checkNotNull(urlNormalizer);
+        this.db = db;
+        this.seq = seq;
+        this.sameAsIds = sameAsIds;
+        this.urlNormalizer = urlNormalizer;
+    }
+
+    /**
+     * The db this is a snapshot of.
+     */
+    public TraceDb getDb() {
+        return db;
+    }
+
+    /**
+     * The sequence number of the last change seen by the snapshot.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns the datanode with given id.
+     *
+     * @throws DataNotFoundException
+     *             if the datanode was not in the db when the snapshot was
+     *             taken
+     */
+    public TraceData read(long datanodeId) {
+        checkArgument(datanodeId >= 0);
+        TraceData ret = db.readCommitted(datanodeId, seq);
+        if (ret == null) {
+            throw new DataNotFoundException("Couldn't find view with traceprov internal id " + datanodeId
+                    + " in snapshot at " + seq);
+        }
+        return ret;
+    }
+
+    /**
+     * Read all the datanodes with given ids
+     *
+     * @throws DataNotFoundException
+     *             if any of the ids is not found.
+     */
+    public List<TraceData> read(Iterable<Long> datanodeIds) {
+        checkNotNull(datanodeIds);
+        List<TraceData> ret = new ArrayList();
+        for (Long datanodeId : datanodeIds) {
+            checkNotNull(datanodeId);
+            ret.add(read(datanodeId));
+        }
+        return ret;
+    }
+
+    private boolean visible(long datanodeId) {
+        return db.isCommitted(datanodeId, seq);
+    }
+
+    /**
+     * Returns the main view of the sameas clique where {@code datanodeId}
+     * belongs to.
+     *
+     * @throws DataNotFoundException
+     */
+    public TraceData readMainObject(long datanodeId) {
+        checkArgument(datanodeId >= 0);
+        if (visible(datanodeId)) {
+            return read(sameAsIds.mainId(datanodeId));
+        }
+        throw new DataNotFoundException("Couldn't find view with internal traceprov id " + datanodeId
+                + " in snapshot at " + seq);
+    }
+
+    /**
+     * Returns the ids of the views considered to be the same as the provided
+     * one (including it). The main view id comes first. If the view is not in
+     * the snapshot, the empty list is returned.
+     */
+    public List<Long> readSameAsIds(long id) {
+        checkArgument(id >= 0);
+        if (!visible(id)) {
+            return ImmutableList.of();
+        }
+        return sameAsIds.members(id);
+    }
+
+    /**
+     * @see #sameAs(Iterable)
+     */
+    public boolean sameAs(Long... viewIds) {
+        return sameAs(Arrays.asList(viewIds));
+    }
+
+    /**
+     * Returns true if provided views all belong to the same clique.
+     *
+     * @throws DataNotFoundException
+     */
+    public boolean sameAs(Iterable<Long> viewIds) {
+        long firstId = -1;
+        for (Long viewId : viewIds) {
+            checkNotNull(viewId);
+            if (!visible(viewId)) {
+                throw new DataNotFoundException("Couldn't find view with internal traceprov id " + viewId
+                        + " in snapshot at " + seq);
+            }
+            if (firstId == -1) {
+                firstId = viewId;
+            } else if (!sameAsIds.sameAs(firstId, viewId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an immutable map with [prefix, expanded url] pairs
+     */
+    public Map<String, String> getAllPrefixes() {
+        return urlNormalizer.getPrefixes();
+    }
+
+    /**
+     * Expands the provided url with the prefixes of the snapshot and removes
+     * eventual slashes / at the end
+     *
+     * @return the normalized url
+     */
+    public String normalizeUrl(String url) {
+        checkNotEmpty(url, "Invalid url!");
+        return urlNormalizer.normalize(url);
+    }
+
+    /**
+     * Searches sames cliques for a data object with provided url as external
+     * id. If found, returns the main view of the sameas clique.
+     *
+     * @throws DataNotFoundException
+     *             if no clique is found.
+     * @throws AmbiguousUrlException
+     *             if two cliques are found.
+     */
+    public TraceData read(String url) {
+        String normalizedUrl = normalizeUrl(url);
+
+        Set<Long> ids = new HashSet();
+        for (List<Long> tds : db.getStoredValuesByUrl(normalizedUrl)
+                                .values()) {
+            for (Long id : tds) {
+                if (visible(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+
+        if (ids.isEmpty()) {
+            throw new DataNotFoundException("Couldn't find any stored object with url " + url + " in snapshot at "
+                    + seq);
+        }
+
+        if (!sameAs(ids)) {
+            throw new AmbiguousUrlException("Tried to read url which is in more then one sameas clique!",
+                    normalizedUrl);
+        }
+
+        return readMainObject(ids.iterator()
+                                 .next());
+    }
+
+    /**
+     * Returns the main view with given url at given origin id.
+     *
+     * @throws DataNotFoundException
+     */
+    public TraceData read(long publisherId, String url) {
+        checkArgument(publisherId >= 0);
+        checkNotEmpty(url, "Invalid url!");
+
+        String normalizedUrl = normalizeUrl(url);
+        for (Long id : db.getStoredValuesByUrl(publisherId, normalizedUrl)) {
+            if (visible(id)) {
+                return read(id);
+            }
+        }
+        throw new DataNotFoundException("Couldn't find view identified by publisher id " + publisherId
+                + " and external url " + normalizedUrl + " in snapshot at " + seq);
+    }
+}
@@ -0,0 +1,236 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.collect.AbstractIterator;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.tracel.java.PropertyPath;
+
+/**
+ * Lazily walks two raw values in parallel, emitting the {@link DataChange
+ * DataChanges} which turn the old value into the new one.
+ *
+ * <p>
+ * Maps are matched by key and lists by position, while scalars and sets are
+ * compared as a whole. Other objects, like the beans held by
+ * {@link eu.trentorise.opendata.traceprov.data.DataObject DataObject} nodes,
+ * are walked as the maps and lists of their Jackson json representation, so
+ * their changed properties get their own paths, with values in json form.
+ * Before descending into a pair of values their Merkle hashes (see
+ * {@link ContentHash}) are compared, so equal subtrees are skipped, and with
+ * a cache of subtree hashes each subtree is hashed only once. Values which
+ * are the same instance, like the parts shared by successive versions of a
+ * node, are skipped without even hashing them.
+ * </p>
+ *
+ * <p>
+ * Changes are computed while iterating: the walk only holds the path to the
+ * current pair of values, and lists are read through their iterators, so
+ * wide arrays are streamed. As a consequence lists are not aligned: an
+ * element inserted in the middle of a list shows up as changes of all the
+ * following positions plus an addition at the end.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class TraceDiff extends AbstractIterator<DataChange> {
+
+    /**
+     * A pair of containers being compared, yielding pairs of children
+     */
+    private abstract static class Frame {
+        final PropertyPath path;
+
+        PropertyPath childPath;
+        boolean hasOld;
+        @Nullable
+        Object oldChild;
+        boolean hasNew;
+        @Nullable
+        Object newChild;
+
+        Frame(PropertyPath path) {
+            this.path = path;
+        }
+
+        /**
+         * Moves to the next pair of children, returning false if there are
+         * no more.
+         */
+        abstract boolean next();
+    }
+
+    private static final class MapFrame extends Frame {
+        private final Map<?, ?> newMap;
+        private final Map<?, ?> oldMap;
+        private final Iterator<? extends Map.Entry<?, ?>> oldEntries;
+        private final Iterator<? extends Map.Entry<?, ?>> newEntries;
+
+        MapFrame(PropertyPath path, Map<?, ?> oldMap, Map<?, ?> newMap) {
+            super(path);
+            this.oldMap = oldMap;
+            this.newMap = newMap;
+            this.oldEntries = oldMap.entrySet()
+                                    .iterator();
+            this.newEntries = newMap.entrySet()
+                                    .iterator();
+        }
+
+        @Override
+        boolean next() {
+            if (oldEntries.hasNext()) {
+                Map.Entry<?, ?> entry = oldEntries.next();
+                childPath = path.appendProperties(String.valueOf(entry.getKey()));
+                hasOld = true;
+                oldChild = entry.getValue();
+                hasNew = newMap.containsKey(entry.getKey());
+                newChild = hasNew ? newMap.get(entry.getKey()) : null;
+                return true;
+            }
+            while (newEntries.hasNext()) {
+                Map.Entry<?, ?> entry = newEntries.next();
+                if (!oldMap.containsKey(entry.getKey())) {
+                    childPath = path.appendProperties(String.valueOf(entry.getKey()));
+                    hasOld = false;
+                    oldChild = null;
+                    hasNew = true;
+                    newChild = entry.getValue();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class ListFrame extends Frame {
+        private final Iterator<?> oldElements;
+        private final Iterator<?> newElements;
+        private long pos;
+
+        ListFrame(PropertyPath path, Iterable<?> oldList, Iterable<?> newList) {
+            super(path);
+            this.oldElements = oldList.iterator();
+            this.newElements = newList.iterator();
+        }
+
+        @Override
+        boolean next() {
+            hasOld = oldElements.hasNext();
+            hasNew = newElements.hasNext();
+            if (!hasOld && !hasNew) {
+                return false;
+            }
+            oldChild = hasOld ? oldElements.next() : null;
+            newChild = hasNew ? newElements.next() : null;
+            childPath = path.appendProperties(Long.toString(pos));
+            pos++;
+            return true;
+        }
+    }
+
+    private final ObjectMapper om;
+    @Nullable
+    private final Cache<Object, Long> cache;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    @Nullable
+    private DataChange pending;
+
+    /**
+     * @param cache
+     *            if not null, the hashes of subtrees, by identity
+     */
+    TraceDiff(PropertyPath root, @Nullable Object oldValue, @Nullable Object newValue, ObjectMapper om,
+            @Nullable Cache<Object, Long> cache) {
+        checkNotNull(root);
+        this.om = checkNotNull(om);
+        this.cache = cache;
+        compare(root, true, oldValue, true, newValue);
+    }
+
+    @Override
+    protected DataChange computeNext() {
+        while (pending == null) {
+            Frame frame = stack.peek();
+            if (frame == null) {
+                return endOfData();
+            }
+            if (frame.next()) {
+                compare(frame.childPath, frame.hasOld, frame.oldChild, frame.hasNew, frame.newChild);
+            } else {
+                stack.pop();
+            }
+        }
+        DataChange ret = pending;
+        pending = null;
+        return ret;
+    }
+
+    /**
+     * Either sets the pending change between provided values, pushes a frame
+     * to compare their children or does nothing if they are equal.
+     */
+    private void compare(PropertyPath path, boolean hasOld, @Nullable Object oldValue, boolean hasNew,
+            @Nullable Object newValue) {
+        if (!hasOld) {
+            pending = DataChange.of(ChangeKind.ADDED, path, null, newValue);
+            return;
+        }
+        if (!hasNew) {
+            pending = DataChange.of(ChangeKind.REMOVED, path, oldValue, null);
+            return;
+        }
+        Object oldRaw = rawValue(oldValue);
+        Object newRaw = rawValue(newValue);
+        if (oldRaw == newRaw || ContentHash.hash(oldRaw, om, cache) == ContentHash.hash(newRaw, om, cache)) {
+            return;
+        }
+        if (isBean(oldRaw)) {
+            oldRaw = om.convertValue(oldRaw, Object.class);
+        }
+        if (isBean(newRaw)) {
+            newRaw = om.convertValue(newRaw, Object.class);
+        }
+        if (oldRaw instanceof Map && newRaw instanceof Map) {
+            stack.push(new MapFrame(path, (Map<?, ?>) oldRaw, (Map<?, ?>) newRaw));
+        } else if (isList(oldRaw) && isList(newRaw)) {
+            stack.push(new ListFrame(path, (Iterable<?>) oldRaw, (Iterable<?>) newRaw));
+        } else {
+            pending = DataChange.of(ChangeKind.CHANGED, path, oldValue, newValue);
+        }
+    }
+
+    private static boolean isList(@Nullable Object value) {
+        return value instanceof Iterable && !(value instanceof Set);
+    }
+
+    /**
+     * Returns true for objects which are neither scalars nor collections, and
+     * are so walked through their json representation.
+     */
+    private static boolean isBean(@Nullable Object value) {
+        return !(value == null || value instanceof Boolean || value instanceof Number
+                || value instanceof CharSequence || value instanceof Map || value instanceof Iterable
+                || value instanceof Enum);
+    }
+
+    /**
+     * Nodes in raw values are compared by their raw values, like
+     * {@link ContentHash} does.
+     */
+    @Nullable
+    private static Object rawValue(@Nullable Object value) {
+        return value instanceof TraceData ? ((TraceData) value).getRawValue() : value;
+    }
+}
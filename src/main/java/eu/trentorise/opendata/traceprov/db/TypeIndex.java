@@ -0,0 +1,174 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static eu.trentorise.opendata.commons.validation.Preconditions.checkNotEmpty;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableSet;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.types.TraceType;
+import eu.trentorise.opendata.traceprov.types.TypeRegistry;
+
+/**
+ * Ids of the nodes whose raw value is an instance of some declared types (see
+ * {@link TraceDb#indexType(String)}). Once a type is declared, nodes are added
+ * to its index as they are created.
+ *
+ * <p>
+ * The index is thread safe. Ids of each type are kept in an {@link IdBitmap},
+ * guarded by the bitmap itself. Readers get copies, so they never see later
+ * changes.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class TypeIndex {
+
+    private final ConcurrentMap<String, IdBitmap> idsByType = new ConcurrentHashMap<>();
+
+    /**
+     * Declares provided type as indexed.
+     *
+     * @return false if type was already declared
+     */
+    boolean declare(String typeId) {
+        checkNotEmpty(typeId, "Invalid TraceType id!");
+        return idsByType.putIfAbsent(typeId, new IdBitmap()) == null;
+    }
+
+    boolean isIndexed(String typeId) {
+        return idsByType.containsKey(typeId);
+    }
+
+    /**
+     * Ids of the declared types.
+     */
+    Set<String> getTypeIds() {
+        return ImmutableSet.copyOf(idsByType.keySet());
+    }
+
+    /**
+     * Returns a copy of the ids of the nodes of provided type, which must be
+     * declared.
+     */
+    IdBitmap getIds(String typeId) {
+        IdBitmap ids = bitmap(typeId);
+        synchronized (ids) {
+            return ids.copy();
+        }
+    }
+
+    private IdBitmap bitmap(String typeId) {
+        IdBitmap ret = idsByType.get(typeId);
+        checkArgument(ret != null, "Type %s is not indexed!", typeId);
+        return ret;
+    }
+
+    /**
+     * Adds the id of provided node to the index of given type, if the node is
+     * an instance of it. Type must be declared.
+     */
+    void add(TraceType type, TraceData node) {
+        if (type.isInstance(node.getRawValue())) {
+            IdBitmap ids = bitmap(type.getId());
+            synchronized (ids) {
+                ids.add(node.getId());
+            }
+        }
+    }
+
+    /**
+     * Adds provided nodes to the indexes of the declared types they are
+     * instances of. Types of each node are looked up with
+     * {@link TypeRegistry#getTypesFromInstance(Object)}, so the cost per node
+     * grows neither with the number of registered types nor with the number
+     * of declared ones.
+     */
+    void addAll(List<? extends TraceData> nodes, TypeRegistry typeRegistry) {
+        if (idsByType.isEmpty()) {
+            return;
+        }
+        for (TraceData node : nodes) {
+            for (TraceType type : typeRegistry.getTypesFromInstance(node.getRawValue())) {
+                IdBitmap ids = idsByType.get(type.getId());
+                if (ids != null) {
+                    synchronized (ids) {
+                        ids.add(node.getId());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the id of an updated node from the indexes of the declared types
+     * only its previous version was an instance of to the ones only its new
+     * version is an instance of.
+     */
+    void update(TraceData prev, TraceData node, TypeRegistry typeRegistry) {
+        if (idsByType.isEmpty()) {
+            return;
+        }
+        Set<String> prevTypeIds = indexedTypeIds(prev, typeRegistry);
+        Set<String> typeIds = indexedTypeIds(node, typeRegistry);
+        for (String typeId : prevTypeIds) {
+            if (!typeIds.contains(typeId)) {
+                IdBitmap ids = idsByType.get(typeId);
+                synchronized (ids) {
+                    ids.remove(node.getId());
+                }
+            }
+        }
+        for (String typeId : typeIds) {
+            if (!prevTypeIds.contains(typeId)) {
+                IdBitmap ids = idsByType.get(typeId);
+                synchronized (ids) {
+                    ids.add(node.getId());
+                }
+            }
+        }
+    }
+
+    private Set<String> indexedTypeIds(TraceData node, TypeRegistry typeRegistry) {
+        Set<String> ret = new HashSet<>();
+        for (TraceType type : typeRegistry.getTypesFromInstance(node.getRawValue())) {
+            if (idsByType.containsKey(type.getId())) {
+                ret.add(type.getId());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Adds provided ids to the index of given type, declaring it if needed.
+     */
+    void addAll(String typeId, long[] ids) {
+        declare(typeId);
+        IdBitmap bitmap = bitmap(typeId);
+        synchronized (bitmap) {
+            bitmap.addAll(ids);
+        }
+    }
+
+    /**
+     * Returns a copy of the index, as a map from type id to sorted ids.
+     */
+    Map<String, long[]> copy() {
+        Map<String, long[]> ret = new HashMap<>();
+        for (Map.Entry<String, IdBitmap> entry : idsByType.entrySet()) {
+            synchronized (entry.getValue()) {
+                ret.put(entry.getKey(), entry.getValue()
+                                             .toArray());
+            }
+        }
+        return ret;
+    }
+}
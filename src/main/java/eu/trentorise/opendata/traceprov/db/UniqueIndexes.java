@@ -0,0 +1,287 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.exceptions.DuplicateKeyException;
+import eu.trentorise.opendata.traceprov.types.ClassType;
+import eu.trentorise.opendata.traceprov.types.Def;
+import eu.trentorise.opendata.traceprov.types.TraceType;
+import eu.trentorise.opendata.traceprov.types.UniqueIndex;
+
+/**
+ * Hash indexes enforcing the {@link ClassType#getUniqueIndexes() unique
+ * indexes} of class types. A node is subject to the unique indexes of the
+ * class type in its {@link eu.trentorise.opendata.traceprov.data.NodeMetadata
+ * metadata}, and its key for an index is the list of the values of the index
+ * properties in its raw value, which must be a map from property names (or
+ * property def ids) to values. Nodes missing some key value are not indexed.
+ *
+ * <p>
+ * Key values are canonicalized so that keys compare equal after being
+ * serialized: nodes are replaced by their raw value, numbers with integral
+ * value become longs, or big integers if they don't fit, other numbers exact
+ * decimals without trailing zeros, and values other than strings and
+ * booleans their string representation. Nodes without raw value count as
+ * missing values.
+ * </p>
+ *
+ * <p>
+ * The indexes are thread safe.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class UniqueIndexes {
+
+    /**
+     * Identifies a unique index among all class types
+     */
+    static final class Name {
+        final String typeId;
+        final String indexId;
+
+        Name(String typeId, String indexId) {
+            this.typeId = checkNotNull(typeId);
+            this.indexId = checkNotNull(indexId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(typeId, indexId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Name)) {
+                return false;
+            }
+            Name other = (Name) obj;
+            return typeId.equals(other.typeId) && indexId.equals(other.indexId);
+        }
+
+        @Override
+        public String toString() {
+            return typeId + "/" + indexId;
+        }
+    }
+
+    private final ConcurrentMap<Name, ConcurrentMap<List<Object>, Long>> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the keys of provided node in the unique indexes of its type. If
+     * the type of the node has no unique indexes, returns an empty map.
+     */
+    static Map<Name, List<Object>> keys(TraceData node) {
+        Map<Name, List<Object>> ret = new HashMap<>();
+        TraceType type = node.getMetadata()
+                             .getType();
+        if (!(type instanceof ClassType) || !(node.getRawValue() instanceof Map)) {
+            return ret;
+        }
+        ClassType classType = (ClassType) type;
+        Map<?, ?> rawValue = (Map<?, ?>) node.getRawValue();
+        for (UniqueIndex uniqueIndex : classType.getUniqueIndexes()) {
+            List<Object> key = new ArrayList<>();
+            for (String defId : uniqueIndex.getPropertyDefIds()) {
+                Object value = rawValue.get(propertyName(classType, defId));
+                if (value == null) {
+                    value = rawValue.get(defId);
+                }
+                value = value == null ? null : canonical(value);
+                if (value == null) {
+                    key = null;
+                    break;
+                }
+                key.add(value);
+            }
+            if (key != null) {
+                ret.put(new Name(classType.getId(), uniqueIndex.getId()), ImmutableList.copyOf(key));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the name of the property of provided class with given def id, or
+     * the def id itself if not found.
+     */
+    private static String propertyName(ClassType classType, String defId) {
+        for (Map.Entry<String, Def> entry : classType.getPropertyDefs()
+                                                     .entrySet()) {
+            if (defId.equals(entry.getValue()
+                                  .getId())) {
+                return entry.getKey();
+            }
+        }
+        return defId;
+    }
+
+    /**
+     * Returns the canonical form of provided key value, or null if it is a
+     * node without raw value.
+     */
+    @Nullable
+    private static Object canonical(Object value) {
+        if (value instanceof TraceData) {
+            Object rawValue = ((TraceData) value).getRawValue();
+            return rawValue == null ? null : canonical(rawValue);
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof BigInteger) {
+            BigInteger big = (BigInteger) value;
+            return big.bitLength() < 64 ? (Object) big.longValue() : big;
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            if (decimal.signum() == 0) {
+                return 0L;
+            }
+            decimal = decimal.stripTrailingZeros();
+            return decimal.scale() <= 0 ? canonical(decimal.toBigIntegerExact()) : decimal;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return d;
+            }
+            // floats by their decimal form, as they are read back as doubles
+            return canonical(new BigDecimal(value instanceof Float ? Float.toString((Float) value)
+                    : Double.toString(d)));
+        }
+        if (value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns provided values as an index key.
+     */
+    static List<Object> key(Object... values) {
+        List<Object> ret = new ArrayList<>(values.length);
+        for (Object value : Arrays.asList(values)) {
+            checkNotNull(value, "Unique key values can't be null!");
+            Object canonical = canonical(value);
+            checkArgument(canonical != null, "Unique key values can't be nodes without raw value!");
+            ret.add(canonical);
+        }
+        return ImmutableList.copyOf(ret);
+    }
+
+    /**
+     * Adds provided nodes to the indexes. Either the keys of all the nodes are
+     * added, or none.
+     *
+     * @throws DuplicateKeyException
+     *             if a key is already held by another node, also of the same
+     *             batch.
+     */
+    void putAll(List<? extends TraceData> nodes) {
+        List<Map.Entry<Name, List<Object>>> added = new ArrayList<>();
+        List<Long> addedIds = new ArrayList<>();
+        for (TraceData node : nodes) {
+            for (Map.Entry<Name, List<Object>> entry : keys(node).entrySet()) {
+                ConcurrentMap<List<Object>, Long> index = index(entry.getKey());
+                Long existing = index.putIfAbsent(entry.getValue(), node.getId());
+                if (existing != null && existing != node.getId()) {
+                    for (int i = 0; i < added.size(); i++) {
+                        index(added.get(i)
+                                   .getKey()).remove(added.get(i)
+                                                          .getValue(),
+                                addedIds.get(i));
+                    }
+                    throw new DuplicateKeyException("Node with key " + entry.getValue() + " in unique index "
+                            + entry.getKey() + " already exists with id " + existing, existing);
+                }
+                if (existing == null) {
+                    added.add(entry);
+                    addedIds.add(node.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the keys of the previous versions of some nodes with the keys
+     * of their new versions, at the same positions in {@code nodes}. Either
+     * all the new keys are added, or none.
+     *
+     * @throws DuplicateKeyException
+     *             if a new key is already held by another node, also of the
+     *             same batch.
+     */
+    void replace(List<? extends TraceData> prevs, List<? extends TraceData> nodes) {
+        putAll(nodes);
+        for (int i = 0; i < prevs.size(); i++) {
+            Map<Name, List<Object>> keys = keys(nodes.get(i));
+            for (Map.Entry<Name, List<Object>> entry : keys(prevs.get(i)).entrySet()) {
+                if (!entry.getValue()
+                          .equals(keys.get(entry.getKey()))) {
+                    index(entry.getKey()).remove(entry.getValue(), prevs.get(i)
+                                                                        .getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds provided key to the index with given name, without checking for
+     * duplicates.
+     */
+    void put(Name name, List<Object> key, long id) {
+        index(name).put(ImmutableList.copyOf(key), id);
+    }
+
+    private ConcurrentMap<List<Object>, Long> index(Name name) {
+        ConcurrentMap<List<Object>, Long> ret = indexes.get(name);
+        if (ret == null) {
+            ConcurrentMap<List<Object>, Long> newIndex = new ConcurrentHashMap<>();
+            ret = indexes.putIfAbsent(name, newIndex);
+            if (ret == null) {
+                ret = newIndex;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the id of the node holding provided key in given index, or null
+     * if there is none.
+     */
+    @Nullable
+    Long get(Name name, List<Object> key) {
+        Map<List<Object>, Long> index = indexes.get(name);
+        return index == null ? null : index.get(key);
+    }
+
+    /**
+     * Returns a copy of the indexes.
+     */
+    Map<Name, Map<List<Object>, Long>> copy() {
+        Map<Name, Map<List<Object>, Long>> ret = new HashMap<>();
+        for (Map.Entry<Name, ConcurrentMap<List<Object>, Long>> entry : indexes.entrySet()) {
+            ret.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,136 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps each normalized url to the same as cliques holding nodes with that
+ * url, so {@link TraceDb#read(String)} resolves an url with one hash lookup
+ * and one same as lookup of the main node.
+ *
+ * <p>
+ * For each url the index keeps one representative node id per clique. A new
+ * node always starts its own clique, so it is appended to the
+ * representatives of its url. As cliques are only ever merged, urls with
+ * more representatives are compacted when read, dropping representatives
+ * which have meanwhile joined the clique of a previous one. An url with more
+ * than one representative left is ambiguous, and it is marked so along with
+ * the number of {@link SameAsIndex#unions() unions} at the time: until
+ * another union happens, reading the url takes again one hash lookup.
+ * </p>
+ *
+ * <p>
+ * The index is thread safe: entries are immutable and replaced atomically.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class UrlIndex {
+
+    /**
+     * Returned by {@link #mainId(String, SameAsIndex)} for unknown urls
+     */
+    static final long NOT_FOUND = -1;
+
+    /**
+     * Returned by {@link #mainId(String, SameAsIndex)} for urls in more than
+     * one clique
+     */
+    static final long AMBIGUOUS = -2;
+
+    /**
+     * The representatives of an url
+     */
+    private static final class Entry {
+        final long[] reps;
+
+        /**
+         * The number of unions when the representatives were found to be in
+         * different cliques, or -1 if not known.
+         */
+        final long ambiguousAt;
+
+        Entry(long[] reps, long ambiguousAt) {
+            this.reps = reps;
+            this.ambiguousAt = ambiguousAt;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> repsByUrl = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a node just put in its own same as clique.
+     */
+    void add(String url, long id) {
+        checkArgument(id >= 0, "Invalid tracedata id! Found: %s", id);
+        while (true) {
+            Entry entry = repsByUrl.get(url);
+            if (entry == null) {
+                if (repsByUrl.putIfAbsent(url, new Entry(new long[] { id }, -1)) == null) {
+                    return;
+                }
+            } else {
+                long[] newReps = Arrays.copyOf(entry.reps, entry.reps.length + 1);
+                newReps[entry.reps.length] = id;
+                // a new clique can't make an ambiguous url unambiguous
+                if (repsByUrl.replace(url, entry, new Entry(newReps, entry.ambiguousAt))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if there is at least one node with provided url
+     */
+    boolean contains(String url) {
+        return repsByUrl.containsKey(url);
+    }
+
+    /**
+     * Returns the id of the main node of the clique holding the nodes with
+     * provided url, {@link #NOT_FOUND} if there are no such nodes or
+     * {@link #AMBIGUOUS} if they are in different cliques.
+     */
+    long mainId(String url, SameAsIndex sameAsIds) {
+        Entry entry = repsByUrl.get(url);
+        if (entry == null) {
+            return NOT_FOUND;
+        }
+        long[] reps = entry.reps;
+        if (reps.length == 1) {
+            return sameAsIds.mainId(reps[0]);
+        }
+        // read before compacting, so unions done meanwhile invalidate the
+        // marker
+        long unions = sameAsIds.unions();
+        if (entry.ambiguousAt == unions) {
+            return AMBIGUOUS;
+        }
+
+        long[] compacted = new long[reps.length];
+        int n = 0;
+        for (long rep : reps) {
+            boolean found = false;
+            for (int i = 0; i < n; i++) {
+                if (sameAsIds.sameAs(compacted[i], rep)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                compacted[n] = rep;
+                n++;
+            }
+        }
+        if (n < reps.length || n > 1) {
+            // may fail if a node was concurrently added, compaction will be
+            // retried on next read
+            repsByUrl.replace(url, entry, new Entry(Arrays.copyOf(compacted, n), n > 1 ? unions : -1));
+        }
+        return n == 1 ? sameAsIds.mainId(compacted[0]) : AMBIGUOUS;
+    }
+}
@@ -0,0 +1,75 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+import eu.trentorise.opendata.commons.TodUtils;
+
+/**
+ * Expands and normalizes urls according to an immutable set of prefixes.
+ * Expansion uses the longest matching prefix, found with a
+ * {@link PrefixTrie}. Normalized urls are kept in a bounded cache, so urls
+ * read over and over are normalized once and always yield the same string
+ * instance.
+ *
+ * <p>
+ * As the prefixes of a normalizer never change, its cache never holds stale
+ * urls: when prefixes change the db just replaces the whole normalizer.
+ * Normalizers are thread safe.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class UrlNormalizer {
+
+    private final ImmutableMap<String, String> prefixes;
+    private final PrefixTrie trie;
+    private final Cache<String, String> cache;
+
+    /**
+     * @param cacheSize
+     *            max number of normalized urls to cache, 0 disables the cache
+     */
+    UrlNormalizer(Map<String, String> prefixes, long cacheSize) {
+        checkNotNull(prefixes);
+        checkArgument(cacheSize >= 0, "Invalid url cache size: %s", cacheSize);
+        this.prefixes = ImmutableMap.copyOf(prefixes);
+        this.trie = PrefixTrie.of(this.prefixes);
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(cacheSize)
+                                 .build();
+    }
+
+    /**
+     * The [prefix, expanded url] pairs used by this normalizer
+     */
+    ImmutableMap<String, String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Replaces the longest known prefix of provided url with its expansion.
+     * If provided URL has an unknown prefix, the URL is returned as it is.
+     */
+    String expand(String url) {
+        return trie.expand(url);
+    }
+
+    /**
+     * Expands the provided url and removes eventual slashes / at the end
+     */
+    String normalize(String url) {
+        String ret = cache.getIfPresent(url);
+        if (ret == null) {
+            ret = TodUtils.removeTrailingSlash(trie.expand(url));
+            cache.put(url, ret);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,137 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * Deduplicates the raw values of stored nodes on the heap, so equal values
+ * and equal sub-structures of values (i.e. the same publisher or license
+ * repeated in many datasets) are kept once whatever the nodes they belong to.
+ *
+ * <p>
+ * Values are interned bottom up by content: children of maps and lists are
+ * interned first, then maps and lists are copied into immutable collections
+ * holding the interned children like in
+ * {@link VersionStore#share(Object, Object)} and interned themselves. As
+ * children are then usually the same instances, comparing two candidates
+ * mostly costs identity checks. Maps and lists provided by callers are never
+ * interned themselves, so a mutable collection the caller still holds can't
+ * end up in other nodes. A candidate equal to the provided value is only
+ * used if it also has the same class and the same children in the same order
+ * (i.e. a {@code Timestamp} is never swapped for an equal {@code Date}, nor a
+ * map for an equal one iterating in another order), otherwise the value is
+ * kept as it is. Interned values are weakly held, so they are forgotten as
+ * soon as no node uses them anymore. This relies on raw values never being
+ * modified, as stated by {@link TraceData#getRawValue()}. Nodes nested in raw
+ * values are left as they are.
+ * </p>
+ *
+ * <p>
+ * The interner is thread safe.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class ValueInterner {
+
+    private final Interner<Object> interner = Interners.newWeakInterner();
+
+    /**
+     * Returns the canonical instance of provided value. Maps and lists are
+     * returned as immutable collections.
+     */
+    @Nullable
+    Object intern(@Nullable Object value) {
+        if (value == null || value instanceof TraceData) {
+            return value;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> ret = new LinkedHashMap<>();
+            boolean changed = false;
+            boolean nulls = false;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object key = intern(entry.getKey());
+                Object interned = intern(entry.getValue());
+                changed |= key != entry.getKey() || interned != entry.getValue();
+                nulls |= key == null || interned == null;
+                ret.put(key, interned);
+            }
+            if (changed || !(value instanceof ImmutableMap)) {
+                value = nulls ? Collections.unmodifiableMap(ret) : ImmutableMap.copyOf(ret);
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> ret = new ArrayList<>(list.size());
+            boolean changed = false;
+            boolean nulls = false;
+            for (Object element : list) {
+                Object interned = intern(element);
+                changed |= interned != element;
+                nulls |= interned == null;
+                ret.add(interned);
+            }
+            if (changed || !(value instanceof ImmutableList)) {
+                value = nulls ? Collections.unmodifiableList(ret) : ImmutableList.copyOf(ret);
+            }
+        }
+        Object ret = interner.intern(value);
+        return ret == value || sameShape(ret, value) ? ret : value;
+    }
+
+    /**
+     * Returns true if provided equal values have the same class and, if they
+     * are maps or lists, the very same children in the same order.
+     */
+    private static boolean sameShape(Object value1, Object value2) {
+        if (value1.getClass() != value2.getClass()) {
+            return false;
+        }
+        if (value1 instanceof Map) {
+            Iterator<? extends Map.Entry<?, ?>> iter2 = ((Map<?, ?>) value2).entrySet()
+                                                                          .iterator();
+            for (Map.Entry<?, ?> entry1 : ((Map<?, ?>) value1).entrySet()) {
+                Map.Entry<?, ?> entry2 = iter2.next();
+                if (entry1.getKey() != entry2.getKey() || entry1.getValue() != entry2.getValue()) {
+                    return false;
+                }
+            }
+        } else if (value1 instanceof List) {
+            Iterator<?> iter2 = ((List<?>) value2).iterator();
+            for (Object element1 : (List<?>) value1) {
+                if (element1 != iter2.next()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns provided node with its raw value interned, or the node itself
+     * if its value already is the canonical instance.
+     */
+    TraceData intern(TraceData node) {
+        Object rawValue = node.getRawValue();
+        Object interned = intern(rawValue);
+        if (interned == rawValue) {
+            return node;
+        }
+        return node.fromThis()
+                   .setRawValue(interned)
+                   .build();
+    }
+}
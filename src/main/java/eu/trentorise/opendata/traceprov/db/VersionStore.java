@@ -0,0 +1,292 @@
+package eu.trentorise.opendata.traceprov.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import eu.trentorise.opendata.traceprov.data.TraceData;
+
+/**
+ * History of the nodes changed by {@link TraceDb#update(Iterable)}. Nodes
+ * never updated have no history, as their only version is the one in the
+ * {@link NodeStore}.
+ *
+ * <p>
+ * The versions of a node are an array ordered by commit sequence number,
+ * oldest first and current one last. As the db never gives a version a
+ * timestamp older than the previous one, arrays are ordered by timestamp too,
+ * so versions can be looked up both by sequence number and by time with a
+ * binary search. Arrays are copied on write, so readers
+ * never lock and successive arrays share the previous versions. Versions
+ * themselves share with the previous ones the parts of their raw values
+ * which didn't change (see {@link #share(Object, Object)}).
+ * </p>
+ *
+ * <p>
+ * Each version also records the sequence number of the change which last
+ * wrote it, so checkpoints only write the versions changed since the
+ * previous one. Versions loaded from a checkpoint may be left on disk, in
+ * which case they are decoded on access by the {@link NodeStore}.
+ * </p>
+ *
+ * <p>
+ * The store is thread safe for readers, while writers of the same node must
+ * be serialized by the db.
+ * </p>
+ *
+ * @author David Leoni
+ */
+final class VersionStore {
+
+    /**
+     * Sequence number of a version not committed yet
+     */
+    static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * A version of a node and the sequence number of the change which
+     * committed it
+     */
+    static final class Version {
+        /**
+         * The node, or null if it is left on disk
+         */
+        @Nullable
+        final TraceData node;
+        /**
+         * The segment holding the node, if it is left on disk
+         */
+        @Nullable
+        final NodeSegment segment;
+        @Nullable
+        final NodeSegment.Entry entry;
+        final long seq;
+        /**
+         * Timestamp of the node in millisecs, or
+         * {@link NodeSegment#NO_TIMESTAMP}
+         */
+        final long timestamp;
+        /**
+         * Sequence number of the change which wrote this version. It may be
+         * later than {@link #seq}, i.e. for versions overwritten by a hard
+         * update.
+         */
+        final long changeSeq;
+
+        /**
+         * Creates a version held on the heap.
+         */
+        Version(TraceData node, long seq, long changeSeq) {
+            this.node = checkNotNull(node);
+            this.segment = null;
+            this.entry = null;
+            this.seq = seq;
+            this.timestamp = NodeSegment.timestamp(node);
+            this.changeSeq = changeSeq;
+        }
+
+        /**
+         * Creates a version left on disk in a segment of versions.
+         */
+        Version(NodeSegment segment, NodeSegment.Entry entry, long changeSeq) {
+            this.node = null;
+            this.segment = checkNotNull(segment);
+            this.entry = checkNotNull(entry);
+            this.seq = entry.seq;
+            this.timestamp = entry.timestamp;
+            this.changeSeq = changeSeq;
+        }
+    }
+
+    private final ConcurrentMap<Long, Version[]> versionsById = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the versions of node with given id, oldest first, or null if
+     * the node was never updated. The returned array must not be changed.
+     */
+    @Nullable
+    Version[] get(long id) {
+        return versionsById.get(id);
+    }
+
+    /**
+     * Appends a new version of a node, not committed yet. If the node has no
+     * history yet, its previous version is put first.
+     *
+     * @param prevSeq
+     *            the sequence number which committed {@code prev}
+     */
+    void append(TraceData prev, long prevSeq, TraceData node) {
+        checkArgument(prev.getId() == node.getId(), "Versions have different ids: %s and %s", prev.getId(),
+                node.getId());
+        Version[] versions = versionsById.get(node.getId());
+        Version[] newVersions;
+        if (versions == null) {
+            newVersions = new Version[] { new Version(prev, prevSeq, PENDING), new Version(node, PENDING, PENDING) };
+        } else {
+            newVersions = Arrays.copyOf(versions, versions.length + 1);
+            newVersions[versions.length] = new Version(node, PENDING, PENDING);
+        }
+        versionsById.put(node.getId(), newVersions);
+    }
+
+    /**
+     * Overwrites the current version of a node, keeping its sequence number.
+     *
+     * @param prevSeq
+     *            the sequence number which committed {@code prev}
+     */
+    void replaceLast(TraceData prev, long prevSeq, TraceData node) {
+        checkArgument(prev.getId() == node.getId(), "Versions have different ids: %s and %s", prev.getId(),
+                node.getId());
+        Version[] versions = versionsById.get(node.getId());
+        Version[] newVersions;
+        if (versions == null) {
+            newVersions = new Version[] { new Version(node, prevSeq, PENDING) };
+        } else {
+            newVersions = versions.clone();
+            newVersions[versions.length - 1] = new Version(node, versions[versions.length - 1].seq, PENDING);
+        }
+        versionsById.put(node.getId(), newVersions);
+    }
+
+    /**
+     * Commits the versions of node with given id written by the change with
+     * provided sequence number. Versions appended by the change get it as
+     * commit sequence number too, while versions overwritten by a hard update
+     * keep their own.
+     */
+    void commit(long id, long seq) {
+        Version[] versions = versionsById.get(id);
+        checkArgument(versions != null, "Node %s has no versions!", id);
+        Version[] newVersions = versions.clone();
+        for (int i = versions.length - 1; i >= 0 && versions[i].changeSeq == PENDING; i--) {
+            newVersions[i] = new Version(versions[i].node, versions[i].seq == PENDING ? seq : versions[i].seq, seq);
+        }
+        versionsById.put(id, newVersions);
+    }
+
+    /**
+     * Puts provided versions, read from a checkpoint.
+     */
+    void load(long id, Version[] versions) {
+        checkArgument(versions.length > 0, "No versions for node %s", id);
+        versionsById.put(id, versions);
+    }
+
+    /**
+     * Returns the last of provided versions committed at or before given
+     * sequence number, found by binary search. If there is none, which
+     * happens when the first version was overwritten by a hard update, the
+     * first version is returned.
+     */
+    static Version asOf(Version[] versions, long seq) {
+        int lo = 0;
+        int hi = versions.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (versions[mid].seq <= seq) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return versions[lo];
+    }
+
+    /**
+     * Returns the last of provided versions with timestamp not after given
+     * one, found by binary search, or null if all versions are more recent.
+     *
+     * @param millis
+     *            a timestamp in millisecs
+     */
+    @Nullable
+    static Version asOfTime(Version[] versions, long millis) {
+        int lo = 0;
+        int hi = versions.length - 1;
+        if (versions[0].timestamp > millis) {
+            return null;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (versions[mid].timestamp <= millis) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return versions[lo];
+    }
+
+    /**
+     * Returns a copy of the store, as a map from ids to versions.
+     */
+    Map<Long, Version[]> copy() {
+        return new HashMap<>(versionsById);
+    }
+
+    /**
+     * Returns {@code next} with the values equal to the corresponding ones in
+     * {@code prev} replaced by them, so successive versions share unchanged
+     * subtrees. If the whole values are equal, {@code prev} itself is
+     * returned. Maps and lists are matched by key and by position, and when
+     * some of their children are shared they are rebuilt as unmodifiable
+     * collections like the ones of nodes decoded from disk. Other values are
+     * returned as they are.
+     */
+    @Nullable
+    static Object share(@Nullable Object prev, @Nullable Object next) {
+        if (prev == null || next == null || prev == next) {
+            return next;
+        }
+        if (prev.equals(next)) {
+            return prev;
+        }
+        if (prev instanceof Map && next instanceof Map) {
+            Map<?, ?> prevMap = (Map<?, ?>) prev;
+            Map<Object, Object> ret = new LinkedHashMap<>();
+            boolean shared = false;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) next).entrySet()) {
+                Object value = share(prevMap.get(entry.getKey()), entry.getValue());
+                shared |= value != entry.getValue();
+                ret.put(entry.getKey(), value);
+            }
+            if (!shared) {
+                return next;
+            }
+            return next instanceof ImmutableMap ? ImmutableMap.copyOf(ret) : Collections.unmodifiableMap(ret);
+        }
+        if (prev instanceof List && next instanceof List) {
+            List<?> prevList = (List<?>) prev;
+            List<Object> ret = new ArrayList<>();
+            boolean shared = false;
+            int i = 0;
+            for (Object element : (List<?>) next) {
+                Object value = i < prevList.size() ? share(prevList.get(i), element) : element;
+                shared |= value != element;
+                ret.add(value);
+                i++;
+            }
+            if (!shared) {
+                return next;
+            }
+            return next instanceof ImmutableList ? ImmutableList.copyOf(ret) : Collections.unmodifiableList(ret);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Trento Rise  (trentorise.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.trentorise.opendata.traceprov.exceptions;
+
+/**
+ * Thrown when storing a node would violate a unique index of its type.
+ *
+ * @author David Leoni
+ */
+public class DuplicateKeyException extends TraceProvException {
+
+    private static final long serialVersionUID = 1L;
+
+    private long existingId;
+
+    protected DuplicateKeyException() {
+        super();
+    }
+
+    /**
+     * @param existingId
+     *            the id of the node already holding the key
+     */
+    public DuplicateKeyException(String msg, long existingId) {
+        super(msg);
+        this.existingId = existingId;
+    }
+
+    /**
+     * The id of the node already holding the key
+     */
+    public long getExistingId() {
+        return existingId;
+    }
+
+}
@@ -24,6 +24,7 @@ import eu.trentorise.opendata.traceprov.TraceProvs;
 import eu.trentorise.opendata.traceprov.exceptions.TraceProvNotFoundException;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -63,6 +64,164 @@ public class TypeRegistry implements Serializable {
 
     private Map<String, Def<ClassType>> classDefs;
 
+    /**
+     * Types by Java class of their instances and subtype relations, see
+     * {@link #getTypesFromInstance(Object)} and
+     * {@link #isSubtype(String, String)}. Rebuilt lazily after each
+     * registration.
+     */
+    @Nullable
+    private transient volatile Dispatch dispatch;
+
+    /**
+     * Immutable snapshot of registered types, arranged for fast lookup of the
+     * types of an instance and of subtype relations. Each type gets a
+     * position, and sets of types are {@link BitSet BitSets} of positions.
+     *
+     * <p>
+     * Types which don't override {@link TraceType#isInstance(Object)} are
+     * matched by the class of the instance only, so the matching ones are
+     * computed once per Java class and cached in a {@link ClassValue}. Types
+     * with a custom {@link TraceType#isInstance(Object)} are checked at each
+     * lookup.
+     * </p>
+     *
+     * <p>
+     * The subtype lattice is precomputed as the set of supertypes of each
+     * type: type A is a subtype of B if A and B are the same type, or if B
+     * matches by class only and the Java class of A is assignable to the Java
+     * class of B, so that every instance of A is also an instance of B.
+     * </p>
+     */
+    private static final class Dispatch {
+
+        /**
+         * Types matching instances of some class
+         */
+        private static final class Matches {
+            private final ImmutableList<TraceType> types;
+            private final BitSet positions;
+
+            Matches(ImmutableList<TraceType> types, BitSet positions) {
+                this.types = types;
+                this.positions = positions;
+            }
+        }
+
+        private final ImmutableList<TraceType> types;
+        private final ImmutableMap<String, Integer> positions;
+        private final BitSet classBased;
+        private final BitSet[] supertypes;
+        private final ImmutableList<TraceType> customTypes;
+        private final Matches nullMatches;
+        private final ClassValue<Matches> matchesByClass = new ClassValue<Matches>() {
+            @Override
+            protected Matches computeValue(Class<?> clazz) {
+                ImmutableList.Builder<TraceType> retb = ImmutableList.builder();
+                BitSet bits = new BitSet(types.size());
+                for (int i = classBased.nextSetBit(0); i >= 0; i = classBased.nextSetBit(i + 1)) {
+                    if (types.get(i)
+                             .getJavaClass()
+                             .isAssignableFrom(clazz)) {
+                        retb.add(types.get(i));
+                        bits.set(i);
+                    }
+                }
+                return new Matches(retb.build(), bits);
+            }
+        };
+
+        Dispatch(Iterable<TraceType> types) {
+            this.types = ImmutableList.copyOf(types);
+            ImmutableMap.Builder<String, Integer> positionsb = ImmutableMap.builder();
+            ImmutableList.Builder<TraceType> customTypesb = ImmutableList.builder();
+            ImmutableList.Builder<TraceType> nullTypesb = ImmutableList.builder();
+            this.classBased = new BitSet(this.types.size());
+            BitSet nullBits = new BitSet(this.types.size());
+            for (int i = 0; i < this.types.size(); i++) {
+                TraceType type = this.types.get(i);
+                positionsb.put(type.getId(), i);
+                if (isClassBased(type)) {
+                    classBased.set(i);
+                    if (type.isInstance(null)) {
+                        nullTypesb.add(type);
+                        nullBits.set(i);
+                    }
+                } else {
+                    customTypesb.add(type);
+                }
+            }
+            this.positions = positionsb.build();
+            this.customTypes = customTypesb.build();
+            this.nullMatches = new Matches(nullTypesb.build(), nullBits);
+
+            this.supertypes = new BitSet[this.types.size()];
+            for (int i = 0; i < this.types.size(); i++) {
+                BitSet supers = new BitSet(this.types.size());
+                supers.set(i);
+                Class subClass = this.types.get(i)
+                                           .getJavaClass();
+                for (int j = classBased.nextSetBit(0); j >= 0; j = classBased.nextSetBit(j + 1)) {
+                    if (this.types.get(j)
+                                  .getJavaClass()
+                                  .isAssignableFrom(subClass)) {
+                        supers.set(j);
+                    }
+                }
+                this.supertypes[i] = supers;
+            }
+        }
+
+        private static boolean isClassBased(TraceType type) {
+            try {
+                return type.getClass()
+                           .getMethod("isInstance", Object.class)
+                           .getDeclaringClass() == TraceType.class;
+            } catch (NoSuchMethodException ex) {
+                return false;
+            }
+        }
+
+        private Matches matches(@Nullable Object obj) {
+            return obj == null ? nullMatches : matchesByClass.get(obj.getClass());
+        }
+
+        /**
+         * Returns the position of provided type, or -1 if not registered
+         */
+        int position(String typeId) {
+            Integer ret = positions.get(typeId);
+            return ret == null ? -1 : ret;
+        }
+
+        ImmutableList<TraceType> getTypes(@Nullable Object obj) {
+            ImmutableList<TraceType> ret = matches(obj).types;
+            if (customTypes.isEmpty()) {
+                return ret;
+            }
+            ImmutableList.Builder<TraceType> retb = ImmutableList.builder();
+            retb.addAll(ret);
+            for (TraceType type : customTypes) {
+                if (type.isInstance(obj)) {
+                    retb.add(type);
+                }
+            }
+            return retb.build();
+        }
+
+        boolean isInstance(@Nullable Object obj, int position) {
+            if (classBased.get(position)) {
+                return matches(obj).positions.get(position);
+            }
+            return types.get(position)
+                        .isInstance(obj);
+        }
+
+        boolean isSubtype(int subPosition, int superPosition) {
+            return supertypes[subPosition].get(superPosition);
+        }
+    }
+
     private TypeRegistry() {
         this.types = new HashMap();
         this.classDefs = new HashMap();
@@ -124,6 +283,7 @@ public class TypeRegistry implements Serializable {
         checkType(type);
         TraceType ret = this.types.get(type.getId());
         this.types.put(type.getId(), type);
+        this.dispatch = null;
         String canTypeId = this.canonicalTypes.get(type.getJavaClass());
         if (canTypeId == null) {
             setCanonicalType(type.getJavaClass(), type);
@@ -283,31 +443,62 @@ public class TypeRegistry implements Serializable {
     /**
      * Returns possible types of which the given {@obj} can be an instance.
      * First type is the canonical one.
+     *
+     * <p>
+     * Types are looked up in a cache by the Java class of {@code obj}, so the
+     * cost of the call doesn't grow with the number of registered types.
+     * </p>
      */
     public ImmutableList<TraceType> getTypesFromInstance(@Nullable Object obj) {
-        ImmutableList.Builder<TraceType> retb = ImmutableList.builder();
+        return dispatch().getTypes(obj);
+    }
 
-        for (TraceType t : this.types.values()) {
-            if (t.isInstance(obj)) {
-                retb.add(t);
-            }
+    private Dispatch dispatch() {
+        Dispatch ret = dispatch;
+        if (ret == null) {
+            ret = new Dispatch(ImmutableList.copyOf(types.values()));
+            dispatch = ret;
         }
-
-        return retb.build();
+        return ret;
     }
 
     /**
      * Returns true if provided object is instance of TraceType having given
-     * typeid
+     * typeid. If there is no such type, returns false. Unless the type
+     * overrides {@link TraceType#isInstance(Object)}, the answer is a lookup
+     * in a table cached by the class of {@code obj}.
      */
     public boolean isInstance(@Nullable Object obj, String typeId) {
         checkNotEmpty(typeId, "Invalid TraceType id!");
-        for (TraceType t : types.values()) {
-            if (t.isInstance(obj)) {
-                return true;
-            }
+        Dispatch d = dispatch();
+        int position = d.position(typeId);
+        return position >= 0 && d.isInstance(obj, position);
+    }
+
+    /**
+     * Returns true if every instance of the type with id {@code subTypeId} is
+     * also an instance of the type with id {@code superTypeId}, as far as can
+     * be told by their Java classes. Each type is a subtype of itself, and
+     * types overriding {@link TraceType#isInstance(Object)} are supertypes only
+     * of themselves. The answer is a lookup in a lattice precomputed after
+     * registrations.
+     *
+     * @throws TraceProvNotFoundException
+     *             if any of the types is not registered
+     */
+    public boolean isSubtype(String subTypeId, String superTypeId) {
+        checkNotEmpty(subTypeId, "Invalid TraceType id!");
+        checkNotEmpty(superTypeId, "Invalid TraceType id!");
+        Dispatch d = dispatch();
+        int subPosition = d.position(subTypeId);
+        if (subPosition < 0) {
+            throw new TraceProvNotFoundException("Couldn't find typeId " + subTypeId);
+        }
+        int superPosition = d.position(superTypeId);
+        if (superPosition < 0) {
+            throw new TraceProvNotFoundException("Couldn't find typeId " + superTypeId);
         }
-        return false;
+        return d.isSubtype(subPosition, superPosition);
     }
 
     /**
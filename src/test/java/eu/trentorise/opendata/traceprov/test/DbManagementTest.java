@@ -1,17 +1,44 @@
 package eu.trentorise.opendata.traceprov.test;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import eu.trentorise.opendata.commons.validation.Ref;
+import eu.trentorise.opendata.traceprov.data.DataMap;
+import eu.trentorise.opendata.traceprov.data.DataValue;
+import eu.trentorise.opendata.traceprov.data.NodeMetadata;
+import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.db.IndexQuery;
 import eu.trentorise.opendata.traceprov.db.TraceDb;
+import eu.trentorise.opendata.traceprov.db.TraceDbConfig;
+import eu.trentorise.opendata.traceprov.db.TraceDbSnapshot;
+import eu.trentorise.opendata.traceprov.exceptions.DuplicateKeyException;
 import eu.trentorise.opendata.traceprov.exceptions.TraceProvNotFoundException;
+import eu.trentorise.opendata.traceprov.types.ClassType;
 import eu.trentorise.opendata.traceprov.types.DictType;
+import eu.trentorise.opendata.traceprov.types.StringType;
 import eu.trentorise.opendata.traceprov.types.TypeRegistry;
+import eu.trentorise.opendata.traceprov.types.UniqueIndex;
 
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -97,6 +124,539 @@ public class DbManagementTest {
 	TraceDb.setCurrentDb(db3);
     }
 
+    @Test
+    public void testFlushConnect() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	TraceData pub = db1.createPublisher(DataValue.of(Ref.ofDocumentId("tracedb-test:publisher"),
+		NodeMetadata.builder().build(), "h")).get(0);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(pub.getId()).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	TraceData data2 = db1.create(DataValue.of(Ref.ofDocumentId("c"), metadata, "d")).get(0);
+	db1.putSameAsIds(data1.getId(), data2.getId());
+	db1.setMainNode(data2.getId());
+	db1.putPrefix("x:", "http://x.org/");
+	db1.flush();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(pub, db2.read(pub.getId()));
+	assertEquals(data1, db2.read(data1.getId()));
+	assertEquals(data1, db2.read(pub.getId(), "a"));
+	assertTrue(db2.sameAs(data1.getId(), data2.getId()));
+	assertEquals(data2, db2.readMainObject(data1.getId()));
+	assertEquals("http://x.org/", db2.getPrefix("x:"));
+
+	// ids keep growing after reconnecting
+	TraceData data3 = db2.create(DataValue.of(Ref.ofDocumentId("e"), metadata, "f")).get(0);
+	assertTrue(data3.getId() > data2.getId());
+	db2.drop();
+    }
+
+    @Test
+    public void testBatchFlushConnect() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	List<TraceData> batch = new ArrayList();
+	for (int i = 0; i < 100; i++) {
+	    batch.add(DataValue.of(Ref.ofDocumentId("a" + i), metadata, i));
+	}
+	List<TraceData> created = db1.create(batch);
+	assertEquals(100, created.size());
+	for (int i = 1; i < created.size(); i++) {
+	    assertEquals(created.get(0).getId() + i, created.get(i).getId());
+	    assertEquals(created.get(0).getMetadata().getTimestamp(), created.get(i).getMetadata().getTimestamp());
+	}
+	db1.flush();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db2);
+	for (TraceData data : created) {
+	    assertEquals(data, db2.read(data.getId()));
+	    assertEquals(data, db2.read(data.getRef().uri()));
+	}
+	db2.drop();
+    }
+
+    @Test
+    public void testTypeIndexPersistence() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	String stringTypeId = StringType.of().getId();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	db1.create(DataValue.of(Ref.ofDocumentId("c"), metadata, 1));
+	db1.indexType(stringTypeId);
+	db1.flush();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db2);
+	assertTrue(db2.isTypeIndexed(stringTypeId));
+	assertTrue(Iterators.contains(db2.readByType(stringTypeId), data1));
+	db2.checkpoint();
+	TraceData data2 = db2.create(DataValue.of(Ref.ofDocumentId("d"), metadata, "e")).get(0);
+	db2.close();
+
+	TraceDb db3 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db3);
+	List<TraceData> strings = ImmutableList.copyOf(db3.readByType(stringTypeId));
+	assertTrue(strings.contains(data1));
+	assertTrue(strings.contains(data2));
+	for (TraceData data : strings) {
+	    assertTrue(data.getRawValue() instanceof String);
+	}
+	assertEquals(2, db3.count(IndexQuery.and(IndexQuery.type(stringTypeId),
+		IndexQuery.publisher(TraceDb.TRACEDB_PUBLISHER_ID))));
+	db3.drop();
+    }
+
+    @Test
+    public void testUniqueIndexPersistence() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	ClassType company = ClassType.builder().setId("test:company")
+		.addUniqueIndexes(UniqueIndex.builder().setId("vat").addPropertyDefIds("vat").build()).build();
+	TypeRegistry typeRegistry = TypeRegistry.of();
+	typeRegistry.put(company);
+	TraceDb db1 = TraceDb.createDb(dir.toString(), typeRegistry);
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).setType(company)
+		.build();
+	TraceData data1 = db1.create(DataMap.of(Ref.ofDocumentId("a"), metadata, ImmutableMap.of("vat", 123)))
+		.get(0);
+	BigDecimal exact = new BigDecimal("0.10000000000000000001");
+	TraceData data2 = db1.create(DataMap.of(Ref.ofDocumentId("b"), metadata, ImmutableMap.of("vat", exact)))
+		.get(0);
+	db1.checkpoint();
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), typeRegistry,
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1.getId(), db2.readByUniqueKey("test:company", "vat", 123L).getId());
+	assertEquals(data2.getId(), db2.readByUniqueKey("test:company", "vat", exact).getId());
+	try {
+	    db2.create(DataMap.of(Ref.ofDocumentId("b"), metadata, ImmutableMap.of("vat", 123)));
+	    Assert.fail("Shouldn't create node with duplicate key!");
+	} catch (DuplicateKeyException ex) {
+
+	}
+	db2.drop();
+    }
+
+    @Test
+    public void testUpdatePersistence() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	db1.checkpoint();
+	// goes in the log tail
+	TraceData data2 = db1.update(data1.fromThis().setRawValue("c").build()).get(0);
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data2, db2.read("a"));
+	assertEquals(ImmutableList.of(data1, data2), db2.readVersions(data1.getId()));
+	TraceData data3 = db2.update(data2.fromThis().setRawValue("d").build()).get(0);
+	db2.checkpoint();
+	db2.close();
+
+	TraceDb db3 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db3);
+	assertEquals(data3, db3.read(data1.getId()));
+	assertEquals(ImmutableList.of(data1, data2, data3), db3.readVersions(data1.getId()));
+	// the tracedb publisher and data1
+	assertEquals(2, Iterators.size(db3.query(IndexQuery.publisher(TraceDb.TRACEDB_PUBLISHER_ID))));
+	assertEquals(1, countFiles(dir, "versions-*"));
+	// the new checkpoint only writes the new version
+	TraceData data4 = db3.update(data3.fromThis().setRawValue("e").build()).get(0);
+	db3.checkpoint();
+	assertEquals(2, countFiles(dir, "versions-*"));
+	db3.close();
+
+	TraceDb db4 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db4);
+	assertEquals(data4, db4.read("a"));
+	assertEquals(ImmutableList.of(data1, data2, data3, data4), db4.readVersions(data1.getId()));
+	db4.drop();
+    }
+
+    private static int countFiles(Path dir, String glob) throws IOException {
+	int ret = 0;
+	try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir, glob)) {
+	    for (Path path : dirStream) {
+		ret++;
+	    }
+	}
+	return ret;
+    }
+
+    /**
+     * {@link TraceDb#hardUpdate(Iterable)} is not public.
+     */
+    private static List<TraceData> hardUpdate(TraceDb db, TraceData node) throws Exception {
+	Method method = TraceDb.class.getDeclaredMethod("hardUpdate", Iterable.class);
+	method.setAccessible(true);
+	return (List<TraceData>) method.invoke(db, ImmutableList.of(node));
+    }
+
+    @Test
+    public void testHardUpdatePersistence() throws Exception {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	long id = data1.getId();
+	TraceDbSnapshot before = db1.snapshot();
+
+	// overwrites the only version, also for snapshots
+	assertEquals(ImmutableList.of(data1), hardUpdate(db1, data1.fromThis().setRawValue("c").build()));
+	TraceData hard1 = db1.read(id);
+	assertEquals("c", hard1.getRawValue());
+	assertEquals(ImmutableList.of(hard1), db1.readVersions(id));
+	assertEquals(hard1, before.read(id));
+
+	TraceData data2 = db1.update(hard1.fromThis().setRawValue("d").build()).get(0);
+	TraceDbSnapshot beforeSecond = db1.snapshot();
+	assertEquals(ImmutableList.of(data2), hardUpdate(db1, data2.fromThis().setRawValue("e").build()));
+	TraceData hard2 = db1.read(id);
+	assertEquals("e", hard2.getRawValue());
+	assertEquals(ImmutableList.of(hard1, hard2), db1.readVersions(id));
+	assertEquals(hard1, before.read(id));
+	assertEquals(hard2, beforeSecond.read(id));
+	db1.close();
+
+	// from the log
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(hard2, db2.read("a"));
+	assertEquals(ImmutableList.of(hard1, hard2), db2.readVersions(id));
+	db2.checkpoint();
+	// overwrites a version already in the checkpoint
+	hardUpdate(db2, hard2.fromThis().setRawValue("f").build());
+	TraceData hard3 = db2.read(id);
+	db2.checkpoint();
+	db2.close();
+
+	// from the checkpoints
+	for (TraceDbConfig config : ImmutableList.of(TraceDbConfig.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build())) {
+	    TraceDb db3 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), config);
+	    TraceDb.setCurrentDb(db3);
+	    assertEquals(hard3, db3.read("a"));
+	    assertEquals(ImmutableList.of(hard1, hard3), db3.readVersions(id));
+	    db3.close();
+	}
+	TraceDb.connectToDb(dir.toString(), TypeRegistry.of()).drop();
+    }
+
+    @Test
+    public void testFingerprintPersistence() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataMap.of(Ref.ofDocumentId("a"), metadata,
+		ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "b"))).get(0);
+	long fingerprint = db1.readFingerprint(data1.getId());
+	db1.checkpoint();
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(fingerprint, db2.readFingerprint(data1.getId()));
+	// key order and number classes don't matter
+	TraceData sameContent = DataMap.of(Ref.ofDocumentId("a"), metadata,
+		ImmutableMap.of("y", "b", "x", ImmutableList.of(1L, 2L)));
+	assertEquals(fingerprint, db2.fingerprint(sameContent));
+	assertTrue(db2.isSynchronized(sameContent));
+	assertFalse(db2.isSynchronized(DataMap.of(Ref.ofDocumentId("a"), metadata,
+		ImmutableMap.of("x", ImmutableList.of(2, 1), "y", "b"))));
+	db2.drop();
+    }
+
+    /**
+     * Sets are read back as lists and floats as doubles, still fingerprints
+     * must not change whether nodes are loaded eagerly or lazily.
+     */
+    @Test
+    public void testFingerprintReconnect() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData checkpointed = db1.create(DataMap.of(Ref.ofDocumentId("a"), metadata,
+		ImmutableMap.of("tags", ImmutableSet.of("x", "y"), "score", 0.1f))).get(0);
+	db1.checkpoint();
+	// replayed from the log
+	TraceData logged = db1.create(DataMap.of(Ref.ofDocumentId("b"), metadata,
+		ImmutableMap.of("tags", ImmutableSet.of("z"), "score", 1.3f))).get(0);
+	long checkpointedFingerprint = db1.readFingerprint(checkpointed.getId());
+	long loggedFingerprint = db1.readFingerprint(logged.getId());
+	db1.close();
+
+	for (boolean lazy : new boolean[] { false, true }) {
+	    TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		    TraceDbConfig.builder().setLazyLoading(lazy).build());
+	    TraceDb.setCurrentDb(db2);
+	    assertEquals(checkpointedFingerprint, db2.readFingerprint(checkpointed.getId()));
+	    assertEquals(checkpointedFingerprint, db2.fingerprint(db2.read(checkpointed.getId())));
+	    assertEquals(loggedFingerprint, db2.readFingerprint(logged.getId()));
+	    assertTrue(db2.isSynchronized(checkpointed));
+	    assertTrue(db2.isSynchronized(logged));
+	    if (lazy) {
+		db2.drop();
+	    } else {
+		db2.close();
+	    }
+	}
+    }
+
+    private static long segmentBytes(Path dir) throws IOException {
+	long ret = 0;
+	try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir, "segment-*")) {
+	    for (Path path : dirStream) {
+		ret += Files.size(path);
+	    }
+	}
+	return ret;
+    }
+
+    /**
+     * Creates nodes which share the same publisher map and checkpoints them
+     */
+    private static List<TraceData> createRepeated(Path dir, TraceDbConfig config) {
+	TraceDb db = TraceDb.createDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	List<TraceData> ret = new ArrayList<>();
+	for (int i = 0; i < 20; i++) {
+	    Map<String, Object> publisher = new HashMap<>();
+	    publisher.put("name", "Provincia Autonoma di Trento");
+	    publisher.put("uri", "http://www.provincia.tn.it");
+	    ret.add(db.create(DataMap.of(Ref.ofDocumentId("a" + i), metadata,
+		    ImmutableMap.of("publisher", publisher, "license", "CC-BY", "i", i % 2))).get(0));
+	}
+	db.checkpoint();
+	db.close();
+	return ret;
+    }
+
+    @Test
+    public void testDedupRawValues() throws IOException {
+	Path plainDir = Files.createTempDirectory("tracedb-");
+	createRepeated(plainDir, TraceDbConfig.of());
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDbConfig config = TraceDbConfig.builder().setDedupRawValues(true).build();
+	List<TraceData> created = createRepeated(dir, config);
+	assertTrue(((Map) created.get(0).getRawValue()).get("publisher") == ((Map) created.get(1).getRawValue())
+		.get("publisher"));
+	assertTrue(created.get(0).getRawValue() == created.get(2).getRawValue());
+	assertTrue(segmentBytes(dir) < segmentBytes(plainDir));
+
+	TraceDb db = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setDedupRawValues(true).setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db);
+	TraceData read0 = db.read(created.get(0).getId());
+	TraceData read1 = db.read(created.get(1).getId());
+	assertEquals(created.get(0), read0);
+	assertEquals(created.get(1), read1);
+	assertTrue(((Map) read0.getRawValue()).get("publisher") == ((Map) read1.getRawValue()).get("publisher"));
+	db.drop();
+
+	TraceDb plainDb = TraceDb.connectToDb(plainDir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(plainDb);
+	assertEquals(created.get(1).getRawValue(), plainDb.read(created.get(1).getId()).getRawValue());
+	plainDb.drop();
+    }
+
+    @Test
+    public void testDedupKeepsValuesApart() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db = TraceDb.createDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setDedupRawValues(true).build());
+	TraceDb.setCurrentDb(db);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+
+	List<Object> tags = new ArrayList<>(Arrays.asList("a", "b"));
+	TraceData data1 = db.create(DataValue.of(Ref.ofDocumentId("a"), metadata, tags)).get(0);
+	tags.add("c");
+	TraceData data2 = db.create(DataValue.of(Ref.ofDocumentId("b"), metadata, tags)).get(0);
+	assertEquals(Arrays.asList("a", "b"), data1.getRawValue());
+	assertEquals(Arrays.asList("a", "b", "c"), data2.getRawValue());
+
+	Map<String, Object> xy = new LinkedHashMap<>();
+	xy.put("x", 1);
+	xy.put("y", 2);
+	Map<String, Object> yx = new TreeMap<>(Collections.reverseOrder());
+	yx.putAll(xy);
+	TraceData data3 = db.create(DataValue.of(Ref.ofDocumentId("c"), metadata, xy)).get(0);
+	TraceData data4 = db.create(DataValue.of(Ref.ofDocumentId("d"), metadata, yx)).get(0);
+	assertEquals(Arrays.asList("y", "x"), new ArrayList<>(((Map) data4.getRawValue()).keySet()));
+
+	Timestamp timestamp = new Timestamp(1000);
+	TraceData data5 = db.create(DataValue.of(Ref.ofDocumentId("e"), metadata, timestamp)).get(0);
+	TraceData data6 = db.create(DataValue.of(Ref.ofDocumentId("f"), metadata, new Date(1000))).get(0);
+	assertEquals(Timestamp.class, data5.getRawValue().getClass());
+	assertEquals(Date.class, data6.getRawValue().getClass());
+	db.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setDedupRawValues(true).build());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1.getRawValue(), db2.read(data1.getId()).getRawValue());
+	assertEquals(data2.getRawValue(), db2.read(data2.getId()).getRawValue());
+	assertEquals(Arrays.asList("y", "x"),
+		new ArrayList<>(((Map) db2.read(data4.getId()).getRawValue()).keySet()));
+	assertEquals(Date.class, db2.read(data6.getId()).getRawValue().getClass());
+	db2.drop();
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDbConfig config = TraceDbConfig.builder().setCheckpointLogRecords(3).build();
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	TraceData data2 = db1.create(DataValue.of(Ref.ofDocumentId("c"), metadata, "d")).get(0);
+	db1.putSameAsIds(data2.getId(), data1.getId());
+	db1.putPrefix("x:", "http://x.org/");
+	db1.checkpoint();
+	assertTrue(Files.exists(dir.resolve(TraceDb.TRACEDB_MANIFEST_FILE)));
+	assertEquals(0, Files.size(dir.resolve(TraceDb.TRACEDB_LOG_FILE)));
+
+	// goes in the log tail
+	TraceData data3 = db1.create(DataValue.of(Ref.ofDocumentId("e"), metadata, "f")).get(0);
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1, db2.read(data1.getId()));
+	assertEquals(data3, db2.read("e"));
+	assertEquals(data2, db2.readMainObject(data1.getId()));
+	assertEquals("http://x.org/", db2.getPrefix("x:"));
+	db2.drop();
+    }
+
+    /**
+     * A crash while rotating the log for the first checkpoint leaves only the
+     * rotated log
+     */
+    @Test
+    public void testInterruptedLogRotation() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	db1.close();
+	Files.move(dir.resolve(TraceDb.TRACEDB_LOG_FILE), dir.resolve(TraceDb.TRACEDB_LOG_FILE + ".1"));
+
+	assertTrue(TraceDb.existsDb(dir.toString()));
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), TraceDbConfig.of());
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1, db2.read("a"));
+	TraceData data2 = db2.create(DataValue.of(Ref.ofDocumentId("c"), metadata, "d")).get(0);
+	db2.close();
+
+	TraceDb db3 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), TraceDbConfig.of());
+	TraceDb.setCurrentDb(db3);
+	assertEquals(data1, db3.read("a"));
+	assertEquals(data2, db3.read("c"));
+	db3.drop();
+    }
+
+    @Test
+    public void testCheckpointSegments() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	// one node per segment
+	TraceDbConfig config = TraceDbConfig.builder().setCheckpointSegmentBytes(1).build();
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	db1.checkpoint();
+	TraceData data2 = db1.create(DataValue.of(Ref.ofDocumentId("c"), metadata, 3)).get(0);
+	db1.checkpoint();
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1, db2.read("a"));
+	assertEquals(data2, db2.read("c"));
+	db2.drop();
+    }
+
+    @Test
+    public void testLazyLoading() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	TraceData data1 = db1.create(DataValue.of(Ref.ofDocumentId("a"), metadata, "b")).get(0);
+	TraceData data2 = db1.create(DataValue.of(Ref.ofDocumentId("c"), metadata, "d")).get(0);
+	TraceData data3 = db1.create(DataValue.of(Ref.ofDocumentId("e"), metadata, "f")).get(0);
+	db1.putSameAsIds(data3.getId(), data1.getId());
+	db1.checkpoint();
+	db1.close();
+
+	TraceDbConfig config = TraceDbConfig.builder().setLazyLoading(true).setNodeCacheSize(1).build();
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(), config);
+	TraceDb.setCurrentDb(db2);
+	assertEquals(data1, db2.read(data1.getId()));
+	assertEquals(data2, db2.read("c"));
+	assertEquals(data2, db2.read(TraceDb.TRACEDB_PUBLISHER_ID, "c"));
+	assertEquals(data3, db2.readMainObject(data1.getId()));
+	// evicted from cache
+	assertEquals(data1, db2.read(data1.getId()));
+	assertTrue(db2.getNodeCacheStats().hitCount() > 0);
+	assertTrue(db2.getNodeCacheStats().missCount() > 0);
+	assertTrue(db2.getNodeCacheStats().evictionCount() > 0);
+	TraceData data4 = db2.create(DataValue.of(Ref.ofDocumentId("g"), metadata, "h")).get(0);
+	assertEquals(data4, db2.read("g"));
+	db2.drop();
+    }
+
+    @Test
+    public void testLazyLoadingSharedMap() throws IOException {
+	Path dir = Files.createTempDirectory("tracedb-");
+	TraceDb db1 = TraceDb.createDb(dir.toString(), TypeRegistry.of());
+	TraceDb.setCurrentDb(db1);
+	NodeMetadata metadata = NodeMetadata.builder().setPublisherId(TraceDb.TRACEDB_PUBLISHER_ID).build();
+	Map<String, Object> map = new HashMap<>();
+	map.put("x", Arrays.asList(1, 2));
+	TraceData data = db1.create(DataMap.of(Ref.ofDocumentId("a"), metadata, map)).get(0);
+	db1.checkpoint();
+	db1.close();
+
+	TraceDb db2 = TraceDb.connectToDb(dir.toString(), TypeRegistry.of(),
+		TraceDbConfig.builder().setLazyLoading(true).build());
+	TraceDb.setCurrentDb(db2);
+	TraceData read = db2.read(data.getId());
+	assertEquals(data.getRawValue(), read.getRawValue());
+	assertSame(read, db2.read(data.getId()));
+	try {
+	    ((Map) read.getRawValue()).put("y", 3);
+	    Assert.fail("Shouldn't arrive here!");
+	} catch (UnsupportedOperationException ex) {
+
+	}
+	db2.drop();
+    }
+
     private TraceDb newInMemorydb() {
 	TraceDb db = TraceDb.createInMemoryDb(randomId(), TypeRegistry.of());
 	TraceDb.setCurrentDb(db);
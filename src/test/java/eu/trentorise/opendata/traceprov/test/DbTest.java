@@ -5,27 +5,60 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+
 import eu.trentorise.opendata.commons.Dict;
 import eu.trentorise.opendata.commons.validation.Ref;
 import eu.trentorise.opendata.traceprov.data.TraceData;
+import eu.trentorise.opendata.traceprov.data.DataMap;
+import eu.trentorise.opendata.traceprov.data.DataObject;
 import eu.trentorise.opendata.traceprov.data.DataValue;
 import eu.trentorise.opendata.traceprov.data.NodeMetadata;
+import eu.trentorise.opendata.traceprov.db.ChangeKind;
+import eu.trentorise.opendata.traceprov.db.DataChange;
+import eu.trentorise.opendata.traceprov.db.IndexQuery;
 import eu.trentorise.opendata.traceprov.db.TraceDb;
+import eu.trentorise.opendata.traceprov.db.TraceDbSnapshot;
 import eu.trentorise.opendata.traceprov.dcat.AFoafAgent;
 import eu.trentorise.opendata.traceprov.dcat.FoafAgent;
 import eu.trentorise.opendata.traceprov.exceptions.AmbiguousUrlException;
 import eu.trentorise.opendata.traceprov.exceptions.DataNotFoundException;
+import eu.trentorise.opendata.traceprov.exceptions.DuplicateKeyException;
+import eu.trentorise.opendata.traceprov.tracel.java.PropertyPath;
+import eu.trentorise.opendata.traceprov.types.ClassType;
+import eu.trentorise.opendata.traceprov.types.StringType;
 import eu.trentorise.opendata.traceprov.types.TypeRegistry;
+import eu.trentorise.opendata.traceprov.types.UniqueIndex;
 
 /**
  *
@@ -159,6 +192,25 @@ public class DbTest {
         }
     }
 
+    @Test
+    public void testTryRead() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        TraceData data = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b"))
+                           .get(0);
+
+        assertTrue(db.contains("a"));
+        assertTrue(db.contains("a/"));
+        assertFalse(db.contains("g"));
+        assertTrue(db.contains(pub1.getId(), "a"));
+        assertFalse(db.contains(pub2.getId(), "a"));
+
+        assertEquals(data, db.tryRead("a"));
+        assertEquals(null, db.tryRead("g"));
+        assertEquals(data, db.tryRead(pub1.getId(), "a"));
+        assertEquals(null, db.tryRead(pub2.getId(), "a"));
+    }
+
     @Test
     public void testReadDuplicateUrlInSeparateClique() {
         TraceData pub1 = newPublisher();
@@ -179,6 +231,74 @@ public class DbTest {
         }
     }
 
+    @Test
+    public void testReadUrlAfterCliqueChanges() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        TraceData pub3 = newPublisher();
+        TraceData data1 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b"))
+                            .get(0);
+        TraceData data2 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub2), "d"))
+                            .get(0);
+        TraceData data3 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub3), "e"))
+                            .get(0);
+
+        db.putSameAsIds(data1.getId(), data2.getId());
+        try {
+            db.read("a");
+            Assert.fail("Shouldn't arrive here!");
+        } catch (AmbiguousUrlException ex) {
+
+        }
+
+        db.putSameAsIds(data1.getId(), data3.getId());
+        assertEquals(data1, db.read("a"));
+        assertEquals(data1, db.read("a"));
+
+        db.setMainNode(data3.getId());
+        assertEquals(data3, db.read("a"));
+    }
+
+    @Test
+    public void testReadAmbiguousUrlRepeatedly() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        TraceData pub3 = newPublisher();
+        TraceData data1 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b"))
+                            .get(0);
+        TraceData data2 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub2), "d"))
+                            .get(0);
+        TraceData other = db.create(DataValue.of(Ref.ofDocumentId("x"), makeMetadata(pub1), "y"))
+                            .get(0);
+
+        for (int i = 0; i < 3; i++) {
+            assertAmbiguous("a");
+        }
+
+        // unrelated union
+        db.putSameAsIds(data1.getId(), other.getId());
+        assertAmbiguous("a");
+
+        TraceData data3 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub3), "e"))
+                            .get(0);
+        assertAmbiguous("a");
+
+        db.putSameAsIds(data1.getId(), data2.getId());
+        assertAmbiguous("a");
+
+        db.putSameAsIds(data1.getId(), data3.getId());
+        assertEquals(data1, db.read("a"));
+    }
+
+    private void assertAmbiguous(String url) {
+        try {
+            db.read(url);
+            Assert.fail("Shouldn't arrive here!");
+        } catch (AmbiguousUrlException ex) {
+
+        }
+    }
+
     @Test
     public void testClique() {
 
@@ -208,8 +328,727 @@ public class DbTest {
     }
 
     @Test
-    @Ignore
+    public void testCliqueMerge() {
+        TraceData pub = makePublisher();
+        List<Long> ids = new ArrayList();
+        for (int i = 0; i < 5; i++) {
+            ids.add(db.create(DataValue.of(Ref.ofDocumentId("a" + i), makeMetadata(pub), i))
+                      .get(0)
+                      .getId());
+        }
+        db.putSameAsIds(ids.get(0), ids.get(1));
+        db.putSameAsIds(ids.get(2), ids.get(3));
+        assertFalse(db.sameAs(ids.get(0), ids.get(2)));
+
+        db.putSameAsIds(ids.get(3), ids.get(1));
+        assertTrue(db.sameAs(ids.subList(0, 4)));
+        assertFalse(db.sameAs(ids.get(0), ids.get(4)));
+        assertEquals(ids.get(3), db.readSameAsIds(ids.get(0))
+                                   .get(0));
+        assertEquals(ImmutableSet.copyOf(ids.subList(0, 4)), ImmutableSet.copyOf(db.readSameAsIds(ids.get(1))));
+        assertEquals(4, db.readSameAsIds(ids.get(2))
+                          .size());
+
+        db.setMainNode(ids.get(0));
+        assertEquals(ids.get(0), (Long) db.readMainObject(ids.get(2))
+                                          .getId());
+        assertEquals(ImmutableList.of(ids.get(4)), db.readSameAsIds(ids.get(4)));
+    }
+
+    @Test
+    public void testConcurrentCreateRead() throws Exception {
+        final TraceData pub = makePublisher();
+        final int writers = 4;
+        final int nodesPerWriter = 2000;
+        final ConcurrentLinkedQueue<TraceData> created = new ConcurrentLinkedQueue();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+        try {
+            List<Future<?>> writes = new ArrayList();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                writes.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < nodesPerWriter; i++) {
+                            created.add(db.create(DataValue.of(Ref.ofDocumentId("w" + writer + "-" + i),
+                                    makeMetadata(pub), i))
+                                          .get(0));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            List<Future<Integer>> reads = new ArrayList();
+            for (int r = 0; r < 2; r++) {
+                reads.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int ret = 0;
+                        while (!done.get()) {
+                            for (TraceData node : created) {
+                                assertEquals(node, db.read(node.getId()));
+                                ret += 1;
+                            }
+                        }
+                        return ret;
+                    }
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get(1, TimeUnit.MINUTES);
+            }
+            done.set(true);
+            for (Future<Integer> read : reads) {
+                read.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(writers * nodesPerWriter, created.size());
+        Set<Long> ids = new HashSet();
+        for (TraceData node : created) {
+            assertTrue(ids.add(node.getId()));
+            assertEquals(node, db.read(node.getId()));
+            assertEquals(node, db.read(node.getRef()
+                                           .uri()));
+        }
+    }
+
+    /**
+     * Readers polling the url of a node being created must either find
+     * nothing or the node itself.
+     */
+    @Test
+    public void testConcurrentCreateReadUrl() throws Exception {
+        final TraceData pub = makePublisher();
+        final int nodes = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> write = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < nodes; i++) {
+                        db.create(DataValue.of(Ref.ofDocumentId("u-" + i), makeMetadata(pub), i));
+                    }
+                    return null;
+                }
+            });
+            List<Future<?>> reads = new ArrayList();
+            for (int r = 0; r < 2; r++) {
+                reads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int i = 0;
+                        while (i < nodes) {
+                            TraceData node = db.tryRead("u-" + i);
+                            if (node != null) {
+                                assertEquals("u-" + i, node.getRef()
+                                                           .getDocumentId());
+                                assertEquals(i, node.getRawValue());
+                                i++;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            write.get(1, TimeUnit.MINUTES);
+            for (Future<?> read : reads) {
+                read.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        TraceData pub = makePublisher();
+        TraceData a = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub), "x"))
+                        .get(0);
+        TraceDbSnapshot snapshot = db.snapshot();
+
+        TraceData b = db.create(DataValue.of(Ref.ofDocumentId("b"), makeMetadata(pub), "y"))
+                        .get(0);
+        db.putSameAsIds(b.getId(), a.getId());
+        db.putPrefix("p:", "http://p.org/");
+
+        assertEquals(a, snapshot.read(a.getId()));
+        assertEquals(a, snapshot.readMainObject(a.getId()));
+        assertEquals(a, snapshot.read("a"));
+        assertEquals(ImmutableList.of(a.getId()), snapshot.readSameAsIds(a.getId()));
+        assertTrue(snapshot.readSameAsIds(b.getId())
+                           .isEmpty());
+        assertFalse(snapshot.getAllPrefixes()
+                            .containsKey("p:"));
+        try {
+            snapshot.read(b.getId());
+            Assert.fail("Shouldn't see nodes created after the snapshot!");
+        } catch (DataNotFoundException ex) {
+
+        }
+        try {
+            snapshot.read("b");
+            Assert.fail("Shouldn't see nodes created after the snapshot!");
+        } catch (DataNotFoundException ex) {
+
+        }
+
+        assertEquals(b, db.readMainObject(a.getId()));
+        TraceDbSnapshot later = db.snapshot();
+        assertTrue(later.getSeq() > snapshot.getSeq());
+        assertEquals(b, later.readMainObject(a.getId()));
+        assertTrue(later.sameAs(a.getId(), b.getId()));
+    }
+
+    @Test
+    public void testBatchCreateIsAtomic() {
+        TraceData pub = makePublisher();
+        List<TraceData> batch = new ArrayList();
+        batch.add(DataValue.of(Ref.ofDocumentId("ok"), makeMetadata(pub), "x"));
+        batch.add(DataValue.of(Ref.ofDocumentId("ko"), NodeMetadata.builder()
+                                                                  .setPublisherId(1000)
+                                                                  .build(),
+                "y"));
+        try {
+            db.create(batch);
+            Assert.fail("Shouldn't create batch with unknown publisher!");
+        } catch (DataNotFoundException ex) {
+
+        }
+        try {
+            db.read("ok");
+            Assert.fail("Shouldn't create any node of a failed batch!");
+        } catch (DataNotFoundException ex) {
+
+        }
+        assertTrue(db.create(new ArrayList<TraceData>())
+                     .isEmpty());
+    }
+
+    @Test
+    public void testTypeIndex() {
+        TraceData pub = makePublisher();
+        String stringTypeId = StringType.of()
+                                        .getId();
+        TraceData a = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub), "x"))
+                        .get(0);
+        db.create(DataValue.of(Ref.ofDocumentId("b"), makeMetadata(pub), 1));
+        assertFalse(db.isTypeIndexed(stringTypeId));
+        try {
+            db.readByType(stringTypeId);
+            Assert.fail("Shouldn't read by type not indexed!");
+        } catch (IllegalArgumentException ex) {
+
+        }
+
+        db.indexType(stringTypeId);
+        assertTrue(db.isTypeIndexed(stringTypeId));
+        assertTrue(db.getIndexedTypes()
+                     .contains(stringTypeId));
+        List<TraceData> strings = ImmutableList.copyOf(db.readByType(stringTypeId));
+        assertTrue(strings.contains(a));
+        for (TraceData node : strings) {
+            assertTrue(node.getRawValue() instanceof String);
+        }
+
+        // index is maintained on create
+        TraceData c = db.create(DataValue.of(Ref.ofDocumentId("c"), makeMetadata(pub), "z"))
+                        .get(0);
+        assertEquals(strings.size() + 1, Iterators.size(db.readByType(stringTypeId)));
+        assertTrue(Iterators.contains(db.readByType(stringTypeId), c));
+    }
+
+    /**
+     * Nodes created while a type is being indexed must all end up in the index
+     */
+    @Test
+    public void testConcurrentIndexType() throws Exception {
+        final TraceData pub = makePublisher();
+        String stringTypeId = StringType.of()
+                                        .getId();
+        final int nodes = 5000;
+        final ConcurrentLinkedQueue<TraceData> created = new ConcurrentLinkedQueue();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> write = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < nodes; i++) {
+                        created.add(db.create(DataValue.of(Ref.ofDocumentId("s-" + i), makeMetadata(pub), "v" + i))
+                                      .get(0));
+                    }
+                    return null;
+                }
+            });
+            while (created.size() < nodes / 2) {
+                Thread.sleep(1);
+            }
+            db.indexType(stringTypeId);
+            write.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Set<Long> indexed = new HashSet();
+        for (Iterator<TraceData> iter = db.readByType(stringTypeId); iter.hasNext();) {
+            indexed.add(iter.next()
+                            .getId());
+        }
+        for (TraceData node : created) {
+            assertTrue("Missing from type index: " + node, indexed.contains(node.getId()));
+        }
+    }
+
+    @Test
+    public void testUniqueIndex() {
+        TraceData pub = makePublisher();
+        ClassType company = ClassType.builder()
+                                     .setId("test:company")
+                                     .addUniqueIndexes(UniqueIndex.builder()
+                                                                  .setId("vat")
+                                                                  .addPropertyDefIds("vat")
+                                                                  .build())
+                                     .build();
+        NodeMetadata md = makeMetadata(pub).withType(company);
+
+        TraceData a = db.create(DataMap.of(Ref.ofDocumentId("a"), md, ImmutableMap.of("vat", "123", "name", "A")))
+                        .get(0);
+        assertEquals(a, db.readByUniqueKey("test:company", "vat", "123"));
+
+        try {
+            db.create(DataMap.of(Ref.ofDocumentId("b"), md, ImmutableMap.of("vat", "123", "name", "B")));
+            Assert.fail("Shouldn't create node with duplicate key!");
+        } catch (DuplicateKeyException ex) {
+            assertEquals(a.getId(), ex.getExistingId());
+        }
+        try {
+            db.read("b");
+            Assert.fail("Node with duplicate key shouldn't be stored!");
+        } catch (DataNotFoundException ex) {
+
+        }
+
+        // a batch with a duplicate is rejected as a whole
+        try {
+            db.create(DataMap.of(Ref.ofDocumentId("c"), md, ImmutableMap.of("vat", "456")),
+                    DataMap.of(Ref.ofDocumentId("d"), md, ImmutableMap.of("vat", "456")));
+            Assert.fail("Shouldn't create batch with duplicate keys!");
+        } catch (DuplicateKeyException ex) {
+
+        }
+        try {
+            db.readByUniqueKey("test:company", "vat", "456");
+            Assert.fail("Keys of a rejected batch shouldn't be indexed!");
+        } catch (DataNotFoundException ex) {
+
+        }
+
+        TraceData c = db.create(DataMap.of(Ref.ofDocumentId("c"), md, ImmutableMap.of("vat", "456")))
+                        .get(0);
+        assertEquals(c, db.readByUniqueKey("test:company", "vat", "456"));
+
+        // nodes missing the key are not indexed
+        db.create(DataMap.of(Ref.ofDocumentId("e"), md, ImmutableMap.of("name", "E")),
+                DataMap.of(Ref.ofDocumentId("f"), md, ImmutableMap.of("name", "F")));
+        // so are nodes whose key is a node without value
+        db.create(DataMap.of(Ref.ofDocumentId("g"), md,
+                ImmutableMap.of("vat", DataValue.of(Ref.ofDocumentId("h"), md, null))),
+                DataMap.of(Ref.ofDocumentId("i"), md,
+                        ImmutableMap.of("vat", DataValue.of(Ref.ofDocumentId("j"), md, null))));
+    }
+
+    /**
+     * Big numbers are compared exactly, whatever their class
+     */
+    @Test
+    public void testUniqueIndexBigNumbers() {
+        TraceData pub = makePublisher();
+        ClassType company = ClassType.builder()
+                                     .setId("test:company")
+                                     .addUniqueIndexes(UniqueIndex.builder()
+                                                                  .setId("vat")
+                                                                  .addPropertyDefIds("vat")
+                                                                  .build())
+                                     .build();
+        NodeMetadata md = makeMetadata(pub).withType(company);
+        BigInteger big = new BigInteger("123456789012345678901");
+        TraceData a = db.create(DataMap.of(Ref.ofDocumentId("a"), md, ImmutableMap.of("vat", big)))
+                        .get(0);
+        // equal as doubles
+        TraceData b = db.create(
+                DataMap.of(Ref.ofDocumentId("b"), md, ImmutableMap.of("vat", big.add(BigInteger.ONE))))
+                        .get(0);
+        assertEquals(a, db.readByUniqueKey("test:company", "vat", big));
+        assertEquals(b, db.readByUniqueKey("test:company", "vat", big.add(BigInteger.ONE)));
+
+        TraceData c = db.create(DataMap.of(Ref.ofDocumentId("c"), md,
+                ImmutableMap.of("vat", new BigDecimal("0.10000000000000000001"))))
+                        .get(0);
+        db.create(DataMap.of(Ref.ofDocumentId("d"), md, ImmutableMap.of("vat", new BigDecimal("0.1"))));
+        assertEquals(c, db.readByUniqueKey("test:company", "vat", new BigDecimal("0.100000000000000000010")));
+
+        // numbers with the same value are the same key
+        db.create(DataMap.of(Ref.ofDocumentId("e"), md, ImmutableMap.of("vat", 12)));
+        try {
+            db.create(DataMap.of(Ref.ofDocumentId("f"), md, ImmutableMap.of("vat", new BigDecimal("12.00"))));
+            Assert.fail("Shouldn't create node with duplicate key!");
+        } catch (DuplicateKeyException ex) {
+
+        }
+        try {
+            db.create(DataMap.of(Ref.ofDocumentId("f"), md, ImmutableMap.of("vat", 0.1f)));
+            Assert.fail("Shouldn't create node with duplicate key!");
+        } catch (DuplicateKeyException ex) {
+
+        }
+    }
+
+    @Test
+    public void testReadByPublisher() throws InterruptedException {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        TraceData a = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "a"))
+                        .get(0);
+        db.create(DataValue.of(Ref.ofDocumentId("b"), makeMetadata(pub2), "b"));
+        Thread.sleep(5);
+        Timestamp since = new Timestamp(System.currentTimeMillis());
+        Thread.sleep(5);
+        List<TraceData> created = db.create(DataValue.of(Ref.ofDocumentId("c"), makeMetadata(pub1), "c"),
+                DataValue.of(Ref.ofDocumentId("d"), makeMetadata(pub1), "d"));
+
+        // publishers are their own publishers
+        assertEquals(ImmutableList.of(pub1, a, created.get(0), created.get(1)),
+                ImmutableList.copyOf(db.readByPublisher(pub1.getId())));
+        assertEquals(created, ImmutableList.copyOf(db.readByPublisher(pub1.getId(), since, null)));
+        assertEquals(ImmutableList.of(pub1, a), ImmutableList.copyOf(db.readByPublisher(pub1.getId(), null, since)));
+        assertEquals(created, ImmutableList.copyOf(db.readByTimestamp(since, null)));
+        assertFalse(db.readByPublisher(pub2.getId(), since, null)
+                      .hasNext());
+        assertFalse(db.readByPublisher(Long.MAX_VALUE)
+                      .hasNext());
+    }
+
+    @Test
+    public void testIndexQuery() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        String stringTypeId = StringType.of()
+                                        .getId();
+        db.indexType(stringTypeId);
+
+        // enough nodes to switch posting lists to dense containers
+        List<TraceData> nodes = new ArrayList();
+        for (int i = 0; i < 10000; i++) {
+            NodeMetadata md = NodeMetadata.builder()
+                                          .setPublisherId((i % 2 == 0 ? pub1 : pub2).getId())
+                                          .setLicense(i % 3 == 0 ? "cc-by" : "cc0")
+                                          .setLanguage(i % 5 == 0 ? Locale.ITALIAN : Locale.ENGLISH)
+                                          .build();
+            nodes.add(DataValue.of(Ref.ofDocumentId("q" + i), md, i % 7 == 0 ? (Object) ("s" + i) : i));
+        }
+        List<TraceData> created = db.create(nodes);
+
+        List<TraceData> expected = new ArrayList();
+        for (int i = 0; i < created.size(); i++) {
+            if (i % 2 == 0 && i % 3 == 0 && i % 7 == 0) {
+                expected.add(created.get(i));
+            }
+        }
+        IndexQuery query = IndexQuery.and(IndexQuery.type(stringTypeId), IndexQuery.publisher(pub1.getId()),
+                IndexQuery.license("cc-by"));
+        assertEquals(expected, ImmutableList.copyOf(db.query(query)));
+        assertEquals(expected.size(), db.count(query));
+
+        long italianOrByNotPub1 = 0;
+        for (int i = 0; i < created.size(); i++) {
+            if ((i % 5 == 0 || i % 3 == 0) && i % 2 != 0) {
+                italianOrByNotPub1++;
+            }
+        }
+        assertEquals(italianOrByNotPub1,
+                db.count(IndexQuery.and(
+                        IndexQuery.or(IndexQuery.language(Locale.ITALIAN), IndexQuery.license("cc-by")),
+                        IndexQuery.not(IndexQuery.publisher(pub1.getId())))));
+
+        assertEquals(0, db.count(IndexQuery.and(IndexQuery.publisher(pub1.getId()),
+                IndexQuery.publisher(pub2.getId()))));
+        assertEquals(db.count(IndexQuery.all()), db.count(IndexQuery.or(IndexQuery.license("cc0"),
+                IndexQuery.not(IndexQuery.license("cc0")))));
+        assertFalse(db.query(IndexQuery.license("unknown"))
+                      .hasNext());
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        db.putPrefix("t:", "http://t.org/");
+        db.putPrefix("t:x:", "http://x.org/");
+        assertEquals("http://x.org/a", db.expandUrl("t:x:a"));
+        assertEquals("http://t.org/y:a", db.expandUrl("t:y:a"));
+        assertEquals("u:a", db.expandUrl("u:a"));
+
+        String normalized = db.normalizeUrl("t:x:b/");
+        assertEquals("http://x.org/b", normalized);
+        assertTrue(normalized == db.normalizeUrl("t:x:b/"));
+
+        // normalized urls are not stale after prefixes change
+        db.putPrefix("t:x:", "http://z.org/");
+        assertEquals("http://z.org/b", db.normalizeUrl("t:x:b/"));
+        TraceDbSnapshot snapshot = db.snapshot();
+        db.putPrefix("t:x:", "http://w.org/");
+        assertEquals("http://z.org/b", snapshot.normalizeUrl("t:x:b/"));
+        assertEquals("http://w.org/b", db.normalizeUrl("t:x:b/"));
+    }
+
+    @Test
+    public void testReadArray() {
+        TraceData pub = makePublisher();
+        // enough nodes to span more than one page of ids
+        List<TraceData> created = new ArrayList();
+        for (int i = 0; i < 5000; i++) {
+            created.add(db.create(DataValue.of(Ref.ofDocumentId("a" + i), makeMetadata(pub), i))
+                          .get(0));
+        }
+        long[] ids = new long[] { created.get(4999)
+                                         .getId(),
+                created.get(0)
+                       .getId(),
+                pub.getId() };
+        assertEquals(Arrays.asList(created.get(4999), created.get(0), pub), db.read(ids));
+
+        try {
+            db.read(new long[] { pub.getId(), 1000000L });
+            Assert.fail("Shouldn't arrive here!");
+        } catch (DataNotFoundException ex) {
+
+        }
+    }
+
+    @Test
     public void testUpdateRead() {
-        throw new UnsupportedOperationException("TODO IMPLEMENT ME!");
+        TraceData pub = makePublisher();
+        TraceData data = db.create(DataMap.of(Ref.ofDocumentId("a"), makeMetadata(pub),
+                ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "b")))
+                           .get(0);
+        TraceDbSnapshot snapshot = db.snapshot();
+
+        TraceData updated = db.update(data.fromThis()
+                                          .setRawValue(ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "c"))
+                                          .build())
+                              .get(0);
+        assertEquals(data.getId(), updated.getId());
+        assertEquals(updated, db.read(data.getId()));
+        assertEquals(updated, db.read("a"));
+        assertEquals(pub.getId(), updated.getMetadata()
+                                         .getPublisherId());
+        // unchanged subtrees are shared with the previous version
+        assertTrue(((Map) data.getRawValue()).get("x") == ((Map) updated.getRawValue()).get("x"));
+
+        assertEquals(ImmutableList.of(data, updated), db.readVersions(data.getId()));
+        assertEquals(data, snapshot.read(data.getId()));
+        assertEquals(updated, db.snapshot()
+                                .read(data.getId()));
+
+        // updating with the same content stores nothing
+        assertEquals(updated, db.update(updated.fromThis()
+                                               .setRawValue(ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "c"))
+                                               .build())
+                                .get(0));
+        assertEquals(2, db.readVersions(data.getId())
+                          .size());
+
+        try {
+            db.update(updated.fromThis()
+                             .setRef(Ref.ofDocumentId("z"))
+                             .build());
+            Assert.fail("Shouldn't change url with an update!");
+        } catch (IllegalArgumentException ex) {
+
+        }
+    }
+
+    @Test
+    public void testReadAsOf() throws InterruptedException {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        Timestamp beforeCreate = new Timestamp(System.currentTimeMillis() - 1);
+        Thread.sleep(5);
+        TraceData data = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b"))
+                           .get(0);
+        Thread.sleep(5);
+        Timestamp beforeUpdate = new Timestamp(System.currentTimeMillis());
+        Thread.sleep(5);
+        TraceData updated = db.update(data.fromThis()
+                                          .setRawValue("c")
+                                          .build())
+                              .get(0);
+
+        try {
+            db.read(data.getId(), beforeCreate);
+            Assert.fail("Shouldn't find node before its creation!");
+        } catch (DataNotFoundException ex) {
+
+        }
+        try {
+            db.read("a", beforeCreate);
+            Assert.fail("Shouldn't find url before its creation!");
+        } catch (DataNotFoundException ex) {
+
+        }
+        assertEquals(data, db.read(data.getId(), data.getMetadata()
+                                                     .getTimestamp()));
+        assertEquals(data, db.read(data.getId(), beforeUpdate));
+        assertEquals(data, db.read("a", beforeUpdate));
+        assertEquals(updated, db.read(data.getId(), updated.getMetadata()
+                                                           .getTimestamp()));
+        assertEquals(updated, db.read("a", new Timestamp(System.currentTimeMillis())));
+
+        // main node created later than asked time falls back to the node itself
+        Thread.sleep(5);
+        TraceData other = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub2), "d"))
+                            .get(0);
+        db.putSameAsIds(other.getId(), data.getId());
+        db.setMainNode(other.getId());
+        assertEquals(other, db.readMainObject(data.getId(), new Timestamp(System.currentTimeMillis())));
+        assertEquals(data, db.readMainObject(data.getId(), beforeUpdate));
+        assertEquals(data, db.read("a", beforeUpdate));
+        assertEquals(other, db.read("a", new Timestamp(System.currentTimeMillis())));
+    }
+
+    @Test
+    public void testIsSynchronized() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        TraceData data1 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b"))
+                            .get(0);
+        TraceData data2 = db.create(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub2), "b"))
+                            .get(0);
+        assertEquals(db.readFingerprint(data1.getId()), db.readFingerprint(data2.getId()));
+        assertTrue(db.isSynchronized(pub1.getId(), "a"));
+
+        db.putSameAsIds(data2.getId(), data1.getId());
+        assertTrue(db.isSynchronized(pub1.getId(), "a"));
+
+        TraceData updated = db.update(data2.fromThis()
+                                           .setRawValue("c")
+                                           .build())
+                              .get(0);
+        assertFalse(db.isSynchronized(pub1.getId(), "a"));
+        assertTrue(db.isSynchronized(pub2.getId(), "a"));
+
+        // harvested views
+        assertTrue(db.isSynchronized(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "b")));
+        assertTrue(db.isSynchronized(updated));
+        assertFalse(db.isSynchronized(DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub1), "c")));
+        assertFalse(db.isSynchronized(DataValue.of(Ref.ofDocumentId("z"), makeMetadata(pub1), "b")));
+
+        try {
+            db.isSynchronized(pub1.getId(), "z");
+            Assert.fail("Shouldn't find missing view!");
+        } catch (DataNotFoundException ex) {
+
+        }
+    }
+
+    @Test
+    public void testShallowDeepEqual() {
+        TraceData pub1 = newPublisher();
+        TraceData pub2 = newPublisher();
+        Map<String, ?> content = ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "b");
+        TraceData a = db.create(DataMap.of(Ref.ofDocumentId("a"), makeMetadata(pub1), content))
+                        .get(0);
+        TraceData b = db.create(DataMap.of(Ref.ofDocumentId("a"), makeMetadata(pub2),
+                ImmutableMap.of("y", "b", "x", ImmutableList.of(1, 2))))
+                        .get(0);
+        TraceData c = db.create(DataMap.of(Ref.ofDocumentId("c"), makeMetadata(pub1), content))
+                        .get(0);
+        TraceData d = db.create(DataMap.of(Ref.ofDocumentId("d"), makeMetadata(pub1),
+                ImmutableMap.of("x", ImmutableList.of(2, 1), "y", "b")))
+                        .get(0);
+
+        assertTrue(db.shallowEqual(a.getId(), b.getId()));
+        assertTrue(db.shallowEqual(a.getId(), c.getId()));
+        assertFalse(db.shallowEqual(a.getId(), d.getId()));
+        assertTrue(db.deepEqual(a.getId(), b.getId()));
+        assertFalse(db.deepEqual(a.getId(), c.getId()));
+        assertFalse(db.deepEqual(a.getId(), d.getId()));
+
+        db.update(b.fromThis()
+                   .setRawValue(ImmutableMap.of("x", ImmutableList.of(1, 2), "y", "z"))
+                   .build());
+        assertFalse(db.shallowEqual(a.getId(), b.getId()));
+        assertFalse(db.deepEqual(a.getId(), b.getId()));
+
+        try {
+            db.shallowEqual(a.getId(), Long.MAX_VALUE);
+            Assert.fail("Shouldn't find missing view!");
+        } catch (DataNotFoundException ex) {
+
+        }
+    }
+
+    @Test
+    public void testDiff() {
+        TraceData pub = makePublisher();
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(i);
+        }
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("title", "a");
+        content.put("tags", ImmutableList.of("x", "y"));
+        content.put("publisher", ImmutableMap.of("name", "p", "uri", "u"));
+        content.put("rows", rows);
+        content.put("obsolete", true);
+        TraceData data = db.create(DataMap.of(Ref.ofDocumentId("a"), makeMetadata(pub), content))
+                           .get(0);
+
+        List<Integer> newRows = new ArrayList<>(rows);
+        newRows.set(500, -1);
+        Map<String, Object> newContent = new LinkedHashMap<>();
+        newContent.put("title", "b");
+        newContent.put("tags", ImmutableList.of("x", "y", "z"));
+        newContent.put("publisher", ImmutableMap.of("uri", "u", "name", "p"));
+        newContent.put("rows", newRows);
+        newContent.put("license", "CC-BY");
+        TraceData updated = db.update(data.fromThis()
+                                          .setRawValue(newContent)
+                                          .build())
+                              .get(0);
+
+        List<DataChange> changes = ImmutableList.copyOf(db.diff(data, updated));
+        assertEquals(ImmutableList.of(
+                DataChange.of(ChangeKind.CHANGED, PropertyPath.of("this", "title"), "a", "b"),
+                DataChange.of(ChangeKind.ADDED, PropertyPath.of("this", "tags", "2"), null, "z"),
+                DataChange.of(ChangeKind.CHANGED, PropertyPath.of("this", "rows", "500"), 500, -1),
+                DataChange.of(ChangeKind.REMOVED, PropertyPath.of("this", "obsolete"), true, null),
+                DataChange.of(ChangeKind.ADDED, PropertyPath.of("this", "license"), null, "CC-BY")), changes);
+
+        assertFalse(db.diff(data.getId(), data.getId())
+                      .hasNext());
+        assertEquals(ChangeKind.CHANGED, db.diff(data, DataValue.of(Ref.ofDocumentId("a"), makeMetadata(pub), "c"))
+                                           .next()
+                                           .getKind());
+    }
+
+    /**
+     * Beans are walked through their json representation
+     */
+    @Test
+    public void testDiffBean() {
+        TraceData pub = makePublisher();
+        TraceData agent1 = DataObject.of(Ref.ofDocumentId("a"), makeMetadata(pub), FoafAgent.builder()
+                                                                                        .setUri("u1")
+                                                                                        .build());
+        TraceData agent2 = DataObject.of(Ref.ofDocumentId("a"), makeMetadata(pub), FoafAgent.builder()
+                                                                                        .setUri("u2")
+                                                                                        .build());
+        assertEquals(ImmutableList.of(DataChange.of(ChangeKind.CHANGED, PropertyPath.of("this", "uri"), "u1", "u2")),
+                ImmutableList.copyOf(db.diff(agent1, agent2)));
+        assertFalse(db.diff(agent1, agent1.fromThis()
+                                          .build())
+                      .hasNext());
     }
 }
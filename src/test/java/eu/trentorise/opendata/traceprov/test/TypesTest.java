@@ -21,7 +21,11 @@ import com.google.common.reflect.ClassPath;
 import eu.trentorise.opendata.commons.Dict;
 import eu.trentorise.opendata.commons.TodConfig;
 import eu.trentorise.opendata.commons.test.jackson.TodJacksonTester;
+import eu.trentorise.opendata.commons.validation.Ref;
 import eu.trentorise.opendata.traceprov.TraceProvModule;
+import eu.trentorise.opendata.traceprov.data.DataValue;
+import eu.trentorise.opendata.traceprov.data.NodeMetadata;
+import eu.trentorise.opendata.traceprov.exceptions.TraceProvNotFoundException;
 import eu.trentorise.opendata.traceprov.types.AnyType;
 import eu.trentorise.opendata.traceprov.types.ClassType;
 import eu.trentorise.opendata.traceprov.types.Def;
@@ -40,8 +44,11 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.After;
@@ -255,4 +262,57 @@ public class TypesTest extends TraceProvTest {
         assertFalse(a1.d.equals(a2.d));
     }
 
+    @Test
+    public void testGetTypesFromInstance() {
+        TypeRegistry reg = TypeRegistry.of();
+        for (Object obj : Arrays.asList("a", 1, 2L, null, new ArrayList(), new Date(), new A())) {
+            Set<TraceType> expected = new HashSet();
+            for (TraceType type : reg.getTypes().values()) {
+                if (type.isInstance(obj)) {
+                    expected.add(type);
+                }
+            }
+            assertEquals(expected, new HashSet(reg.getTypesFromInstance(obj)));
+            // second call hits the cache
+            assertEquals(expected, new HashSet(reg.getTypesFromInstance(obj)));
+        }
+        assertTrue(reg.getTypesFromInstance("a").contains(StringType.of()));
+        assertTrue(reg.isInstance("a", StringType.of().getId()));
+        assertFalse(reg.isInstance("a", IntType.of().getId()));
+
+        // cache is invalidated on registration
+        ClassType classType = ClassType.builder().setId("test:myclass").build();
+        DataValue node = DataValue.of(Ref.ofDocumentId("a"), NodeMetadata.builder().build(), "b");
+        assertFalse(reg.getTypesFromInstance(node).contains(classType));
+        reg.put(classType);
+        assertTrue(reg.getTypesFromInstance(node).contains(classType));
+    }
+
+    @Test
+    public void testIsSubtype() {
+        TypeRegistry reg = TypeRegistry.of();
+        String anyId = AnyType.of().getId();
+        String stringId = StringType.of().getId();
+        String intId = IntType.of().getId();
+        assertTrue(reg.isSubtype(stringId, anyId));
+        assertFalse(reg.isSubtype(anyId, stringId));
+        assertTrue(reg.isSubtype(stringId, stringId));
+        assertFalse(reg.isSubtype(stringId, intId));
+        for (TraceType type : reg.getTypes().values()) {
+            assertTrue(reg.isSubtype(type.getId(), type.getId()));
+        }
+
+        assertTrue(reg.isInstance(1, intId));
+        assertTrue(reg.isInstance(1, anyId));
+        assertFalse(reg.isInstance(1, stringId));
+        assertFalse(reg.isInstance(1, "test:notregistered"));
+
+        try {
+            reg.isSubtype(stringId, "test:notregistered");
+            Assert.fail("Shouldn't find unregistered type!");
+        } catch (TraceProvNotFoundException ex) {
+
+        }
+    }
+
 }